@@ -0,0 +1,51 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The uses of pages that a {@link ReplacementPolicy} has not applied yet.
+ * Hits only append to a lock-free queue, so they do not take the policy's
+ * lock; the policy applies the queued uses under its lock, in the order
+ * they were recorded, before it adds, removes or orders pages, and when
+ * more than {@link #MAX_PENDING} uses have piled up.
+ */
+class AccessBuffer {
+
+    /**
+     * How many uses may be queued before the one recording a use applies
+     * them
+     */
+    static final int MAX_PENDING = 1024;
+
+    private final ConcurrentLinkedQueue<PageId> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Records a use of pid.
+     *
+     * @return whether more than MAX_PENDING uses are queued, so the caller
+     * should {@link #drain} them
+     */
+    boolean add(PageId pid) {
+        queue.add(pid);
+        return pending.incrementAndGet() > MAX_PENDING;
+    }
+
+    /**
+     * Passes the queued uses to apply, oldest first. Only the uses queued
+     * when it starts are taken, so threads that keep recording uses do not
+     * hold it up.
+     */
+    void drain(Consumer<PageId> apply) {
+        for (int n = pending.get(); n > 0; n--) {
+            PageId pid = queue.poll();
+            if (pid == null) {
+                return;
+            }
+            pending.decrementAndGet();
+            apply.accept(pid);
+        }
+    }
+}
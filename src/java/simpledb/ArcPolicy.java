@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Megiddo and Modha's adaptive replacement cache. The pool is split between
+ * T1, pages used once recently, and T2, pages used at least twice, each in
+ * LRU order; the ghost lists B1 and B2 remember the ids of pages recently
+ * evicted from T1 and T2. A miss on a page in B1 means T1 was too small and
+ * grows the target size p of T1, a miss on a page in B2 shrinks it, so the
+ * split follows the workload: a scan only ever fills T1, and the pages in
+ * T2 survive it.
+ * <p>
+ * The BufferPool evicts after it has read the new page in, and skips dirty
+ * pages, so {@link #candidates} lists T1 or T2 first according to p (as
+ * ARC's REPLACE would) and then the other list. T1 and T2 are
+ * {@link RecencyList}s, so the candidates are found step by step rather
+ * than copied. Hits are recorded in an {@link AccessBuffer} without taking
+ * the policy's lock and applied before the next change or eviction.
+ */
+public class ArcPolicy implements ReplacementPolicy {
+
+    private int capacity;
+    // T1的目标大小
+    private int p;
+    private boolean lastMissInB2;
+
+    // 都是LRU顺序，第一个是最久未使用的
+    private final RecencyList t1 = new RecencyList();
+    private final RecencyList t2 = new RecencyList();
+    private final LinkedHashSet<PageId> b1 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> b2 = new LinkedHashSet<>();
+    private final AccessBuffer accesses = new AccessBuffer();
+
+    /**
+     * @param capacity the number of pages of the pool
+     */
+    public ArcPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        drain();
+        if (t1.contains(pid) || t2.contains(pid)) {
+            return;
+        }
+        lastMissInB2 = false;
+        if (b1.contains(pid)) {
+            int delta = b1.size() >= b2.size() ? 1 : b2.size() / b1.size();
+            p = Math.min(capacity, p + delta);
+            b1.remove(pid);
+            t2.addLast(pid);
+        } else if (b2.contains(pid)) {
+            int delta = b2.size() >= b1.size() ? 1 : b1.size() / b2.size();
+            p = Math.max(0, p - delta);
+            b2.remove(pid);
+            t2.addLast(pid);
+            lastMissInB2 = true;
+        } else {
+            t1.addLast(pid);
+        }
+        trimGhosts();
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        drain();
+        this.capacity = Math.max(1, capacity);
+        p = Math.min(p, this.capacity);
+        trimGhosts();
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (accesses.add(pid)) {
+            synchronized (this) {
+                drain();
+            }
+        }
+    }
+
+    private void use(PageId pid) {
+        if (t1.remove(pid) || t2.contains(pid)) {
+            t2.addLast(pid);
+        }
+    }
+
+    /**
+     * Applies the uses recorded since the last call; the caller holds the
+     * policy's lock.
+     */
+    private void drain() {
+        accesses.drain(this::use);
+    }
+
+    public synchronized void pageRemoved(PageId pid, boolean evicted) {
+        drain();
+        if (t1.remove(pid)) {
+            if (evicted) {
+                b1.add(pid);
+            }
+        } else if (t2.remove(pid)) {
+            if (evicted) {
+                b2.add(pid);
+            }
+        }
+        trimGhosts();
+    }
+
+    /**
+     * Keeps |T1| + |B1| and the size of all four lists within ARC's bounds
+     * of c and 2c pages.
+     */
+    private void trimGhosts() {
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty()) {
+            removeFirst(b1);
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity && !b2.isEmpty()) {
+            removeFirst(b2);
+        }
+    }
+
+    private static void removeFirst(LinkedHashSet<PageId> list) {
+        Iterator<PageId> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+
+    /**
+     * @return the target size of T1
+     */
+    synchronized int getTarget() {
+        drain();
+        return p;
+    }
+
+    private boolean fromT1() {
+        return !t1.isEmpty() && (t1.size() > p || (lastMissInB2 && t1.size() == p));
+    }
+
+    public synchronized Iterator<PageId> candidates() {
+        drain();
+        if (fromT1()) {
+            return RecencyList.concat(t1.iterator(this), t2.iterator(this));
+        }
+        return RecencyList.concat(t2.iterator(this), t1.iterator(this));
+    }
+
+    public synchronized List<PageId> ranking() {
+        drain();
+        List<PageId> ret = new ArrayList<>(t1.size() + t2.size());
+        if (fromT1()) {
+            ret.addAll(t1.toList());
+            ret.addAll(t2.toList());
+        } else {
+            ret.addAll(t2.toList());
+            ret.addAll(t1.toList());
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+}
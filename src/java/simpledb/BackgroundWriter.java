@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BackgroundWriter writes the pages of committed transactions to disk on a
+ * thread of its own, so that committing does not wait for the page writes.
+ * See {@link BufferPool#startBackgroundWriter}.
+ * <p>
+ * At commit the BufferPool logs the before and after image of every page
+ * the transaction dirtied and hands a read-only copy of the page to the
+ * writer with {@link #submit}. The writer wakes up every few hundred
+ * milliseconds, or as soon as enough pages are waiting, sorts the waiting
+ * pages by table and page number, and writes each run of adjacent pages
+ * of a {@link HeapFile} with a single {@link HeapFile#writePages} call. It
+ * forces the log before every batch, so a page never reaches disk before
+ * its log records (write-ahead logging).
+ * <p>
+ * Until a page has been written, the copy handed to the writer is the
+ * newest committed version of the page, and the BufferPool reads it from
+ * here rather than from disk, see {@link #pendingCopy}.
+ */
+public class BackgroundWriter {
+
+    /**
+     * Default time in milliseconds the writer waits for more pages before
+     * writing what it has.
+     */
+    public static final long DEFAULT_DELAY_MS = 200;
+
+    /**
+     * The writer writes as soon as this many pages are waiting.
+     */
+    public static final int WAKE_PAGES = 64;
+
+    private final long delayMillis;
+
+    // 等待写回的page，每个page只保留最新提交的版本
+    private final Map<PageId, Page> pending = new HashMap<>();
+    // 同一时间只有一个批次在写
+    private final Object ioLock = new Object();
+
+    private Thread thread;
+    private volatile boolean running;
+
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param delayMillis how long the writer waits for more pages before it
+     *                    writes the ones it has
+     */
+    public BackgroundWriter(long delayMillis) {
+        if (delayMillis <= 0) {
+            throw new IllegalArgumentException("invalid delay " + delayMillis);
+        }
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "simpledb-background-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the writer thread and writes the pages that are still waiting.
+     */
+    public void stop() throws IOException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+            notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        flush();
+    }
+
+    private void run() {
+        while (running) {
+            synchronized (this) {
+                if (running && pending.size() < WAKE_PAGES) {
+                    try {
+                        wait(delayMillis);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queues page to be written. page must not change anymore; it replaces
+     * any older version of the same page that has not been written yet.
+     *
+     * @return false if the writer has been stopped, in which case the
+     * caller writes page itself
+     */
+    public synchronized boolean submit(Page page) {
+        if (!running) {
+            return false;
+        }
+        pending.put(page.getId(), page);
+        if (pending.size() >= WAKE_PAGES) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * @return a private copy of the version of pid that is waiting to be
+     * written, or null if no version of pid is waiting
+     */
+    public Page pendingCopy(PageId pid) {
+        Page page;
+        synchronized (this) {
+            page = pending.get(pid);
+        }
+        return page == null ? null : page.getBeforeImage();
+    }
+
+    /**
+     * Drops the waiting version of pid, if any, waiting for a batch that
+     * is being written to finish first. Used before pid is written or
+     * removed by other means, so that an old version written late cannot
+     * overwrite it.
+     */
+    public void discard(PageId pid) {
+        synchronized (ioLock) {
+            synchronized (this) {
+                pending.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages waiting to be written
+     */
+    public synchronized int pendingPages() {
+        return pending.size();
+    }
+
+    /**
+     * Writes every page that is waiting, in the calling thread.
+     */
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            List<Page> batch;
+            synchronized (this) {
+                batch = new ArrayList<>(pending.values());
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            batch.sort((a, b) -> {
+                int c = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+                return c != 0 ? c : Integer.compare(a.getId().pageNumber(), b.getId().pageNumber());
+            });
+            // 先写日志，再写page
+            LogFile log = Database.getLogFile();
+            if (log != null) {
+                log.force();
+            }
+            int i = 0;
+            while (i < batch.size()) {
+                PageId first = batch.get(i).getId();
+                int j = i + 1;
+                while (j < batch.size() && batch.get(j).getId().getTableId() == first.getTableId()
+                        && batch.get(j).getId().pageNumber() == first.pageNumber() + (j - i)) {
+                    j++;
+                }
+                DbFile file = Database.getCatalog().getDbFile(first.getTableId());
+                List<Page> run = batch.subList(i, j);
+                if (file instanceof HeapFile) {
+                    ((HeapFile) file).writePages(run);
+                    writes.incrementAndGet();
+                } else {
+                    for (Page page : run) {
+                        file.writePage(page);
+                        writes.incrementAndGet();
+                    }
+                }
+                pagesWritten.addAndGet(run.size());
+                i = j;
+            }
+            synchronized (this) {
+                for (Page page : batch) {
+                    // 写的过程中又提交了新版本的page要留到下一批
+                    pending.remove(page.getId(), page);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages the writer has written
+     */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /**
+     * @return the number of write calls the pages were written with; less
+     * than {@link #getPagesWritten()} when adjacent pages were coalesced
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+}
@@ -2,6 +2,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,10 +20,14 @@ import java.util.*;
  */
 public class BufferPool {
     /**
-     * Bytes per page, including header.
+     * Default bytes per page, including header. Tables can use another page
+     * size, see {@link #getPageSize()} and {@link HeapFile#getPageSize()}.
      */
     public static final int PAGE_SIZE = 4096;
 
+    // 数据库默认的page大小，没有单独设置page大小的table使用这个值
+    private static int pageSize = PAGE_SIZE;
+
     /**
      * Default number of pages passed to the constructor. This is used by
      * other classes. BufferPool should use the numPages argument to the
@@ -25,13 +35,184 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private int maxPages;
+    /**
+     * Maximum number of contiguous pages a sequential scan asks for at once
+     * through {@link #getPages}.
+     */
+    public static final int READ_BATCH_PAGES = 8;
+
+    /**
+     * Maximum number of frames of the {@link ScanRing} a sequential scan of
+     * a large table reads its pages into, see {@link #scanRingFor}. A ring
+     * is also never larger than 1/8 of the pool.
+     */
+    public static final int SCAN_RING_PAGES = 16;
+
+    /**
+     * A scan of a table of more than this fraction of the pool's pages
+     * reads through a {@link ScanRing} rather than the pool. Smaller tables
+     * are still cached, so that repeated scans of them (e.g. the inner side
+     * of a nested loops join) don't go to disk.
+     */
+    public static final double SCAN_RING_THRESHOLD = 0.75;
+
+    /**
+     * Number of threads that read pages ahead of sequential scans, see
+     * {@link ReadAhead}.
+     */
+    public static final int READ_AHEAD_THREADS = 2;
+
+    /**
+     * Maximum number of pages a sequential scan reads ahead. The read-ahead
+     * window is also never larger than half of the pool.
+     */
+    public static final int READ_AHEAD_MAX_PAGES = 64;
+
+    private volatile int maxPages;
 
-    //    private Map<PageId, Page> id2page;
-    private LRUCache<PageId, Page> id2page;
+    // 分段加锁的page table，不同page的命中可以并行
+    private final PageTable pageTable;
+    private final ReplacementPolicy.Kind policy;
+    // 同一时间只有一个线程在挑选要驱逐的page
+    private final Object evictionLock = new Object();
 
     private final LockManager lockManager;
-    private final long SLEEP_INTERVAL;
+
+    // 每个事务pin住的frame，事务结束时全部unpin
+    private final Map<TransactionId, List<PageTable.Frame>> pins = new ConcurrentHashMap<>();
+
+    // 每个事务持有写锁的page，只有这些page可能被它改脏
+    private final Map<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+
+    // 后台写回已提交的page，null表示提交时同步写回
+    private volatile BackgroundWriter writer;
+
+    // 被驱逐的clean page压缩后放在这里，null表示没有第二层缓存
+    private volatile CompressedPageCache secondTier;
+
+    // 定期保存pool中的page，供重启后预热
+    private volatile HotPageSet hotPageSaver;
+
+    // 预读线程，第一次用到时创建
+    private ExecutorService readAheadPool;
+    private final ReadAhead.Metrics readAheadMetrics = new ReadAhead.Metrics();
+
+    // 堆外的page frame，null表示page的字节在堆上
+    private final FrameArena arena;
+
+    // 命中率统计
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // 上一次resize时的统计，以及resize之前那段时间的统计
+    private Stats atResize = new Stats(0, 0, 0, 0, 0);
+    private Stats beforeResize;
+
+    /**
+     * A snapshot of the pool's hit, miss and eviction counters, see
+     * {@link #getStats()}.
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int capacity;
+        private final int cachedPages;
+
+        Stats(long hits, long misses, long evictions, int capacity, int cachedPages) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.capacity = capacity;
+            this.cachedPages = cachedPages;
+        }
+
+        /**
+         * @return the number of page requests served from the pool
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of page requests the pool had to read in
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of pages evicted to make room
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return the share of page requests that were hits
+         */
+        public double getHitRatio() {
+            long n = hits + misses;
+            return n == 0 ? 0 : (double) hits / n;
+        }
+
+        /**
+         * @return the capacity of the pool when the snapshot was taken
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return the number of cached pages when the snapshot was taken
+         */
+        public int getCachedPages() {
+            return cachedPages;
+        }
+
+        /**
+         * @return the counts between earlier and this snapshot
+         */
+        public Stats since(Stats earlier) {
+            return new Stats(hits - earlier.hits, misses - earlier.misses, evictions - earlier.evictions,
+                    capacity, cachedPages);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d pages of %d, %d hits, %d misses (hit ratio %.1f%%), %d evictions",
+                    cachedPages, capacity, hits, misses, getHitRatio() * 100, evictions);
+        }
+    }
+
+    /**
+     * @return the page size of tables that don't set their own, PAGE_SIZE
+     * unless changed with {@link #setPageSize}
+     */
+    public static int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the database-wide default page size. Only affects tables opened
+     * afterwards; their data files must have been written with the same
+     * page size.
+     *
+     * @param pageSize bytes per page, a positive multiple of 8
+     */
+    public static void setPageSize(int pageSize) {
+        if (pageSize <= 0 || pageSize % 8 != 0) {
+            throw new IllegalArgumentException("invalid page size " + pageSize);
+        }
+        BufferPool.pageSize = pageSize;
+    }
+
+    /**
+     * Restores the default page size of {@link #PAGE_SIZE}.
+     */
+    public static void resetPageSize() {
+        BufferPool.pageSize = PAGE_SIZE;
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -39,12 +220,46 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.Kind.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the replacement policy
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policy) {
+        this(numPages, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, optionally
+     * keeping the bytes of its pages off the Java heap.
+     * <p>
+     * In off-heap mode the pool allocates a {@link FrameArena} of direct
+     * memory with a frame for every page (and a few spare ones), and clean
+     * pages of the default page size keep their bytes in a frame: a miss
+     * reads the page straight into its frame, and a committed page is
+     * copied back into its frame. A page that is modified works on a
+     * private copy until it is committed or aborted, and a page that leaves
+     * the pool moves its bytes out of the frame before the frame is reused,
+     * so callers that still hold the page are not affected.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the replacement policy
+     * @param offHeap  whether to keep the bytes of pages in off-heap frames
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policy, boolean offHeap) {
         // some code goes here
         maxPages = numPages;
-        // 不使用hashmap了，使用lru cache
-        id2page = new LRUCache<>(maxPages);
+        this.policy = policy;
+        pageTable = new PageTable(PageTable.DEFAULT_SEGMENTS, policy.create(numPages), BufferPool::cachePriority);
+        pageTable.setPinnedBudget(pinnedBudget(numPages));
         lockManager = new LockManager();
-        SLEEP_INTERVAL = 500;
+        // 多出的frame让刚被驱逐的frame晚一些再被重用
+        arena = offHeap ? new FrameArena(numPages + Math.max(READ_BATCH_PAGES, numPages / 8), pageSize) : null;
     }
 
     /**
@@ -65,61 +280,643 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
+        acquireLock(tid, pid, perm);
+        return loadPage(pid);
+    }
+
+    /**
+     * Like {@link #getPage}, but gives up instead of waiting if the lock
+     * cannot be granted right away. Used by callers that can just as well
+     * use another page, e.g. HeapFile.insertTuple.
+     *
+     * @return the requested page, or null if another transaction holds a
+     * conflicting lock on it
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws DbException {
+        if (!tryLock(tid, pid, perm)) {
+            return null;
+        }
+        return loadPage(pid);
+    }
+
+    /**
+     * Grants tid a lock on pid for perm if that is possible without
+     * waiting.
+     *
+     * @return whether tid holds the lock
+     */
+    boolean tryLock(TransactionId tid, PageId pid, Permissions perm) {
         boolean result = (perm == Permissions.READ_ONLY) ? lockManager.grantSLock(tid, pid) : lockManager.grantXLock(tid, pid);
-        // 下面的while循环就是在模拟等待过程，如果没有获取到锁，隔一段时间就检查一次是否申请到锁了，还没申请到就检查是否陷入死锁
-        while (!result) {
-            if (lockManager.deadlockOccurred(tid, pid)) {
-                throw new TransactionAbortedException();
-            }
-            try {
-                Thread.sleep(SLEEP_INTERVAL);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        if (!result) {
+            // 不等待，因此也不应该出现在死锁检测的等待信息中
+            lockManager.cancelWait(tid);
+        } else if (perm == Permissions.READ_WRITE) {
+            noteWrite(tid, pid);
+        }
+        return result;
+    }
+
+    /**
+     * Adds pid to the write set of tid. A transaction can only dirty pages
+     * it holds an exclusive lock on, so commit and abort only have to look
+     * at its write set rather than at every page in the pool.
+     */
+    private void noteWrite(TransactionId tid, PageId pid) {
+        writeSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * @return the pages tid has locked for writing, which include all the
+     * pages it has dirtied
+     */
+    Set<PageId> writeSet(TransactionId tid) {
+        Set<PageId> pids = writeSets.get(tid);
+        return pids == null ? Collections.emptySet() : Collections.unmodifiableSet(pids);
+    }
+
+    /**
+     * @return the cached pages dirtied by tid
+     */
+    private List<Page> dirtiedBy(TransactionId tid) {
+        List<Page> pages = new ArrayList<>();
+        for (PageId pid : writeSet(tid)) {
+            PageTable.Frame frame = pageTable.peek(pid);
+            Page p = frame == null ? null : frame.page;
+            if (p != null && p.isDirty() != null && p.isDirty().equals(tid)) {
+                pages.add(p);
             }
-            //sleep之后再次判断result
-            result = (perm == Permissions.READ_ONLY) ? lockManager.grantSLock(tid, pid) : lockManager.grantXLock(tid, pid);
         }
+        return pages;
+    }
 
+    /**
+     * Returns the cached copy of pid, reading it from its file (and caching
+     * it) if it is not resident. The caller must hold a lock on pid.
+     */
+    private Page loadPage(PageId pid) throws DbException {
         // 命中返回，未命中则加载
         // 如果new page不在buffer pool中，是没有意义的
-        Page page = id2page.get(pid);
+        PageTable.Frame frame = pageTable.frameFor(pid);
+        Page page = frame.page;
         if (page != null) {
+            hits.increment();
             return page;
+        }
+        // 其他线程同时未命中同一个page时，在frame上等待这一次读取
+        synchronized (frame) {
+            if (frame.page == null) {
+                misses.increment();
+                fill(frame, arena == null ? readPage(pid) : readIntoArena(frame, pid));
+            } else {
+                hits.increment();
+            }
+            return frame.page;
+        }
+    }
+
+    /**
+     * Reads pid straight into a free frame of the arena, which becomes
+     * frame's, if there is one, no newer version of pid is waiting for the
+     * background writer and pid is not in the second tier.
+     */
+    private Page readIntoArena(PageTable.Frame frame, PageId pid) {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        if (pendingCopy(pid) != null || !(file instanceof HeapFile)
+                || ((HeapFile) file).getPageSize() != arena.getFrameSize()
+                || inSecondTier(pid)) {
+            return readPage(pid);
+        }
+        int slot = arena.allocate();
+        if (slot < 0) {
+            return readPage(pid);
+        }
+        Page page = ((HeapFile) file).readPage(pid, arena.frame(slot));
+        if (page == null) {
+            arena.release(slot);
         } else {
-            HeapFile dbFile = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
-            HeapPage newPage = (HeapPage) dbFile.readPage(pid);
-            // 如果有需要evict的page，flush它
-            // hgao: project 4，这里如果一个page被还大于一个transaction持有且dirty，则不evict它，换一个
-            // 如果buffer pool里面的全部都是dirty的且被持有，报错DbException
-            page = addNewPage(pid, newPage);
-            int count = id2page.size();
-            while (true) {
-                if (page != null && page.isDirty() == null) {
-                    // lru cache 已满，但是未被
-                    try {
-                        flushPage(page);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                } else if (page != null && page.isDirty() != null) {
-                    if (count-- <= 0) throw new DbException("All pages are dirty and held by transactions.");
-                    page = addNewPage(page.getId(), (HeapPage) page);
-                } else {
-                    // lru cache还未满
+            frame.slot = slot;
+        }
+        return page;
+    }
+
+    /**
+     * Moves the bytes of frame's page into a frame of the arena if the page
+     * is clean and not there yet.
+     */
+    private void moveToArena(PageTable.Frame frame) {
+        Page page = frame.page;
+        if (arena == null || !(page instanceof TuplePage) || page.isDirty() != null) {
+            return;
+        }
+        TuplePage tp = (TuplePage) page;
+        if (tp.getPageBuffer().remaining() != arena.getFrameSize()) {
+            return;
+        }
+        // slot只在arena的锁下分配和释放；已经离开page table的frame不再分配
+        synchronized (arena) {
+            if (pageTable.peek(frame.pid) != frame) {
+                return;
+            }
+            if (frame.slot < 0) {
+                frame.slot = arena.allocate();
+            }
+            if (frame.slot >= 0) {
+                tp.moveTo(arena.frame(frame.slot));
+            }
+        }
+    }
+
+    /**
+     * Gives the arena frame of a frame that has left the page table back,
+     * after moving its page out of it.
+     */
+    private void releaseFrame(PageTable.Frame frame) {
+        synchronized (arena) {
+            if (frame.slot >= 0) {
+                Page page = frame.page;
+                if (page instanceof TuplePage) {
+                    ((TuplePage) page).moveToHeap();
+                }
+                arena.release(frame.slot);
+                frame.slot = -1;
+            }
+        }
+    }
+
+    /**
+     * Moves the page cached for pid back into an arena frame after it has
+     * been committed or rolled back.
+     */
+    private void placeInArena(PageId pid) {
+        PageTable.Frame frame = arena == null ? null : pageTable.peek(pid);
+        if (frame != null) {
+            moveToArena(frame);
+        }
+    }
+
+    /**
+     * @return whether the pool keeps the bytes of its pages off-heap
+     */
+    public boolean isOffHeap() {
+        return arena != null;
+    }
+
+    /**
+     * @return the off-heap frames of the pool, or null if it is not off-heap
+     */
+    public FrameArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Reads the newest committed version of pid: the copy that is waiting
+     * for the background writer if there is one, else the copy in the
+     * second tier if there is one, the page on disk otherwise.
+     */
+    private Page readPage(PageId pid) {
+        Page page = pendingCopy(pid);
+        if (page == null) {
+            page = fromSecondTier(pid);
+        }
+        if (page == null) {
+            page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+        }
+        return page;
+    }
+
+    /**
+     * @return a copy of the committed version of pid that is waiting for the
+     * background writer, or null
+     */
+    Page pendingCopy(PageId pid) {
+        BackgroundWriter w = writer;
+        return w == null ? null : w.pendingCopy(pid);
+    }
+
+    /**
+     * Retrieve several pages at once with the associated permissions, as
+     * {@link #getPage} would one at a time. Runs of contiguous pages of a
+     * HeapFile that are not resident are read with a single
+     * {@link HeapFile#readPages} call rather than one read per page, which
+     * is what sequential scans use to read ahead.
+     *
+     * @param tid  the ID of the transaction requesting the pages
+     * @param pids the IDs of the requested pages
+     * @param perm the requested permissions on the pages
+     * @return the requested pages, in the order of pids
+     */
+    public List<Page> getPages(TransactionId tid, List<PageId> pids, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return getPages(tid, pids, perm, null);
+    }
+
+    /**
+     * Like {@link #getPages(TransactionId, List, Permissions)}, but pages
+     * that are not resident are read into ring instead of the pool. Pages
+     * that are in the pool, which includes every dirty page, are still
+     * returned from the pool.
+     *
+     * @param ring the scan's ring, see {@link #scanRingFor}, or null to
+     *             cache the pages in the pool; only used with READ_ONLY
+     */
+    public List<Page> getPages(TransactionId tid, List<PageId> pids, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        return getPages(tid, pids, perm, ring, null);
+    }
+
+    /**
+     * Like {@link #getPages(TransactionId, List, Permissions, ScanRing)},
+     * but takes pages that are not resident from ahead if it has read them
+     * already.
+     *
+     * @param ahead the scan's read-ahead, see {@link #readAheadFor}, or null
+     */
+    public List<Page> getPages(TransactionId tid, List<PageId> pids, Permissions perm, ScanRing ring, ReadAhead ahead)
+            throws TransactionAbortedException, DbException {
+        if (perm != Permissions.READ_ONLY) {
+            // 要修改的page必须在共享的pool里
+            ring = null;
+        }
+        Page[] pages = new Page[pids.size()];
+        for (int i = 0; i < pages.length; i++) {
+            acquireLock(tid, pids.get(i), perm);
+            pages[i] = pageTable.get(pids.get(i));
+            if (pages[i] == null && ring != null) {
+                pages[i] = ring.get(pids.get(i));
+            }
+        }
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null) {
+                hits.increment();
+                continue;
+            }
+            misses.increment();
+            // 已经预读的page，还没写回(在磁盘上是旧的)的page，以及第二层缓存中的page
+            pages[i] = ahead != null ? ahead.take(pids.get(i)) : null;
+            if (pages[i] == null) {
+                pages[i] = pendingCopy(pids.get(i));
+            }
+            if (pages[i] == null) {
+                pages[i] = fromSecondTier(pids.get(i));
+            }
+            if (pages[i] != null) {
+                pages[i] = ring == null ? cachePage(pages[i]) : ring.add(pages[i]);
+            }
+        }
+
+        int i = 0;
+        while (i < pages.length) {
+            if (pages[i] != null) {
+                i++;
+                continue;
+            }
+            // 找出一段连续的、未命中的page
+            PageId first = pids.get(i);
+            int j = i + 1;
+            while (j < pages.length && pages[j] == null
+                    && pids.get(j).getTableId() == first.getTableId()
+                    && pids.get(j).pageNumber() == first.pageNumber() + (j - i)) {
+                j++;
+            }
+            DbFile dbFile = Database.getCatalog().getDbFile(first.getTableId());
+            if (j - i > 1 && dbFile instanceof HeapFile) {
+                List<Page> run = ((HeapFile) dbFile).readPages(first.pageNumber(), j - i);
+                for (int k = 0; k < run.size(); k++) {
+                    pages[i + k] = run.get(k);
+                }
+            }
+            for (int k = i; k < j; k++) {
+                if (pages[k] == null) {
+                    pages[k] = dbFile.readPage(pids.get(k));
+                }
+                pages[k] = ring == null ? cachePage(pages[k]) : ring.add(pages[k]);
+            }
+            i = j;
+        }
+        return Arrays.asList(pages);
+    }
+
+    /**
+     * @return the maximum number of pages the pool caches
+     */
+    public int getNumPages() {
+        return maxPages;
+    }
+
+    /**
+     * Changes the number of pages the pool caches, without dropping the
+     * cache, the locks or the dirty pages. When the pool shrinks, clean
+     * pages are evicted (in the replacement policy's order) until it fits.
+     * Dirty pages are never evicted or written early (NO STEAL), so a pool
+     * that holds more dirty pages than the new capacity stays over capacity
+     * until their transactions complete; misses evict down to the new
+     * capacity from then on. An off-heap pool keeps its arena, so the
+     * pages it grows by keep their bytes on the heap.
+     *
+     * @param numPages the new maximum number of pages
+     * @return the statistics of the period since the previous resize (or
+     * since the pool was created), i.e. before this change
+     */
+    public Stats resize(int numPages) {
+        if (numPages <= 0) {
+            throw new IllegalArgumentException("invalid pool size " + numPages);
+        }
+        List<PageTable.Frame> victims = new ArrayList<>();
+        List<Demotion> demotions = new ArrayList<>();
+        Stats before;
+        synchronized (evictionLock) {
+            before = getStats().since(atResize);
+            maxPages = numPages;
+            pageTable.setCapacity(numPages);
+            pageTable.setPinnedBudget(pinnedBudget(numPages));
+            while (pageTable.size() > maxPages) {
+                PageTable.Frame victim = pageTable.evictFrame(null);
+                if (victim == null) {
                     break;
                 }
+                evictions.increment();
+                demote(victim, demotions);
+                victims.add(victim);
+            }
+            atResize = getStats();
+            beforeResize = before;
+        }
+        finishDemotions(demotions);
+        if (arena != null) {
+            for (PageTable.Frame victim : victims) {
+                releaseFrame(victim);
+            }
+        }
+        return before;
+    }
+
+    /**
+     * @return the pool's counters since it was created
+     */
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), maxPages, pageTable.size());
+    }
+
+    /**
+     * @return the counters of the period before the last {@link #resize},
+     * or null if the pool has not been resized
+     */
+    public Stats getStatsBeforeResize() {
+        synchronized (evictionLock) {
+            return beforeResize;
+        }
+    }
+
+    /**
+     * @return the counters since the last {@link #resize}, or since the pool
+     * was created
+     */
+    public Stats getStatsSinceResize() {
+        Stats last;
+        synchronized (evictionLock) {
+            last = atResize;
+        }
+        return getStats().since(last);
+    }
+
+    /**
+     * @return whether page pid is in the pool
+     */
+    public boolean isCached(PageId pid) {
+        // 不算作一次访问
+        return pageTable.contains(pid);
+    }
+
+    /**
+     * @return the replacement policy the pool was created with
+     */
+    public ReplacementPolicy.Kind getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return how many pages a sequential scan should fetch per
+     * {@link #getPages} call; small pools read one page at a time so a batch
+     * never crowds out the rest of the cache
+     */
+    public int getReadBatchSize() {
+        return Math.max(1, Math.min(READ_BATCH_PAGES, maxPages / 4));
+    }
+
+    /**
+     * Returns the ring a sequential scan of a table of numPages pages should
+     * read through, so that scanning a table that is large compared to the
+     * pool does not evict the pages other queries use.
+     *
+     * @return a new ring if the table has more than {@link #SCAN_RING_THRESHOLD}
+     * of the pool's pages, null if the scan should go through the pool, or
+     * if the pool is too small to spare a ring
+     */
+    public ScanRing scanRingFor(int numPages) {
+        int size = Math.min(SCAN_RING_PAGES, maxPages / 8);
+        if (size == 0 || numPages <= maxPages * SCAN_RING_THRESHOLD) {
+            return null;
+        }
+        // 一次getPages取回的page必须同时放得下
+        return new ScanRing(Math.max(size, getReadBatchSize()));
+    }
+
+    /**
+     * Returns the read-ahead a sequential scan of file should use, see
+     * {@link ReadAhead}.
+     *
+     * @param ring the scan's ring, or null
+     * @return a new read-ahead, or null if file is too small to be worth it
+     */
+    public ReadAhead readAheadFor(TransactionId tid, HeapFile file, ScanRing ring) {
+        int batch = getReadBatchSize();
+        if (file.numPages() <= batch) {
+            return null;
+        }
+        return new ReadAhead(this, tid, file, ring, batch, Math.min(READ_AHEAD_MAX_PAGES, maxPages / 2));
+    }
+
+    /**
+     * @return the read-ahead counters over all scans
+     */
+    public ReadAhead.Metrics getReadAheadMetrics() {
+        return readAheadMetrics;
+    }
+
+    /**
+     * @return the threads that read pages ahead of scans
+     */
+    synchronized Executor readAheadExecutor() {
+        if (readAheadPool == null) {
+            readAheadPool = Executors.newFixedThreadPool(READ_AHEAD_THREADS, r -> {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return readAheadPool;
+    }
+
+    /**
+     * Blocks until tid holds a lock on pid for perm, aborting tid if waiting
+     * would deadlock or takes longer than its lock-wait timeout.
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        // 拿不到锁时在LockManager的等待队列中等待，锁被释放时直接被唤醒
+        lockManager.acquire(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) {
+            noteWrite(tid, pid);
+        }
+    }
+
+    /**
+     * Sets the time tid waits for a page lock before it is aborted with a
+     * TransactionAbortedException. The setting lasts until tid completes.
+     *
+     * @param millis the timeout in milliseconds, 0 to wait until the lock is
+     *               granted or waiting would deadlock
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        lockManager.setLockTimeout(tid, millis);
+    }
+
+    /**
+     * Sets the lock-wait timeout of transactions that have not set their
+     * own; see {@link #setLockTimeout}. It is 0 by default.
+     */
+    public void setDefaultLockTimeout(long millis) {
+        lockManager.setDefaultLockTimeout(millis);
+    }
+
+    /**
+     * Adds a page that was just read from disk to the cache, unless another
+     * thread has cached the same page meanwhile.
+     *
+     * @return the cached copy of the page
+     */
+    private Page cachePage(Page newPage) throws DbException {
+        PageTable.Frame frame = pageTable.frameFor(newPage.getId());
+        synchronized (frame) {
+            if (frame.page == null) {
+                fill(frame, newPage);
+            }
+            return frame.page;
+        }
+    }
+
+    /**
+     * Puts page into the empty frame, evicting the least recently used clean
+     * page if the pool is over capacity. The caller holds the frame's lock.
+     *
+     * @throws DbException if every other cached page is dirty and cannot be
+     *                     evicted; the frame is dropped again
+     */
+    private void fill(PageTable.Frame frame, Page page) throws DbException {
+        frame.page = page;
+        List<Demotion> demotions = new ArrayList<>(1);
+        try {
+            evictFor(frame, demotions);
+        } finally {
+            // 压缩在eviction lock之外进行
+            finishDemotions(demotions);
+        }
+        moveToArena(frame);
+    }
+
+    /**
+     * Evicts pages until the pool, with frame in it, fits. Evicted pages
+     * bound for the second tier are added to demotions.
+     */
+    private void evictFor(PageTable.Frame frame, List<Demotion> demotions) throws DbException {
+        synchronized (evictionLock) {
+            while (pageTable.size() > maxPages) {
+                // 由replacement policy挑选，dirty的page不能被驱逐(NO STEAL)
+                // 优先级高的table的page最后驱逐
+                // clean的page与磁盘上一致，不需要写回
+                PageTable.Frame victim = pageTable.evictFrame(frame);
+                if (victim == null) {
+                    pageTable.remove(frame);
+                    if (arena != null) {
+                        releaseFrame(frame);
+                    }
+                    frame.page = null;
+                    throw new DbException("All pages are dirty or pinned and held by transactions.");
+                }
+                evictions.increment();
+                demote(victim, demotions);
+                if (arena != null) {
+                    releaseFrame(victim);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pins the cached page pid for tid while tid uses it, e.g. while an
+     * iterator goes through its tuples: the pool does not evict a pinned
+     * page. Each pin must be undone with {@link #unpinPage}; pins left over
+     * when tid completes are undone then.
+     *
+     * @return false if pid is not cached (e.g. it was read into a
+     * {@link ScanRing}), in which case nothing needs to be unpinned
+     */
+    public boolean pinPage(TransactionId tid, PageId pid) {
+        PageTable.Frame frame = pageTable.pin(pid);
+        if (frame == null) {
+            return false;
+        }
+        List<PageTable.Frame> pinned = pins.computeIfAbsent(tid, k -> new ArrayList<>());
+        synchronized (pinned) {
+            pinned.add(frame);
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link #getPage}, and pins the page for tid (see
+     * {@link #pinPage}), so that the page returned stays the pool's copy of
+     * pid while tid changes it. Operators that modify a page hold such a pin
+     * from fetching the page until they have marked it dirty; from then on
+     * NO STEAL keeps it in the pool.
+     */
+    public Page getPinnedPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        while (true) {
+            Page page = getPage(tid, pid, perm);
+            PageTable.Frame frame = pageTable.pin(pid);
+            if (frame != null && frame.page == page) {
+                List<PageTable.Frame> pinned = pins.computeIfAbsent(tid, k -> new ArrayList<>());
+                synchronized (pinned) {
+                    pinned.add(frame);
+                }
+                return page;
             }
-            if (!id2page.contains(pid)) {
-                throw new DbException("All pages are dirty and held by transactions.");
+            if (frame != null) {
+                pageTable.unpin(frame);
             }
-            return newPage;
+            // 取到page之后、pin之前它被驱逐了，重新取
         }
     }
 
-    // NOTE(hgao): 实现了lru cache
-    private Page addNewPage(PageId pid, HeapPage newPage) {
-        return id2page.put(pid, newPage);
+    /**
+     * Undoes one {@link #pinPage} of pid by tid.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        List<PageTable.Frame> pinned = pins.get(tid);
+        if (pinned == null) {
+            return;
+        }
+        // 一个事务同时pin住的page很少，从后往前找
+        synchronized (pinned) {
+            for (int i = pinned.size() - 1; i >= 0; i--) {
+                if (pinned.get(i).pid.equals(pid)) {
+                    pageTable.unpin(pinned.remove(i));
+                    return;
+                }
+            }
+        }
     }
 
     /**
@@ -158,7 +955,8 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for proj1
-        return lockManager.getLockState(tid, p) != null;
+        List<LockState> states = lockManager.getLockState(tid, p);
+        return states != null && !states.isEmpty();
     }
 
     /**
@@ -172,34 +970,52 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for proj1
-        lockManager.releaseTransactionLocks(tid);
-        if (commit) {
-            flushPages(tid);
-        } else {
-            revertTransactionAction(tid);
+        List<PageTable.Frame> pinned = pins.remove(tid);
+        if (pinned != null) {
+            // 没有unpin的page(例如没有close的iterator)
+            synchronized (pinned) {
+                for (PageTable.Frame frame : pinned) {
+                    pageTable.unpin(frame);
+                }
+            }
+        }
+        // 先写回或回滚，再释放锁：等待者一被唤醒就可能读这些page，不能让它看到未提交的修改
+        try {
+            if (commit) {
+                flushPages(tid);
+            } else {
+                revertTransactionAction(tid);
+            }
+        } finally {
+            writeSets.remove(tid);
+            lockManager.releaseTransactionLocks(tid);
         }
     }
 
     /**
      * 在事务回滚时，撤销该事务对page造成的改变
+     * <p>
+     * Every cached page keeps the image it had when it was last written
+     * (see {@link Page#getBeforeImage}), which under NO STEAL is the last
+     * committed version of the page, so pages are restored from memory
+     * rather than read back from disk. The pages are tid's own, locked
+     * exclusively, so other transactions roll back or commit at the same
+     * time without waiting for this one.
      *
      * @param tid
      */
-    public synchronized void revertTransactionAction(TransactionId tid) {
-        Iterator<Page> it = id2page.iterator();
-        while (it.hasNext()) {
-            Page p = it.next();
-            if (p.isDirty() != null && p.isDirty().equals(tid)) {
-                // revertPage
-                if (!id2page.contains(p.getId())) {
-                    throw new IllegalArgumentException();
-                }
-                // 访问磁盘获得该page
-                PageId pid = p.getId();
-                HeapFile table = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
-                HeapPage originalPage = (HeapPage) table.readPage(pid);
-                // 更新buffer pool中的page
-                id2page.put(pid, originalPage);
+    public void revertTransactionAction(TransactionId tid) {
+        for (Page p : dirtiedBy(tid)) {
+            // revertPage
+            // before image就是最后一次提交的版本，不需要访问磁盘
+            PageId pid = p.getId();
+            DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+            Page originalPage = p.getBeforeImage();
+            // 更新buffer pool中的page
+            pageTable.put(originalPage);
+            placeInArena(pid);
+            if (table instanceof HeapFile) {
+                ((HeapFile) table).noteFreeSpace(pid.pageNumber(), ((TuplePage) originalPage).getFreeUnits());
             }
         }
     }
@@ -224,7 +1040,7 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        DbFile table = Database.getCatalog().getDbFile(tableId);
         ArrayList<Page> affectedPages = table.insertTuple(tid, t);
         for (Page page : affectedPages) {
             // 这一步其实已经做过了
@@ -232,6 +1048,24 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Adds all of tuples to the specified table on behalf of transaction tid,
+     * through {@link DbFile#insertTuples}, so that the file can fill each
+     * page it locks with as many tuples as fit instead of going through
+     * {@link #insertTuple} once per tuple.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile table = Database.getCatalog().getDbFile(tableId);
+        for (Page page : table.insertTuples(tid, tuples)) {
+            page.markDirty(true, tid);
+        }
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from. May block if
@@ -250,7 +1084,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
         int tableId = t.getRecordId().getPageId().getTableId();
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        DbFile table = Database.getCatalog().getDbFile(tableId);
         Page affectedPage = table.deleteTuple(tid, t);
         affectedPage.markDirty(true, tid);
     }
@@ -264,13 +1098,322 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-        Iterator<Page> it = id2page.iterator();
-        while (it.hasNext()) {
-            Page p = it.next();
+        for (Page p : pageTable.pages()) {
             if (p.isDirty() != null) {
                 flushPage(p);
             }
         }
+        BackgroundWriter w = writer;
+        if (w != null) {
+            w.flush();
+        }
+    }
+
+    /**
+     * Starts writing the pages of committed transactions in the background.
+     * From now on {@link #flushPages} logs the changes of the committing
+     * transaction and hands its pages to a {@link BackgroundWriter} instead
+     * of writing them itself.
+     *
+     * @param delayMillis how long the writer waits for more pages before it
+     *                    writes the ones it has
+     */
+    public synchronized void startBackgroundWriter(long delayMillis) {
+        if (writer == null) {
+            BackgroundWriter w = new BackgroundWriter(delayMillis);
+            w.start();
+            writer = w;
+        }
+    }
+
+    /**
+     * Stops the background writer, if one is running, after it has written
+     * all the pages handed to it. Committed pages are written synchronously
+     * again afterwards.
+     */
+    public synchronized void stopBackgroundWriter() throws IOException {
+        BackgroundWriter w = writer;
+        if (w != null) {
+            w.stop();
+            writer = null;
+        }
+    }
+
+    /**
+     * @return the running background writer, or null
+     */
+    public BackgroundWriter getBackgroundWriter() {
+        return writer;
+    }
+
+    /**
+     * Starts saving the ids of the pool's pages to f every period, so that
+     * the pool can be warmed up from f after a restart, see {@link #warmUp}.
+     *
+     * @see HotPageSet
+     */
+    public synchronized void startHotPageSaver(File f, long periodMillis) {
+        if (hotPageSaver == null) {
+            HotPageSet s = new HotPageSet(this, f, periodMillis);
+            s.start();
+            hotPageSaver = s;
+        }
+    }
+
+    /**
+     * Stops saving the pool's pages, if it is, after saving them one last
+     * time.
+     */
+    public synchronized void stopHotPageSaver() throws IOException {
+        HotPageSet s = hotPageSaver;
+        if (s != null) {
+            s.stop();
+            hotPageSaver = null;
+        }
+    }
+
+    /**
+     * @return the running saver of the pool's pages, or null
+     */
+    public HotPageSet getHotPageSaver() {
+        return hotPageSaver;
+    }
+
+    /**
+     * Reads the pages saved in f back into the pool on a background thread,
+     * as far as they fit in its free frames.
+     *
+     * @return the number of pages read into the pool, once they are
+     * @see HotPageSet#load
+     */
+    public CompletableFuture<Integer> warmUp(File f) {
+        return new HotPageSet(this, f, HotPageSet.DEFAULT_PERIOD_MS).loadInBackground();
+    }
+
+    /**
+     * @return the ids of the cached pages, the ones the replacement policy
+     * would keep longest first
+     */
+    List<PageId> hotPages() {
+        return pageTable.ranking();
+    }
+
+    /**
+     * Reads pids into the pool as far as they fit in its free frames,
+     * without evicting, in order of file and page number: each run of
+     * adjacent pages of a HeapFile is read with one
+     * {@link HeapFile#readPages} call. Takes shared locks without waiting;
+     * pages another transaction has locked are skipped.
+     *
+     * @return the number of pages read into the pool
+     */
+    int preload(List<PageId> pids) throws IOException {
+        pids = new ArrayList<>(pids);
+        pids.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::pageNumber));
+        TransactionId tid = new TransactionId();
+        int loaded = 0;
+        try {
+            int i = 0;
+            while (i < pids.size() && pageTable.size() < maxPages) {
+                // 一段连续的、可以加锁的、不在pool中的page
+                List<PageId> run = new ArrayList<>();
+                PageId first = pids.get(i);
+                while (i < pids.size() && pids.get(i).getTableId() == first.getTableId()
+                        && pids.get(i).pageNumber() == first.pageNumber() + run.size()
+                        && !isCached(pids.get(i))
+                        && tryLock(tid, pids.get(i), Permissions.READ_ONLY)) {
+                    run.add(pids.get(i++));
+                }
+                if (run.isEmpty()) {
+                    i++;
+                    continue;
+                }
+                // 先取还没写回的版本，再读磁盘：查过之后才写回的page，读到的已经是新版本
+                List<Page> pending = new ArrayList<>(run.size());
+                for (PageId pid : run) {
+                    pending.add(pendingCopy(pid));
+                }
+                DbFile file = Database.getCatalog().getDbFile(first.getTableId());
+                List<Page> pages;
+                if (file instanceof HeapFile) {
+                    pages = ((HeapFile) file).readPages(first.pageNumber(), run.size());
+                } else {
+                    pages = new ArrayList<>(run.size());
+                    for (PageId pid : run) {
+                        pages.add(file.readPage(pid));
+                    }
+                }
+                for (int j = 0; j < run.size() && pageTable.size() < maxPages; j++) {
+                    Page page = pending.get(j);
+                    if (page == null && j < pages.size()) {
+                        page = pages.get(j);
+                    }
+                    if (page != null) {
+                        cachePage(page);
+                        loaded++;
+                    }
+                }
+            }
+        } catch (DbException e) {
+            e.printStackTrace();
+        } finally {
+            transactionComplete(tid);
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads all pages of a table into the pool, as far as they fit in its
+     * free frames, e.g. for a table whose
+     * {@link Catalog.CachePriority cache priority} is PINNED.
+     *
+     * @return the number of pages read into the pool
+     */
+    public int loadTable(int tableId) throws IOException {
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        if (!(file instanceof HeapFile)) {
+            return 0;
+        }
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 0; i < ((HeapFile) file).numPages(); i++) {
+            pids.add(new HeapPageId(tableId, i));
+        }
+        return preload(pids);
+    }
+
+    /**
+     * Loads every table of the catalog whose cache priority is PINNED, see
+     * {@link #loadTable}. Meant to be called at startup, after the schema
+     * has been loaded.
+     *
+     * @return the number of pages read into the pool
+     */
+    public int loadPinnedTables() throws IOException {
+        int loaded = 0;
+        Catalog catalog = Database.getCatalog();
+        for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext(); ) {
+            int tableId = it.next();
+            if (catalog.getCachePriority(tableId) == Catalog.CachePriority.PINNED) {
+                loaded += loadTable(tableId);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the cache priority of pid's table
+     */
+    private static Catalog.CachePriority cachePriority(PageId pid) {
+        return Database.getCatalog().getCachePriority(pid.getTableId());
+    }
+
+    /**
+     * @return how many pages of PINNED tables a pool of numPages keeps from
+     * being evicted: all but a quarter of the pool, and at least one page
+     * is left for the other tables
+     */
+    static int pinnedBudget(int numPages) {
+        return numPages - Math.max(1, numPages / 4);
+    }
+
+    /**
+     * Keeps the clean pages the pool evicts compressed in memory, in a
+     * second tier of at most capacityBytes that later misses are served
+     * from before they go to disk. Replaces the second tier the pool had.
+     *
+     * @return the new second tier, whose hit ratio tells how many of the
+     * pool's misses it serves
+     * @see CompressedPageCache
+     */
+    public CompressedPageCache enableSecondTier(long capacityBytes) {
+        CompressedPageCache tier = new CompressedPageCache(capacityBytes);
+        synchronized (evictionLock) {
+            secondTier = tier;
+        }
+        return tier;
+    }
+
+    /**
+     * Drops the second tier, if the pool has one.
+     */
+    public void disableSecondTier() {
+        synchronized (evictionLock) {
+            secondTier = null;
+        }
+    }
+
+    /**
+     * @return the second tier, or null
+     */
+    public CompressedPageCache getSecondTier() {
+        return secondTier;
+    }
+
+    /**
+     * An evicted page on its way to the second tier
+     */
+    private static final class Demotion {
+        final CompressedPageCache tier;
+        final Page page;
+        final long reservation;
+
+        Demotion(CompressedPageCache tier, Page page, long reservation) {
+            this.tier = tier;
+            this.page = page;
+            this.reservation = reservation;
+        }
+    }
+
+    /**
+     * Reserves the place of an evicted page in the second tier, and adds
+     * the page to demotions for {@link #finishDemotions}. Called under the
+     * eviction lock; the page is compressed and put after it is released,
+     * and the reservation keeps an older version of a page from landing
+     * after the page has been read back or written.
+     */
+    private void demote(PageTable.Frame victim, List<Demotion> demotions) {
+        CompressedPageCache tier = secondTier;
+        Page page = victim.page;
+        if (tier != null && page != null) {
+            demotions.add(new Demotion(tier, page, tier.reserve(page.getId())));
+        }
+    }
+
+    /**
+     * Compresses the pages demoted under the eviction lock into the second
+     * tier, outside the lock.
+     */
+    private static void finishDemotions(List<Demotion> demotions) {
+        for (Demotion d : demotions) {
+            d.tier.put(d.page, d.reservation);
+        }
+    }
+
+    /**
+     * @return page pid, taken out of the second tier, or null
+     */
+    private Page fromSecondTier(PageId pid) {
+        CompressedPageCache tier = secondTier;
+        return tier == null ? null : tier.take(pid);
+    }
+
+    /**
+     * @return whether pid is in the second tier
+     */
+    boolean inSecondTier(PageId pid) {
+        CompressedPageCache tier = secondTier;
+        return tier != null && tier.contains(pid);
+    }
+
+    /**
+     * Drops the copy of pid in the second tier, which is older than a
+     * version of pid that is being written.
+     */
+    private void invalidateSecondTier(PageId pid) {
+        CompressedPageCache tier = secondTier;
+        if (tier != null) {
+            tier.invalidate(pid);
+        }
     }
 
     /**
@@ -279,48 +1422,76 @@ public class BufferPool {
      * buffer pool doesn't keep a rolled back page in its
      * cache.
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for proj1
+        PageTable.Frame frame = pageTable.peek(pid);
+        if (frame != null && pageTable.remove(frame) && arena != null) {
+            releaseFrame(frame);
+        }
+        BackgroundWriter w = writer;
+        if (w != null) {
+            w.discard(pid);
+        }
+        invalidateSecondTier(pid);
     }
 
     /**
      * 将指定的page刷新到磁盘
-     * 因为已经将page驱逐了，从id2page中是找不到这个page的，不如直接flush page
      * Flushes a certain page to disk
      *
      * @param page page to be flushed
      */
-    private synchronized void flushPage(Page page) throws IOException {
+    private void flushPage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        HeapPage dirtyPage = (HeapPage) page;
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(dirtyPage.getId().getTableId());
-        table.writePage(dirtyPage);
-        dirtyPage.markDirty(false, null);
+        DbFile table = Database.getCatalog().getDbFile(page.getId().getTableId());
+        BackgroundWriter w = writer;
+        if (w != null) {
+            // 不能让后台写回的旧版本覆盖这次写入
+            w.discard(page.getId());
+        }
+        table.writePage(page);
+        invalidateSecondTier(page.getId());
+        page.markDirty(false, null);
+        // 写回之后，磁盘上的版本就是新的before image
+        page.setBeforeImage();
     }
 
     /**
      * 根据transactionId刷新到磁盘
      * Write all pages of the specified transaction to disk.
+     * <p>
+     * The pages are found through tid's write set and are locked
+     * exclusively by tid, so transactions commit at the same time without a
+     * pool-wide lock; the page table, the arena and the files synchronize
+     * what they share themselves.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        Iterator<Page> it = id2page.iterator();
-        while (it.hasNext()) {
-            Page p = it.next();
-            if (p.isDirty() != null && p.isDirty().equals(tid)) {
-                flushPage(p);
-                if (p.isDirty() == null) {
-                    p.setBeforeImage();
+        BackgroundWriter w = writer;
+        LogFile log = Database.getLogFile();
+        for (Page p : dirtiedBy(tid)) {
+            if (w != null && log != null) {
+                // 写日志后交给后台线程，日志由后台线程在写page之前force
+                log.logWrite(tid, p.getBeforeImage(), p);
+                p.markDirty(false, null);
+                p.setBeforeImage();
+                // 后台线程已经停止时自己写回
+                if (w.submit(p.getBeforeImage())) {
+                    invalidateSecondTier(p.getId());
+                    placeInArena(p.getId());
+                    continue;
                 }
             }
+            flushPage(p);
+            placeInArena(p.getId());
         }
     }
 
     /**
-     * 该方法在LRUCache中实现了
+     * 该方法在PageTable中实现了
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
@@ -331,7 +1502,7 @@ public class BufferPool {
     }
 
     public int cacheSize() {
-        return id2page.size();
+        return pageTable.size();
     }
 
 }
@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how the throughput of BufferPool page hits scales with the number
+ * of client threads. Every thread looks up random pages of a table that
+ * fits in the pool, so after warm-up every lookup is a hit and the numbers
+ * show contention only. Three workloads are run for 1, 2, 4, ... threads:
+ * <ul>
+ * <li>lru: an {@link LRUCache} behind one lock, the page table the
+ * BufferPool used before {@link PageTable}</li>
+ * <li>table: the striped {@link PageTable}</li>
+ * <li>getPage: {@link BufferPool#getPage} with read locks, each thread
+ * committing a transaction every {@link #GETS_PER_TRANSACTION} pages, which
+ * adds the LockManager to the page table</li>
+ * <li>commit: transactions that each change one page and commit, writing
+ * it; every thread uses pages of its own, so commits only contend in the
+ * pool and not on page locks</li>
+ * </ul>
+ * Run with
+ * <pre>
+ *     java -jar dist/simpledb.jar benchmark [--threads=n] [--seconds=s] [--pages=n]
+ * </pre>
+ */
+public class BufferPoolBenchmark {
+
+    static final int GETS_PER_TRANSACTION = 64;
+
+    private final int maxThreads;
+    private final long millis;
+    private final int numPages;
+
+    private HeapFile file;
+    private PageId[] pids;
+
+    public BufferPoolBenchmark(int maxThreads, double seconds, int numPages) {
+        this.maxThreads = maxThreads;
+        this.millis = (long) (seconds * 1000);
+        this.numPages = numPages;
+    }
+
+    /**
+     * One lookup on behalf of a thread
+     */
+    private interface Op {
+        void run(PageId pid) throws Exception;
+    }
+
+    /**
+     * Creates the table, runs all workloads and prints a line per workload
+     * and thread count.
+     */
+    public void run() throws IOException, DbException, TransactionAbortedException {
+        setUp();
+        final LRUCache<PageId, Page> lru = new LRUCache<>(numPages);
+        final PageTable table = new PageTable();
+        for (PageId pid : pids) {
+            Page p = file.readPage(pid);
+            lru.put(pid, p);
+            table.put(p);
+        }
+
+        System.out.printf("%-8s %8s %14s %8s%n", "workload", "threads", "lookups/s", "speedup");
+        report("lru", pid -> {
+            synchronized (lru) {
+                lru.get(pid);
+            }
+        });
+        report("table", table::get);
+        report("getPage", null);
+        report("commit", true, pid -> {
+            BufferPool bufferPool = Database.getBufferPool();
+            TransactionId tid = new TransactionId();
+            bufferPool.getPage(tid, pid, Permissions.READ_WRITE).markDirty(true, tid);
+            bufferPool.transactionComplete(tid);
+        });
+    }
+
+    private void setUp() throws IOException, DbException, TransactionAbortedException {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        file = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, "bench" + System.nanoTime());
+        file.allocatePages(numPages);
+        Database.resetBufferPool(numPages);
+        pids = new PageId[numPages];
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < numPages; i++) {
+            pids[i] = new HeapPageId(file.getId(), i);
+            Database.getBufferPool().getPage(tid, pids[i], Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void report(String name, Op op) {
+        report(name, false, op);
+    }
+
+    /**
+     * @param striped whether every thread only uses pages of its own
+     */
+    private void report(String name, boolean striped, Op op) {
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = measure(threads, striped, op);
+            if (threads == 1) {
+                base = rate;
+            }
+            System.out.printf("%-8s %8d %14.0f %7.2fx%n", name, threads, rate, rate / base);
+        }
+    }
+
+    /**
+     * Runs op (or getPage if op is null) on threads threads for the
+     * configured time.
+     *
+     * @param striped whether thread t only uses the pages whose index is t
+     *                modulo threads
+     * @return lookups per second, over all threads
+     */
+    private double measure(int threads, boolean striped, final Op op) {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                BufferPool bufferPool = Database.getBufferPool();
+                long count = 0;
+                try {
+                    start.await();
+                    TransactionId tid = new TransactionId();
+                    while (!stop.get()) {
+                        PageId pid = striped
+                                ? pids[first + threads * random.nextInt(pids.length / threads)]
+                                : pids[random.nextInt(pids.length)];
+                        if (op != null) {
+                            op.run(pid);
+                        } else {
+                            bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+                            if ((count + 1) % GETS_PER_TRANSACTION == 0) {
+                                bufferPool.transactionComplete(tid);
+                                tid = new TransactionId();
+                            }
+                        }
+                        count++;
+                    }
+                    bufferPool.transactionComplete(tid);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                total.addAndGet(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        stop.set(true);
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return total.get() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * benchmark [--threads=n] [--seconds=s] [--pages=n]
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double seconds = 1;
+        int pages = 256;
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if (arg.startsWith("--seconds=")) {
+                    seconds = Double.parseDouble(arg.substring("--seconds=".length()));
+                } else if (arg.startsWith("--pages=")) {
+                    pages = Integer.parseInt(arg.substring("--pages=".length()));
+                } else {
+                    System.err.println("Unknown option " + arg);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid option " + arg);
+                return;
+            }
+        }
+        new BufferPoolBenchmark(threads, seconds, pages).run();
+    }
+}
@@ -0,0 +1,666 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BulkLoader converts a delimited text file (one row per line, as read by
+ * {@link HeapFileEncoder}) into a HeapFile data file, using several threads.
+ * <p>
+ * The input is split into byte ranges of about {@link #CHUNK_SIZE} bytes.
+ * A range owns the lines that start in it, so the ranges are cut at line
+ * boundaries without scanning the file first. Worker threads read their
+ * ranges with positional reads and parse them straight from the bytes into
+ * fixed-width records (the HeapPage tuple encoding), without building a
+ * String per field. The calling thread takes the parsed ranges in input
+ * order, encodes the records into pages of the output format (again
+ * without building Tuples or Strings) directly in a large output buffer and
+ * writes the pages out sequentially. At most two ranges per thread are in
+ * flight, so memory use does not depend on the size of the input.
+ * <p>
+ * The input is read as ISO-8859-1: every byte of a string field is one
+ * character, which is how pages store strings, and strings are cut to
+ * {@link Type#STRING_LEN} bytes. For such input the output is the same as
+ * that of a single-threaded conversion of the text into Tuples. Other
+ * encodings are stored byte for byte, so e.g. UTF-8 text reads back intact
+ * where the platform charset is UTF-8, except that a multi-byte character
+ * can be cut in two at the STRING_LEN byte limit; a conversion through
+ * Strings would instead keep one byte of every character and cut at
+ * STRING_LEN characters.
+ * <p>
+ * Lines with the wrong number of fields or a malformed int are skipped and
+ * reported as "BAD LINE".
+ *
+ * @see HeapFileEncoder
+ */
+public class BulkLoader {
+
+    /**
+     * Number of parser threads used if none is given
+     */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Size of the byte ranges the input is split into
+     */
+    static final int CHUNK_SIZE = 4 << 20;
+
+    /**
+     * Pages are written out in batches of about this many bytes
+     */
+    private static final int WRITE_SIZE = 1 << 20;
+
+    /**
+     * The charset of the input, one byte per character like the pages
+     */
+    static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private final Type[] types;
+    private final TupleDesc td;
+    private final byte separator;
+    private final int pageSize;
+    private final HeapFile.PageFormat format;
+    private final int threads;
+    private final int chunkSize;
+    // 每条定长record的字节数，与HeapPage中tuple的编码一致
+    private final int recordSize;
+
+    /**
+     * @param types     the types of the fields of each line
+     * @param separator the character between fields
+     * @param pageSize  the number of bytes per page in the output file
+     * @param format    the page format of the output file
+     * @param threads   the number of parser threads
+     */
+    public BulkLoader(Type[] types, char separator, int pageSize, HeapFile.PageFormat format, int threads) {
+        this(types, separator, pageSize, format, threads, CHUNK_SIZE);
+    }
+
+    /**
+     * Same as {@link #BulkLoader(Type[], char, int, HeapFile.PageFormat, int)}
+     * with input ranges of chunkSize bytes, e.g. to test range boundaries
+     * on small files.
+     */
+    BulkLoader(Type[] types, char separator, int pageSize, HeapFile.PageFormat format, int threads, int chunkSize) {
+        if (separator > 0x7f) {
+            throw new IllegalArgumentException("separator must be an ASCII character");
+        }
+        this.types = types.clone();
+        this.td = new TupleDesc(this.types);
+        this.separator = (byte) separator;
+        this.pageSize = pageSize;
+        this.format = format;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = chunkSize;
+        this.recordSize = td.getSize();
+    }
+
+    /**
+     * Converts inFile into outFile, replacing its contents. An empty input
+     * still produces one (empty) page.
+     *
+     * @return the number of rows loaded
+     * @throws IOException if a file can't be read or written, or a row does
+     *                     not fit on a page
+     */
+    public long load(File inFile, File outFile) throws IOException {
+        // 文件被重写，旧的free space map已经失效
+        FreeSpaceMap.discard(outFile);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            PageWriter writer = new PageWriter(out);
+            Deque<Future<Chunk>> pending = new ArrayDeque<>();
+            long next = 0;
+            while (next < size || !pending.isEmpty()) {
+                while (next < size && pending.size() < 2 * threads) {
+                    final long start = next;
+                    final long end = Math.min(size, start + chunkSize);
+                    pending.add(pool.submit(() -> parse(in, start, end, size)));
+                    next = end;
+                }
+                Chunk chunk = await(pending.poll());
+                for (String line : chunk.badLines) {
+                    System.out.println("BAD LINE : " + line);
+                }
+                writer.add(chunk);
+            }
+            writer.finish();
+            return writer.rows;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Chunk await(Future<Chunk> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // parsing
+
+    /**
+     * The records parsed from one byte range of the input.
+     */
+    private static class Chunk {
+        byte[] records;
+        int count;
+        final List<String> badLines = new ArrayList<>();
+    }
+
+    /**
+     * Reads the lines starting in [start, end) of the input (the last one
+     * may run past end) and encodes them into records.
+     */
+    private Chunk parse(FileChannel in, long start, long end, long size) throws IOException {
+        // 多读一个字节，用来判断start是否正好是一行的开头
+        long from = Math.max(0, start - 1);
+        byte[] buf = new byte[(int) (end - from)];
+        int len = readFully(in, buf, 0, buf.length, from);
+        // 读到跨过end的那一行结束为止
+        int scanned = Math.max(0, len - 1);
+        while (from + len < size && indexOfNewline(buf, scanned, len) < 0) {
+            scanned = len;
+            if (len == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length + 8192);
+            }
+            int n = readFully(in, buf, len, buf.length - len, from + len);
+            if (n == 0) {
+                break;
+            }
+            len += n;
+        }
+
+        int limit = (int) (end - from);
+        int pos = 0;
+        if (start > 0) {
+            // 第一行属于前一个range
+            while (pos < len && buf[pos] != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+
+        Chunk chunk = new Chunk();
+        chunk.records = new byte[Math.max(16 * recordSize, limit - pos)];
+        int[] fieldEnds = new int[types.length];
+        while (pos < limit && pos < len) {
+            int lineEnd = pos;
+            while (lineEnd < len && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            parseLine(buf, pos, lineEnd, chunk, fieldEnds);
+            pos = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    private static int indexOfNewline(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readFully(FileChannel in, byte[] buf, int off, int len, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+        while (bb.hasRemaining()) {
+            if (in.read(bb, position + bb.position() - off) < 0) {
+                break;
+            }
+        }
+        return bb.position() - off;
+    }
+
+    private void parseLine(byte[] buf, int start, int end, Chunk chunk, int[] fieldEnds) {
+        while (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+        int nf = 0;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == separator) {
+                if (nf == fieldEnds.length) {
+                    chunk.badLines.add(new String(buf, start, end - start, CHARSET));
+                    return;
+                }
+                fieldEnds[nf++] = i;
+            }
+        }
+        if (nf != fieldEnds.length - 1) {
+            chunk.badLines.add(new String(buf, start, end - start, CHARSET));
+            return;
+        }
+        fieldEnds[nf] = end;
+
+        if ((chunk.count + 1) * recordSize > chunk.records.length) {
+            chunk.records = Arrays.copyOf(chunk.records, Math.max(chunk.records.length * 2, (chunk.count + 1) * recordSize));
+        }
+        byte[] rec = chunk.records;
+        int off = chunk.count * recordSize;
+        int fieldStart = start;
+        for (int j = 0; j < types.length; j++) {
+            int s = fieldStart;
+            int e = fieldEnds[j];
+            fieldStart = e + 1;
+            // trim，与String.trim一致
+            while (s < e && (buf[s] & 0xff) <= ' ') {
+                s++;
+            }
+            while (e > s && (buf[e - 1] & 0xff) <= ' ') {
+                e--;
+            }
+            if (types[j] == Type.INT_TYPE) {
+                if (!parseInt(buf, s, e, rec, off)) {
+                    chunk.badLines.add(new String(buf, start, end - start, CHARSET));
+                    // 清掉已经写了一半的record，字符串的补齐部分要保持为0
+                    int recordStart = chunk.count * recordSize;
+                    Arrays.fill(rec, recordStart, recordStart + recordSize, (byte) 0);
+                    return;
+                }
+                off += 4;
+            } else {
+                int n = Math.min(e - s, Type.STRING_LEN);
+                putInt(rec, off, n);
+                // 剩余部分本来就是0，不用补齐
+                System.arraycopy(buf, s, rec, off + 4, n);
+                off += 4 + Type.STRING_LEN;
+            }
+        }
+        chunk.count++;
+    }
+
+    /**
+     * Parses a decimal int from buf[s, e) into rec at off, big-endian.
+     *
+     * @return false if the bytes are not a valid int
+     */
+    private static boolean parseInt(byte[] buf, int s, int e, byte[] rec, int off) {
+        boolean negative = false;
+        if (s < e && (buf[s] == '-' || buf[s] == '+')) {
+            negative = buf[s] == '-';
+            s++;
+        }
+        if (s == e) {
+            return false;
+        }
+        long v = 0;
+        for (int i = s; i < e; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                return false;
+            }
+            v = v * 10 + d;
+            if (v > (long) Integer.MAX_VALUE + 1) {
+                return false;
+            }
+        }
+        v = negative ? -v : v;
+        if (v > Integer.MAX_VALUE) {
+            return false;
+        }
+        putInt(rec, off, (int) v);
+        return true;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    // ------------------------------------------------------------------
+    // writing
+
+    /**
+     * Packs records into pages of the output format in a large buffer, and
+     * writes the buffer out whenever it is full.
+     */
+    private class PageWriter {
+        private final FileChannel out;
+        private final ByteBuffer buffer;
+        // 当前page在buffer中的起始位置
+        private int pageStart;
+        private long pages;
+        long rows;
+
+        // HEAP格式
+        private final int slotsPerPage;
+        private final int headerBytes;
+        private int slot;
+
+        // SLOTTED/PAX格式
+        private PackedPage packed;
+
+        PageWriter(FileChannel out) throws IOException {
+            this.out = out;
+            this.buffer = ByteBuffer.allocate(Math.max(1, WRITE_SIZE / pageSize) * pageSize);
+            this.slotsPerPage = (pageSize * 8) / (recordSize * 8 + 1);
+            this.headerBytes = (slotsPerPage + 7) / 8;
+            if (format == HeapFile.PageFormat.SLOTTED) {
+                packed = new SlottedPageBuilder();
+            } else if (format == HeapFile.PageFormat.PAX) {
+                packed = new PaxPageBuilder();
+            } else if (slotsPerPage == 0) {
+                throw new IOException("a " + recordSize + " byte record does not fit on a page");
+            }
+        }
+
+        void add(Chunk chunk) throws IOException {
+            for (int i = 0; i < chunk.count; i++) {
+                if (format == HeapFile.PageFormat.HEAP) {
+                    addRecord(chunk.records, i * recordSize);
+                } else {
+                    addPacked(chunk.records, i * recordSize);
+                }
+                rows++;
+            }
+        }
+
+        /**
+         * Copies a record into the next slot of the current page.
+         */
+        private void addRecord(byte[] records, int off) throws IOException {
+            byte[] page = buffer.array();
+            if (slot == 0) {
+                if (pageStart == page.length) {
+                    flush();
+                }
+                Arrays.fill(page, pageStart, pageStart + pageSize, (byte) 0);
+            }
+            System.arraycopy(records, off, page, pageStart + headerBytes + slot * recordSize, recordSize);
+            page[pageStart + slot / 8] |= (byte) (1 << (slot % 8));
+            if (++slot == slotsPerPage) {
+                nextPage();
+            }
+        }
+
+        /**
+         * Adds a record to the current SLOTTED or PAX page.
+         */
+        private void addPacked(byte[] records, int off) throws IOException {
+            if (!packed.add(records, off)) {
+                // 当前page已满，写出后换一个新的page
+                putPacked();
+                if (!packed.add(records, off)) {
+                    throw new IOException("record " + (rows + 1) + " does not fit on a page");
+                }
+            }
+        }
+
+        private void putPacked() throws IOException {
+            if (pageStart == buffer.capacity()) {
+                flush();
+            }
+            packed.writeTo(buffer.array(), pageStart);
+            packed.clear();
+            nextPage();
+        }
+
+        private void nextPage() {
+            pageStart += pageSize;
+            pages++;
+            slot = 0;
+        }
+
+        /**
+         * Writes out the last, partly filled page (or an empty page if the
+         * input had no rows) and whatever is buffered.
+         */
+        void finish() throws IOException {
+            if (format == HeapFile.PageFormat.HEAP) {
+                if (slot > 0) {
+                    nextPage();
+                } else if (pages == 0) {
+                    Arrays.fill(buffer.array(), pageStart, pageStart + pageSize, (byte) 0);
+                    nextPage();
+                }
+            } else if (!packed.isEmpty() || pages == 0) {
+                putPacked();
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.clear();
+            buffer.limit(pageStart);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            pageStart = 0;
+        }
+
+    }
+
+    /**
+     * A SLOTTED or PAX page being filled with records.
+     */
+    private interface PackedPage {
+        /**
+         * Appends the record at off of records.
+         *
+         * @return false if the record does not fit on the page
+         */
+        boolean add(byte[] records, int off);
+
+        boolean isEmpty();
+
+        /**
+         * Writes the page image to page at off.
+         */
+        void writeTo(byte[] page, int off);
+
+        /**
+         * Empties the page.
+         */
+        void clear();
+    }
+
+    /**
+     * Builds a page in the {@link SlottedPage} layout: records are put at
+     * the end of the page, growing towards the slot directory.
+     */
+    private class SlottedPageBuilder implements PackedPage {
+        private final byte[] page = new byte[pageSize];
+        private final ByteBuffer bb = ByteBuffer.wrap(page);
+        private int slots;
+        private int recordStart = pageSize;
+
+        public boolean add(byte[] records, int off) {
+            int len = 0;
+            int pos = off;
+            for (Type type : types) {
+                if (type == Type.INT_TYPE) {
+                    len += 4;
+                    pos += 4;
+                } else {
+                    len += 2 + getInt(records, pos);
+                    pos += 4 + Type.STRING_LEN;
+                }
+            }
+            if (recordStart - len < SlottedPage.HEADER_SIZE + (slots + 1) * SlottedPage.SLOT_SIZE) {
+                return false;
+            }
+            int start = recordStart - len;
+            int to = start;
+            for (Type type : types) {
+                if (type == Type.INT_TYPE) {
+                    System.arraycopy(records, off, page, to, 4);
+                    to += 4;
+                    off += 4;
+                } else {
+                    int n = getInt(records, off);
+                    bb.putShort(to, (short) n);
+                    System.arraycopy(records, off + 4, page, to + 2, n);
+                    to += 2 + n;
+                    off += 4 + Type.STRING_LEN;
+                }
+            }
+            bb.putShort(SlottedPage.HEADER_SIZE + slots * SlottedPage.SLOT_SIZE, (short) start);
+            bb.putShort(SlottedPage.HEADER_SIZE + slots * SlottedPage.SLOT_SIZE + 2, (short) len);
+            slots++;
+            recordStart = start;
+            bb.putInt(0, slots);
+            bb.putInt(4, recordStart);
+            return true;
+        }
+
+        public boolean isEmpty() {
+            return slots == 0;
+        }
+
+        public void writeTo(byte[] dst, int off) {
+            System.arraycopy(page, 0, dst, off, pageSize);
+        }
+
+        public void clear() {
+            Arrays.fill(page, (byte) 0);
+            slots = 0;
+            recordStart = pageSize;
+        }
+    }
+
+    /**
+     * Builds a page in the {@link PaxPage} layout. The int columns are kept
+     * as arrays with the statistics their encoding depends on, the string
+     * columns already encoded as their minipages.
+     */
+    private class PaxPageBuilder implements PackedPage {
+        private final int headerSize = 4 + 4 * types.length;
+        private int rows;
+        private final int[][] ints = new int[types.length][];
+        private final int[] min = new int[types.length];
+        private final int[] max = new int[types.length];
+        private final long[] maxZigzag = new long[types.length];
+        private final byte[][] strings = new byte[types.length][];
+        private final int[] stringBytes = new int[types.length];
+
+        PaxPageBuilder() {
+            for (int j = 0; j < types.length; j++) {
+                if (types[j] == Type.INT_TYPE) {
+                    ints[j] = new int[64];
+                } else {
+                    strings[j] = new byte[256];
+                }
+            }
+        }
+
+        public boolean add(byte[] records, int off) {
+            // 先算加上这条record之后编码的大小
+            int size = headerSize + (rows + 1 + 7) / 8;
+            int pos = off;
+            for (int j = 0; j < types.length; j++) {
+                if (types[j] == Type.INT_TYPE) {
+                    int v = getInt(records, pos);
+                    int lo = rows == 0 ? v : Math.min(min[j], v);
+                    int hi = rows == 0 ? v : Math.max(max[j], v);
+                    long zz = rows == 0 ? 0 : Math.max(maxZigzag[j], PaxPage.zigzag(v - ints[j][rows - 1]));
+                    size += PaxPage.intMinipageSize(rows + 1, lo, hi, zz);
+                    pos += 4;
+                } else {
+                    size += stringBytes[j] + 2 + getInt(records, pos);
+                    pos += 4 + Type.STRING_LEN;
+                }
+            }
+            if (size > pageSize) {
+                return false;
+            }
+            for (int j = 0; j < types.length; j++) {
+                if (types[j] == Type.INT_TYPE) {
+                    int v = getInt(records, off);
+                    if (rows == ints[j].length) {
+                        ints[j] = Arrays.copyOf(ints[j], rows * 2);
+                    }
+                    if (rows > 0) {
+                        maxZigzag[j] = Math.max(maxZigzag[j], PaxPage.zigzag(v - ints[j][rows - 1]));
+                    }
+                    min[j] = rows == 0 ? v : Math.min(min[j], v);
+                    max[j] = rows == 0 ? v : Math.max(max[j], v);
+                    ints[j][rows] = v;
+                    off += 4;
+                } else {
+                    int n = getInt(records, off);
+                    if (stringBytes[j] + 2 + n > strings[j].length) {
+                        strings[j] = Arrays.copyOf(strings[j], Math.max(strings[j].length * 2, stringBytes[j] + 2 + n));
+                    }
+                    strings[j][stringBytes[j]] = (byte) (n >>> 8);
+                    strings[j][stringBytes[j] + 1] = (byte) n;
+                    System.arraycopy(records, off + 4, strings[j], stringBytes[j] + 2, n);
+                    stringBytes[j] += 2 + n;
+                    off += 4 + Type.STRING_LEN;
+                }
+            }
+            rows++;
+            return true;
+        }
+
+        public boolean isEmpty() {
+            return rows == 0;
+        }
+
+        public void writeTo(byte[] dst, int off) {
+            Arrays.fill(dst, off, off + pageSize, (byte) 0);
+            if (rows == 0) {
+                return;
+            }
+            ByteBuffer out = ByteBuffer.wrap(dst, off, pageSize).slice();
+            out.putInt(0, rows);
+            // 所有行都是有效的
+            int pos = headerSize;
+            for (int i = 0; i < rows; i++) {
+                out.put(pos + i / 8, (byte) (out.get(pos + i / 8) | (1 << (i % 8))));
+            }
+            pos += (rows + 7) / 8;
+            for (int j = 0; j < types.length; j++) {
+                out.putInt(4 + 4 * j, pos);
+                if (types[j] == Type.INT_TYPE) {
+                    pos += PaxPage.writeIntMinipage(out, pos, ints[j], rows, min[j], max[j], maxZigzag[j]);
+                } else {
+                    System.arraycopy(strings[j], 0, dst, off + pos, stringBytes[j]);
+                    pos += stringBytes[j];
+                }
+            }
+        }
+
+        public void clear() {
+            rows = 0;
+            Arrays.fill(stringBytes, 0);
+        }
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+}
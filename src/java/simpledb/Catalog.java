@@ -17,6 +17,36 @@ import java.util.*;
 
 public class Catalog {
 
+    /**
+     * Table options understood by {@link #loadSchema}
+     */
+    private static final Set<String> KNOWN_OPTIONS = new HashSet<>(Arrays.asList("io", "format", "compression", "pagesize", "cache"));
+
+    /**
+     * How the {@link BufferPool} treats the pages of a table when it needs
+     * room, see {@link #setCachePriority}.
+     */
+    public enum CachePriority {
+        /**
+         * Pages are evicted as the replacement policy decides.
+         */
+        NORMAL,
+        /**
+         * Pages are only evicted when no page of a NORMAL table can be,
+         * e.g. for small tables joined by most queries, which large scans
+         * would otherwise push out.
+         */
+        HIGH,
+        /**
+         * The table is loaded into the pool at startup (see
+         * {@link BufferPool#loadPinnedTables}) and its pages are never
+         * evicted, as long as the pages of PINNED tables fit in all but a
+         * quarter of the pool; pages beyond that budget are treated as
+         * HIGH ones. Its pages take frames of the pool like any others.
+         */
+        PINNED
+    }
+
     private Map<Integer, Table> id2table;
 
     private Map<String, Integer> name2id;
@@ -117,6 +147,19 @@ public class Catalog {
         throw new NoSuchElementException();
     }
 
+    /**
+     * @return the page size of the table with the given id: its
+     * {@link HeapFile#getPageSize()} if it is a HeapFile, or else (also for
+     * unknown tables) the database default {@link BufferPool#getPageSize()}
+     */
+    public int getPageSize(int tableid) {
+        Table table = id2table.get(tableid);
+        if (null != table && table.getDbFile() instanceof HeapFile) {
+            return ((HeapFile) table.getDbFile()).getPageSize();
+        }
+        return BufferPool.getPageSize();
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         Table table = id2table.get(tableid);
@@ -131,6 +174,29 @@ public class Catalog {
         return id2table.keySet().iterator();
     }
 
+    /**
+     * Sets how the BufferPool treats the pages of a table when it needs
+     * room. Applies to the pages the pool reads in from then on; pages it
+     * has cached keep the priority they were read in with.
+     *
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void setCachePriority(int tableid, CachePriority priority) throws NoSuchElementException {
+        Table table = id2table.get(tableid);
+        if (null == table) {
+            throw new NoSuchElementException();
+        }
+        table.setCachePriority(priority);
+    }
+
+    /**
+     * @return the cache priority of a table; NORMAL for unknown tables
+     */
+    public CachePriority getCachePriority(int tableid) {
+        Table table = id2table.get(tableid);
+        return null != table ? table.getCachePriority() : CachePriority.NORMAL;
+    }
+
     public String getTableName(int id) {
         // some code goes here
         Table table = id2table.get(id);
@@ -151,6 +217,34 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line describes one table, stored in name.dat next to the catalog file:
+     * <pre>
+     *     name (field type [pk], field type, ...) [option=value ...]
+     * </pre>
+     * The optional space separated options after the field list configure how
+     * the table is stored and accessed. Supported options:
+     * <ul>
+     * <li>io=mmap : read pages through a memory mapping of the file
+     * (see {@link HeapFile#HeapFile(File, TupleDesc, boolean)}); io=file is the default.</li>
+     * <li>format=slotted : the table's pages use the variable-length
+     * {@link SlottedPage} format, which stores strings compactly;
+     * format=pax stores each column separately ({@link PaxPage}), for
+     * analytic tables whose scans only read a few columns; format=heap
+     * (fixed-width {@link HeapPage}s) is the default. The data file must
+     * have been converted with the same format.</li>
+     * <li>compression=zlib : pages are stored compressed, see
+     * {@link CompressedHeapFile}; compression=none is the default. Cannot be
+     * combined with io=mmap.</li>
+     * <li>pagesize=16384 : the table's page size in bytes (a multiple of 8);
+     * the default is {@link BufferPool#getPageSize()}. Larger pages suit
+     * tables with wide rows. The data file must have been converted with the
+     * same page size.</li>
+     * <li>cache=high : the BufferPool keeps the table's pages in preference
+     * to those of other tables; cache=pinned also loads the whole table at
+     * startup and keeps it resident, see {@link CachePriority}.
+     * cache=normal is the default.</li>
+     * </ul>
      *
      * @param catalogFile
      */
@@ -196,9 +290,54 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                Map<String, String> options = parseOptions(line.substring(line.indexOf(")") + 1));
+                String io = options.getOrDefault("io", "file");
+                if (!io.equals("file") && !io.equals("mmap")) {
+                    System.out.println("Unknown io mode " + io);
+                    System.exit(0);
+                }
+                String format = options.getOrDefault("format", "heap");
+                if (!format.equals("heap") && !format.equals("slotted") && !format.equals("pax")) {
+                    System.out.println("Unknown page format " + format);
+                    System.exit(0);
+                }
+                String compression = options.getOrDefault("compression", "none");
+                if (!compression.equals("none") && !compression.equals("zlib")) {
+                    System.out.println("Unknown compression " + compression);
+                    System.exit(0);
+                }
+                int pageSize = BufferPool.getPageSize();
+                if (options.containsKey("pagesize")) {
+                    try {
+                        pageSize = Integer.parseInt(options.get("pagesize"));
+                    } catch (NumberFormatException e) {
+                        pageSize = -1;
+                    }
+                    if (pageSize <= 0 || pageSize % 8 != 0) {
+                        System.out.println("Invalid page size " + options.get("pagesize"));
+                        System.exit(0);
+                    }
+                }
+                String cache = options.getOrDefault("cache", "normal");
+                if (!cache.equals("normal") && !cache.equals("high") && !cache.equals("pinned")) {
+                    System.out.println("Unknown cache priority " + cache);
+                    System.exit(0);
+                }
+                File dataFile = new File(baseFolder + "/" + name + ".dat");
+                HeapFile.PageFormat pageFormat = HeapFile.PageFormat.valueOf(format.toUpperCase());
+                HeapFile tabHf;
+                if (compression.equals("zlib")) {
+                    if (io.equals("mmap")) {
+                        System.out.println("io=mmap cannot be used with compression=" + compression);
+                        System.exit(0);
+                    }
+                    tabHf = new CompressedHeapFile(dataFile, t, pageFormat, pageSize);
+                } else {
+                    tabHf = new HeapFile(dataFile, t, io.equals("mmap"), pageFormat, pageSize);
+                }
 //                System.out.println(baseFolder + "/" + name + ".dat");
                 addTable(tabHf, name, primaryKey);
+                setCachePriority(tabHf.getId(), CachePriority.valueOf(cache.toUpperCase()));
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
@@ -210,10 +349,31 @@ public class Catalog {
         }
     }
 
+    /**
+     * Parses the "key=value key=value" table options that may follow the
+     * field list of a catalog line.
+     */
+    private static Map<String, String> parseOptions(String opts) {
+        Map<String, String> options = new HashMap<>();
+        for (String opt : opts.trim().split("\\s+")) {
+            if (opt.isEmpty()) {
+                continue;
+            }
+            String[] kv = opt.split("=", 2);
+            if (kv.length != 2 || !KNOWN_OPTIONS.contains(kv[0].toLowerCase())) {
+                System.out.println("Unknown table option " + opt);
+                System.exit(0);
+            }
+            options.put(kv[0].toLowerCase(), kv[1].trim().toLowerCase());
+        }
+        return options;
+    }
+
     public static class Table {
         private DbFile dbFile;
         private String name;
         private String pkeyField;
+        private volatile CachePriority cachePriority = CachePriority.NORMAL;
 
         public Table(DbFile dbFile, String name, String pkeyField) {
             this.dbFile = dbFile;
@@ -247,6 +407,15 @@ public class Catalog {
             this.pkeyField = pkeyField;
             return this;
         }
+
+        public CachePriority getCachePriority() {
+            return cachePriority;
+        }
+
+        public Table setCachePriority(CachePriority cachePriority) {
+            this.cachePriority = cachePriority;
+            return this;
+        }
     }
 }
 
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CLOCK (second chance): the pages sit in a ring swept by a clock hand, and
+ * a hit only sets the page's reference bit, without any lock. When the pool
+ * needs to evict, the hand clears the bits of the pages it passes and stops
+ * at the first page whose bit was already clear.
+ * <p>
+ * A page read in starts with its bit clear, so pages used only once (e.g.
+ * by a scan) are taken on the hand's first pass, while pages used again
+ * survive one more round.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final Map<PageId, AtomicBoolean> referenced = new ConcurrentHashMap<>();
+
+    // 环形缓冲，null表示空位
+    private final List<PageId> ring = new ArrayList<>();
+    private final Map<PageId, Integer> slotOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand;
+
+    public synchronized void pageAdded(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            return;
+        }
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = ring.size();
+            ring.add(pid);
+        } else {
+            ring.set(slot, pid);
+        }
+        slotOf.put(pid, slot);
+        referenced.put(pid, new AtomicBoolean());
+    }
+
+    public void pageAccessed(PageId pid) {
+        AtomicBoolean bit = referenced.get(pid);
+        if (bit != null) {
+            bit.set(true);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid, boolean evicted) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            ring.set(slot, null);
+            freeSlots.push(slot);
+            referenced.remove(pid);
+        }
+    }
+
+    /**
+     * Pages whose reference bit is set come first; within each group, the
+     * pages the hand reaches last come first. Leaves the bits alone.
+     */
+    public synchronized List<PageId> ranking() {
+        List<PageId> used = new ArrayList<>();
+        List<PageId> unused = new ArrayList<>();
+        for (int i = 1; i <= ring.size(); i++) {
+            PageId pid = ring.get(Math.floorMod(hand - i, ring.size()));
+            if (pid != null) {
+                (referenced.get(pid).get() ? used : unused).add(pid);
+            }
+        }
+        used.addAll(unused);
+        return used;
+    }
+
+    /**
+     * Sweeps the hand, for at most two rounds, i.e. until every bit has
+     * been cleared once and every page has been offered.
+     */
+    public Iterator<PageId> candidates() {
+        return new Iterator<PageId>() {
+            private int steps = -1;
+            private PageId next;
+
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                synchronized (ClockPolicy.this) {
+                    if (steps < 0) {
+                        steps = 2 * ring.size();
+                    }
+                    while (steps > 0 && !ring.isEmpty()) {
+                        steps--;
+                        if (hand >= ring.size()) {
+                            hand = 0;
+                        }
+                        PageId pid = ring.get(hand++);
+                        if (pid == null || referenced.get(pid).getAndSet(false)) {
+                            continue;
+                        }
+                        next = pid;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PageId ret = next;
+                next = null;
+                return ret;
+            }
+        };
+    }
+}
@@ -0,0 +1,652 @@
+package simpledb;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are stored zlib-compressed
+ * (with the bundled jzlib) instead of as raw page-size blocks. Pages are
+ * compressed in {@link #writePage} and decompressed in {@link #readPage}, so
+ * the BufferPool and everything above it only ever see ordinary,
+ * decompressed pages of the file's {@link HeapFile.PageFormat}.
+ * <p>
+ * Compressed pages have different sizes, so the data file is a sequence of
+ * compressed page images and a page-offset directory, stored next to it
+ * ("table.dat" -> "table.dat.dir"), maps every page number to the offset and
+ * length of its image. The directory has one 12-byte entry (long offset,
+ * int length) per page and is kept in memory. A rewritten page never
+ * overwrites its current image: the new image is written to a free extent
+ * of the data file (the smallest one it fits in) or appended, and only then
+ * is the directory entry switched to it, so a write cut short leaves the
+ * entry pointing at the old, intact image. The old image's extent is then
+ * free for later writes, once no read that may still be reading it is in
+ * flight. The free extents are kept in memory and rebuilt from the
+ * directory when the file is opened. An image of exactly the page size is
+ * stored uncompressed (pages that don't compress well).
+ * <p>
+ * The file keeps {@link Stats} on how well its pages compress and how much
+ * time the codec takes.
+ *
+ * @see HeapFile
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    private static final int DIR_ENTRY_SIZE = 12;
+
+    private final File dirFile;
+    private transient FileChannel dirChannel;
+
+    // page offset directory: page i is stored at offsets[i], lengths[i] bytes
+    private long[] offsets;
+    private int[] lengths;
+    private int numPages;
+    // 数据文件的末尾，新的page image追加在这里
+    private long end;
+
+    // 没有被任何目录项引用的空闲区间
+    private final FreeExtents free = new FreeExtents();
+    // 被替换下来的旧image，可能还有读在读它们，没有读在进行时才放回free
+    private final List<long[]> retired = new ArrayList<>();
+    // 已经取了目录项、还没读完image的读
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final Stats stats = new Stats();
+
+    /**
+     * Opens a compressed heap file. The directory is read from the sidecar
+     * file if there is one; a missing directory is only valid for an empty
+     * data file.
+     *
+     * @param f      the file holding the compressed page images
+     * @param td     the schema of the tuples stored in the file
+     * @param format the format of the (decompressed) pages
+     */
+    public CompressedHeapFile(File f, TupleDesc td, HeapFile.PageFormat format) {
+        this(f, td, format, BufferPool.getPageSize());
+    }
+
+    /**
+     * Same as {@link #CompressedHeapFile(File, TupleDesc, HeapFile.PageFormat)}
+     * for (decompressed) pages of pageSize bytes.
+     */
+    public CompressedHeapFile(File f, TupleDesc td, HeapFile.PageFormat format, int pageSize) {
+        super(f, td, false, format, pageSize);
+        this.dirFile = directoryFor(f);
+        try {
+            loadDirectory();
+        } catch (IOException e) {
+            throw new RuntimeException("could not open compressed heap file " + f, e);
+        }
+    }
+
+    /**
+     * @return the sidecar file that holds the page directory of dataFile
+     */
+    public static File directoryFor(File dataFile) {
+        return new File(dataFile.getPath() + ".dir");
+    }
+
+    private synchronized void loadDirectory() throws IOException {
+        offsets = new long[16];
+        lengths = new int[16];
+        numPages = 0;
+        end = getFile().length();
+        if (!dirFile.exists()) {
+            if (end != 0) {
+                throw new IOException("missing page directory " + dirFile);
+            }
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dirFile)))) {
+            int n = (int) (dirFile.length() / DIR_ENTRY_SIZE);
+            for (int i = 0; i < n; i++) {
+                setEntry(i, in.readLong(), in.readInt());
+            }
+        }
+        rebuildFreeExtents();
+    }
+
+    /**
+     * Finds the extents of the data file before end that no directory entry
+     * refers to.
+     */
+    private void rebuildFreeExtents() {
+        free.clear();
+        retired.clear();
+        Integer[] order = new Integer[numPages];
+        for (int i = 0; i < numPages; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> offsets[i]));
+        long pos = 0;
+        for (int i : order) {
+            if (lengths[i] == 0) {
+                continue;
+            }
+            if (offsets[i] > pos) {
+                free.add(pos, (int) (offsets[i] - pos));
+            }
+            pos = Math.max(pos, offsets[i] + lengths[i]);
+        }
+        if (end > pos) {
+            free.add(pos, (int) (end - pos));
+        }
+    }
+
+    private void setEntry(int pgNo, long offset, int length) {
+        if (pgNo >= offsets.length) {
+            int cap = Math.max(pgNo + 1, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+        }
+        offsets[pgNo] = offset;
+        lengths[pgNo] = length;
+        numPages = Math.max(numPages, pgNo + 1);
+    }
+
+    @Override
+    public synchronized int numPages() {
+        // 构造HeapFile时还没有加载目录
+        return offsets == null ? 0 : numPages;
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid) {
+        try {
+            long offset;
+            int length;
+            synchronized (this) {
+                if (pid.pageNumber() < 0 || pid.pageNumber() >= numPages) {
+                    throw new IllegalArgumentException("page " + pid.pageNumber() + " is not in " + getFile());
+                }
+                offset = offsets[pid.pageNumber()];
+                length = lengths[pid.pageNumber()];
+                reads.incrementAndGet();
+            }
+            ByteBuffer image = ByteBuffer.allocate(length);
+            try {
+                readFully(image, offset);
+            } finally {
+                reads.decrementAndGet();
+            }
+            return newPage((HeapPageId) pid, ByteBuffer.wrap(decompress(image.array(), length)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Decompresses page pid into frame.
+     */
+    @Override
+    Page readPage(PageId pid, ByteBuffer frame) {
+        Page page = readPage(pid);
+        if (page != null) {
+            ((TuplePage) page).moveTo(frame);
+        }
+        return page;
+    }
+
+    /**
+     * Reads count pages starting at firstPgNo. Pages whose compressed
+     * images lie back to back in the data file are read with one read.
+     */
+    @Override
+    public List<Page> readPages(int firstPgNo, int count) {
+        long[] offs;
+        int[] lens;
+        synchronized (this) {
+            if (firstPgNo < 0 || firstPgNo >= numPages) {
+                throw new IllegalArgumentException("page " + firstPgNo + " is not in " + getFile());
+            }
+            count = Math.min(count, numPages - firstPgNo);
+            offs = Arrays.copyOfRange(offsets, firstPgNo, firstPgNo + count);
+            lens = Arrays.copyOfRange(lengths, firstPgNo, firstPgNo + count);
+            reads.incrementAndGet();
+        }
+        List<Page> pages = new ArrayList<>(count);
+        try {
+            int i = 0;
+            while (i < count) {
+                int j = i + 1;
+                long span = lens[i];
+                while (j < count && offs[j] == offs[j - 1] + lens[j - 1]) {
+                    span += lens[j];
+                    j++;
+                }
+                ByteBuffer run = ByteBuffer.allocate((int) span);
+                readFully(run, offs[i]);
+                byte[] bytes = run.array();
+                int pos = 0;
+                for (int k = i; k < j; k++) {
+                    byte[] image = Arrays.copyOfRange(bytes, pos, pos + lens[k]);
+                    pos += lens[k];
+                    pages.add(newPage(new HeapPageId(getId(), firstPgNo + k), ByteBuffer.wrap(decompress(image, lens[k]))));
+                }
+                i = j;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            reads.decrementAndGet();
+        }
+        return pages;
+    }
+
+    /**
+     * Writes the pages one by one: their compressed images don't line up
+     * with the page numbers, so there is nothing to coalesce.
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        for (Page page : pages) {
+            writePage(page);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public void writePage(Page page) throws IOException {
+        int pgNo = page.getId().pageNumber();
+        byte[] image = compress(page.getPageData());
+        synchronized (this) {
+            if (reads.get() == 0) {
+                for (long[] extent : retired) {
+                    free.add(extent[0], (int) extent[1]);
+                }
+                retired.clear();
+            }
+            // 不覆盖原来的image：写到空闲区间或者文件末尾
+            long offset = free.allocate(image.length);
+            if (offset < 0) {
+                offset = end;
+                end += image.length;
+            }
+            ByteBuffer data = ByteBuffer.wrap(image);
+            FileChannel fc = channel();
+            while (data.hasRemaining()) {
+                fc.write(data, offset + data.position());
+            }
+            // 先写page，再写目录项
+            for (int i = numPages; i < pgNo; i++) {
+                // never written: an empty page
+                writeEntry(i, 0, 0);
+            }
+            if (pgNo < numPages && lengths[pgNo] > 0) {
+                retired.add(new long[]{offsets[pgNo], lengths[pgNo]});
+            }
+            writeEntry(pgNo, offset, image.length);
+        }
+        freeSpaceMap().persist(pgNo, ((TuplePage) page).getFreeUnits());
+    }
+
+    /**
+     * Blank pages take no space in the data file: they are just directory
+     * entries of length 0.
+     */
+    @Override
+    synchronized void writeBlankPages(int first, int n) throws IOException {
+        for (int i = first; i < first + n; i++) {
+            writeEntry(i, 0, 0);
+        }
+    }
+
+    /**
+     * Cuts the directory to its first n entries, and the data file after the
+     * last image still referenced by them. The extents of the images cut
+     * off before that become free.
+     */
+    @Override
+    synchronized void truncateStorage(int n) throws IOException {
+        long last = 0;
+        for (int i = 0; i < Math.min(n, numPages); i++) {
+            last = Math.max(last, offsets[i] + lengths[i]);
+        }
+        numPages = Math.min(n, numPages);
+        dirChannel().truncate((long) numPages * DIR_ENTRY_SIZE);
+        end = last;
+        channel().truncate(end);
+        rebuildFreeExtents();
+    }
+
+    private void writeEntry(int pgNo, long offset, int length) throws IOException {
+        setEntry(pgNo, offset, length);
+        ByteBuffer entry = ByteBuffer.allocate(DIR_ENTRY_SIZE);
+        entry.putLong(offset).putInt(length);
+        entry.flip();
+        FileChannel fc = dirChannel();
+        while (entry.hasRemaining()) {
+            fc.write(entry, (long) pgNo * DIR_ENTRY_SIZE + entry.position());
+        }
+    }
+
+    private FileChannel dirChannel() throws IOException {
+        if (dirChannel == null || !dirChannel.isOpen()) {
+            dirChannel = new RandomAccessFile(dirFile, "rw").getChannel();
+        }
+        return dirChannel;
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        FileChannel fc = channel();
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException("truncated page image in " + getFile());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        super.close();
+        if (dirChannel != null) {
+            dirChannel.close();
+            dirChannel = null;
+        }
+    }
+
+    /**
+     * Compresses a page image. Returns the image itself if it does not get
+     * any smaller.
+     */
+    private byte[] compress(byte[] page) throws IOException {
+        long start = System.nanoTime();
+        byte[] out = deflate(page);
+        if (out.length >= getPageSize()) {
+            out = page;
+        }
+        stats.compressNanos.addAndGet(System.nanoTime() - start);
+        stats.pagesWritten.incrementAndGet();
+        stats.bytesWritten.addAndGet(out.length);
+        return out;
+    }
+
+    private byte[] decompress(byte[] image, int length) throws IOException {
+        long start = System.nanoTime();
+        byte[] page;
+        if (length == 0) {
+            // a page that was never written
+            page = HeapPage.createEmptyPageData(getPageSize());
+        } else if (length == getPageSize()) {
+            page = image;
+        } else {
+            page = inflate(image, length, getPageSize());
+        }
+        stats.decompressNanos.addAndGet(System.nanoTime() - start);
+        stats.pagesRead.incrementAndGet();
+        stats.bytesRead.addAndGet(length);
+        return page;
+    }
+
+    static byte[] deflate(byte[] in) throws IOException {
+        return deflate(in, JZlib.Z_DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Deflates in at the given jzlib compression level, e.g.
+     * {@link JZlib#Z_BEST_SPEED}.
+     */
+    static byte[] deflate(byte[] in, int level) throws IOException {
+        ZStream z = new ZStream();
+        byte[] out = new byte[in.length + in.length / 100 + 64];
+        check(z, z.deflateInit(level), "deflateInit");
+        z.next_in = in;
+        z.next_in_index = 0;
+        z.avail_in = in.length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err = z.deflate(JZlib.Z_FINISH);
+        if (err != JZlib.Z_STREAM_END) {
+            check(z, err, "deflate");
+            throw new IOException("deflate: output buffer too small");
+        }
+        int len = (int) z.total_out;
+        check(z, z.deflateEnd(), "deflateEnd");
+        return Arrays.copyOf(out, len);
+    }
+
+    static byte[] inflate(byte[] in, int length, int pageSize) throws IOException {
+        ZStream z = new ZStream();
+        byte[] out = new byte[pageSize];
+        check(z, z.inflateInit(), "inflateInit");
+        z.next_in = in;
+        z.next_in_index = 0;
+        z.avail_in = length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err;
+        while ((err = z.inflate(JZlib.Z_NO_FLUSH)) != JZlib.Z_STREAM_END) {
+            check(z, err, "inflate");
+            if (z.avail_in == 0 || z.avail_out == 0) {
+                throw new IOException("inflate: corrupt page image");
+            }
+        }
+        if (z.total_out != out.length) {
+            throw new IOException("inflate: page image has " + z.total_out + " bytes");
+        }
+        check(z, z.inflateEnd(), "inflateEnd");
+        return out;
+    }
+
+    private static void check(ZStream z, int err, String op) throws IOException {
+        if (err != JZlib.Z_OK) {
+            throw new IOException(op + " failed (" + err + "): " + z.msg);
+        }
+    }
+
+    /**
+     * Compresses a file of raw pages of the default page size (as written by
+     * {@link HeapFileEncoder}) into a compressed heap file and its
+     * directory.
+     *
+     * @param heapFile the uncompressed input file
+     * @param outFile  the compressed file to write
+     */
+    public static void compressFile(File heapFile, File outFile) throws IOException {
+        compressFile(heapFile, outFile, BufferPool.getPageSize());
+    }
+
+    /**
+     * Same as {@link #compressFile(File, File)} for pages of pageSize bytes.
+     */
+    public static void compressFile(File heapFile, File outFile, int pageSize) throws IOException {
+        FreeSpaceMap.discard(outFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+             DataOutputStream dir = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(directoryFor(outFile))))) {
+            long numPages = (heapFile.length() + pageSize - 1) / pageSize;
+            long offset = 0;
+            byte[] page = new byte[pageSize];
+            for (long i = 0; i < numPages; i++) {
+                Arrays.fill(page, (byte) 0);
+                int n = 0;
+                while (n < page.length) {
+                    int r = in.read(page, n, page.length - n);
+                    if (r < 0) {
+                        break;
+                    }
+                    n += r;
+                }
+                byte[] image = deflate(page);
+                if (image.length >= pageSize) {
+                    image = page;
+                }
+                out.write(image);
+                dir.writeLong(offset);
+                dir.writeInt(image.length);
+                offset += image.length;
+            }
+        }
+    }
+
+    /**
+     * @return the compression and codec statistics of this file
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the number of bytes the compressed page images take up on disk
+     */
+    public synchronized long getStoredBytes() {
+        long total = 0;
+        for (int i = 0; i < numPages; i++) {
+            total += lengths[i];
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of bytes of the data file that hold no current page
+     * image
+     */
+    public synchronized long getFreeBytes() {
+        long total = free.bytes();
+        for (long[] extent : retired) {
+            total += extent[1];
+        }
+        return total;
+    }
+
+    /**
+     * @return the page size * numPages() divided by the compressed size of the
+     * pages, i.e. how many times smaller the file is than uncompressed
+     */
+    public double getCompressionRatio() {
+        long stored = getStoredBytes();
+        return stored == 0 ? 1.0 : (double) numPages() * getPageSize() / stored;
+    }
+
+    /**
+     * The free extents of a data file, by offset to merge neighbours and by
+     * length to find the smallest one an image fits in. Not thread safe.
+     */
+    static class FreeExtents {
+        private final TreeMap<Long, Integer> byOffset = new TreeMap<>();
+        // 长度放在高位、偏移放在低位，按长度排序
+        private final TreeSet<Long> byLength = new TreeSet<>();
+
+        private static long key(long offset, int length) {
+            return ((long) length << 40) | offset;
+        }
+
+        /**
+         * Marks the extent of length bytes at offset as free, merging it
+         * with the free extents right before and after it.
+         */
+        void add(long offset, int length) {
+            Map.Entry<Long, Integer> before = byOffset.floorEntry(offset);
+            if (before != null && before.getKey() + before.getValue() == offset) {
+                remove(before.getKey(), before.getValue());
+                offset = before.getKey();
+                length += before.getValue();
+            }
+            Integer after = byOffset.get(offset + length);
+            if (after != null) {
+                remove(offset + length, after);
+                length += after;
+            }
+            byOffset.put(offset, length);
+            byLength.add(key(offset, length));
+        }
+
+        /**
+         * Takes length bytes off the smallest free extent they fit in.
+         *
+         * @return the offset of the bytes, or -1 if no free extent is large
+         * enough
+         */
+        long allocate(int length) {
+            Long k = byLength.ceiling(key(0, length));
+            if (k == null) {
+                return -1;
+            }
+            long offset = k & ((1L << 40) - 1);
+            int size = (int) (k >>> 40);
+            remove(offset, size);
+            if (size > length) {
+                byOffset.put(offset + length, size - length);
+                byLength.add(key(offset + length, size - length));
+            }
+            return offset;
+        }
+
+        private void remove(long offset, int length) {
+            byOffset.remove(offset);
+            byLength.remove(key(offset, length));
+        }
+
+        long bytes() {
+            long total = 0;
+            for (int length : byOffset.values()) {
+                total += length;
+            }
+            return total;
+        }
+
+        void clear() {
+            byOffset.clear();
+            byLength.clear();
+        }
+    }
+
+    /**
+     * Counters of the pages a CompressedHeapFile compressed and
+     * decompressed, and the time spent doing so.
+     */
+    public static class Stats {
+        final AtomicLong pagesRead = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong decompressNanos = new AtomicLong();
+        final AtomicLong pagesWritten = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicLong compressNanos = new AtomicLong();
+
+        public long getPagesRead() {
+            return pagesRead.get();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        public long getDecompressNanos() {
+            return decompressNanos.get();
+        }
+
+        public long getPagesWritten() {
+            return pagesWritten.get();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        public long getCompressNanos() {
+            return compressNanos.get();
+        }
+
+        public String toString() {
+            return String.format("read %d pages (%d bytes, %.1f ms decompressing), wrote %d pages (%d bytes, %.1f ms compressing)",
+                    getPagesRead(), getBytesRead(), getDecompressNanos() / 1e6,
+                    getPagesWritten(), getBytesWritten(), getCompressNanos() / 1e6);
+        }
+    }
+
+    public String toString() {
+        return String.format("%s: %d pages, %d bytes on disk, ratio %.2f; %s",
+                getFile().getName(), numPages(), getStoredBytes(), getCompressionRatio(), stats);
+    }
+}
@@ -0,0 +1,263 @@
+package simpledb;
+
+import com.jcraft.jzlib.JZlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompressedPageCache is an optional second tier between the BufferPool and
+ * disk: clean pages the pool evicts are kept here deflated (with the
+ * bundled jzlib, at its fastest level), and a miss in the pool looks here
+ * before it reads from the file. A working set a few times the size of the
+ * pool then mostly costs an inflate per miss instead of a disk read. See
+ * {@link BufferPool#enableSecondTier}.
+ * <p>
+ * The tier is exclusive: a page that is read back into the pool leaves the
+ * tier, so a page is cached in at most one of them. The pool drops a page's
+ * copy here whenever it writes or discards the page, so the tier never
+ * holds anything older than the file. When the compressed images exceed the
+ * tier's capacity, the pages that have been here longest go first.
+ * <p>
+ * The pool evicts under a lock of its own but compresses outside it: it
+ * {@link #reserve reserves} the page's place under the lock and
+ * {@link #put(Page, long) puts} it afterwards. Reading the page back,
+ * writing it or discarding it in between cancels the reservation, so a
+ * late put never brings back a version older than the file.
+ * <p>
+ * Only pages of {@link HeapFile}s are kept.
+ */
+public class CompressedPageCache {
+
+    private final long capacityBytes;
+    private long usedBytes;
+
+    // 压缩后的page，按放入的先后排列
+    private final LinkedHashMap<PageId, byte[]> images = new LinkedHashMap<>();
+    // 已经驱逐、还没压缩放入的page，值是reserve给出的编号
+    private final Map<PageId, Long> reserved = new HashMap<>();
+    private long reservations;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong pagesPut = new AtomicLong();
+    private final AtomicLong bytesPut = new AtomicLong();
+    private final AtomicLong compressedBytesPut = new AtomicLong();
+
+    /**
+     * @param capacityBytes the memory the compressed images may take
+     */
+    public CompressedPageCache(long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacityBytes);
+        }
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Keeps a compressed copy of page, which must be clean, replacing any
+     * older copy.
+     */
+    public void put(Page page) {
+        put(page, reserve(page.getId()));
+    }
+
+    /**
+     * Reserves the place of page pid, which is leaving the pool, for a
+     * {@link #put(Page, long)} that follows.
+     *
+     * @return the reservation to pass to put
+     */
+    public synchronized long reserve(PageId pid) {
+        reserved.put(pid, ++reservations);
+        return reservations;
+    }
+
+    /**
+     * Keeps a compressed copy of page, which must be clean, replacing any
+     * older copy, unless the reservation has been cancelled because the
+     * page was taken, invalidated or reserved again since. The page is
+     * compressed before the tier is locked.
+     *
+     * @param reservation what {@link #reserve} returned for the page
+     */
+    public void put(Page page, long reservation) {
+        PageId pid = page.getId();
+        byte[] image = compress(page);
+        synchronized (this) {
+            Long r = reserved.get(pid);
+            if (r == null || r != reservation) {
+                return;
+            }
+            reserved.remove(pid);
+            if (image == null) {
+                return;
+            }
+            remove(pid);
+            if (image.length > capacityBytes) {
+                return;
+            }
+            images.put(pid, image);
+            usedBytes += image.length;
+            Iterator<Map.Entry<PageId, byte[]>> it = images.entrySet().iterator();
+            while (usedBytes > capacityBytes) {
+                usedBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the image of page to keep here, or null if page is not a
+     * HeapFile's or cannot be compressed
+     */
+    private byte[] compress(Page page) {
+        try {
+            if (!(Database.getCatalog().getDbFile(page.getId().getTableId()) instanceof HeapFile)) {
+                return null;
+            }
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        byte[] data = page.getPageData();
+        byte[] image;
+        try {
+            image = CompressedHeapFile.deflate(data, JZlib.Z_BEST_SPEED);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (image.length >= data.length) {
+            // 压缩不了的page原样保存
+            image = data;
+        }
+        pagesPut.incrementAndGet();
+        bytesPut.addAndGet(data.length);
+        compressedBytesPut.addAndGet(image.length);
+        return image;
+    }
+
+    /**
+     * Removes page pid from the tier and returns it.
+     *
+     * @return the page, or null if it is not here
+     */
+    public Page take(PageId pid) {
+        byte[] image;
+        synchronized (this) {
+            reserved.remove(pid);
+            image = remove(pid);
+        }
+        if (image == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        HeapFile file = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
+        try {
+            byte[] data = image.length == file.getPageSize() ? image
+                    : CompressedHeapFile.inflate(image, image.length, file.getPageSize());
+            Page page = file.newPage((HeapPageId) pid, ByteBuffer.wrap(data));
+            hits.incrementAndGet();
+            return page;
+        } catch (IOException e) {
+            e.printStackTrace();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Drops the copy of page pid, if there is one, e.g. because the page
+     * has been written.
+     */
+    public synchronized void invalidate(PageId pid) {
+        reserved.remove(pid);
+        remove(pid);
+    }
+
+    private byte[] remove(PageId pid) {
+        byte[] image = images.remove(pid);
+        if (image != null) {
+            usedBytes -= image.length;
+        }
+        return image;
+    }
+
+    /**
+     * @return whether page pid is here
+     */
+    public synchronized boolean contains(PageId pid) {
+        return images.containsKey(pid);
+    }
+
+    /**
+     * @return the number of pages here
+     */
+    public synchronized int size() {
+        return images.size();
+    }
+
+    /**
+     * @return the memory the compressed images take, in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the memory the compressed images may take, in bytes
+     */
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * @return the number of pool misses served from here
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of pool misses that went on to disk
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of the pool's misses served from here
+     */
+    public double getHitRatio() {
+        long n = getHits() + getMisses();
+        return n == 0 ? 0 : (double) getHits() / n;
+    }
+
+    /**
+     * @return the number of pages the pool has put here
+     */
+    public long getPagesPut() {
+        return pagesPut.get();
+    }
+
+    /**
+     * @return the average size of a page here relative to its size
+     * uncompressed
+     */
+    public double getCompressionRatio() {
+        long n = bytesPut.get();
+        return n == 0 ? 0 : (double) compressedBytesPut.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("second tier: %d pages in %d/%d bytes (%.0f%% of their size), %d hits, %d misses, hit ratio %.2f",
+                size(), getUsedBytes(), capacityBytes, 100 * getCompressionRatio(), getHits(), getMisses(), getHitRatio());
+    }
+}
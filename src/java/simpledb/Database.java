@@ -57,13 +57,54 @@ public class Database {
      * buffer pool and return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        stopBackgroundWriter();
         _instance._bufferpool = new BufferPool(pages);
         return _instance._bufferpool;
     }
 
+    /**
+     * Create a new instance of the buffer pool with the given replacement
+     * policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policy) {
+        stopBackgroundWriter();
+        _instance._bufferpool = new BufferPool(pages, policy);
+        return _instance._bufferpool;
+    }
+
+    /**
+     * Create a new instance of the buffer pool with the given replacement
+     * policy, keeping the bytes of its pages off-heap if offHeap is set,
+     * and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policy, boolean offHeap) {
+        stopBackgroundWriter();
+        _instance._bufferpool = new BufferPool(pages, policy, offHeap);
+        return _instance._bufferpool;
+    }
+
+    /**
+     * Resizes the live buffer pool, keeping its pages and locks, see
+     * {@link BufferPool#resize}
+     */
+    public static BufferPool.Stats resizeBufferPool(int pages) {
+        return _instance._bufferpool.resize(pages);
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
+        stopBackgroundWriter();
         _instance = new Database();
     }
 
+    // 替换buffer pool之前，先把还没写回的page写完
+    private static void stopBackgroundWriter() {
+        try {
+            _instance._bufferpool.stopBackgroundWriter();
+            _instance._bufferpool.stopHotPageSaver();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -43,6 +43,28 @@ public interface DbFile extends Serializable {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all of tuples into the file on behalf of transaction tid, like
+     * calling {@link #insertTuple} for each of them. Implementations can
+     * fill pages in bulk instead; the default just inserts the tuples one at
+     * a time.
+     *
+     * @param tid    The transaction performing the update
+     * @param tuples The tuples to add. Each is updated to reflect where it is
+     *               now stored.
+     * @return the pages that were modified, each listed once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashSet<Page> pages = new LinkedHashSet<>();
+        while (tuples.hasNext()) {
+            pages.addAll(insertTuple(tid, tuples.next()));
+        }
+        return new ArrayList<>(pages);
+    }
+
     /**
      * Removes the specifed tuple from the file on behalf of the specified
      * transaction.
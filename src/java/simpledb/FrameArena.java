@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * FrameArena is a large block of off-heap memory, allocated once with
+ * {@link ByteBuffer#allocateDirect}, that is cut into fixed-size frames for
+ * the bytes of cached pages. A BufferPool created with an arena keeps the
+ * bytes of its clean pages in the arena instead of in a byte array per page,
+ * so the garbage collector does not have to trace (or copy) the cache, and
+ * its pauses no longer grow with the size of the pool.
+ * <p>
+ * A direct buffer holds at most 2 GB, so the arena is made of chunks of up
+ * to {@link #CHUNK_BYTES}. Frames are numbered from 0; {@link #allocate}
+ * hands out free frames in the order they were freed, so that a frame is
+ * reused as late as possible after its page left the pool.
+ */
+public class FrameArena {
+
+    /**
+     * Maximum size in bytes of one direct buffer of the arena.
+     */
+    public static final int CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int numFrames;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    // 空闲的frame，先释放的先被重新使用
+    private final ArrayDeque<Integer> free;
+
+    /**
+     * @param numFrames the number of frames
+     * @param frameSize the size of a frame in bytes
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        if (numFrames <= 0 || frameSize <= 0 || frameSize > CHUNK_BYTES) {
+            throw new IllegalArgumentException("invalid arena of " + numFrames + " frames of " + frameSize + " bytes");
+        }
+        this.frameSize = frameSize;
+        this.numFrames = numFrames;
+        this.framesPerChunk = CHUNK_BYTES / frameSize;
+        int n = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        free = new ArrayDeque<>(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            free.add(i);
+        }
+    }
+
+    /**
+     * @return a free frame, or -1 if all frames are in use
+     */
+    public synchronized int allocate() {
+        Integer slot = free.poll();
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Returns a frame to the arena. Nothing may use its buffer afterwards.
+     */
+    public synchronized void release(int slot) {
+        if (slot < 0 || slot >= numFrames) {
+            throw new IllegalArgumentException("invalid frame " + slot);
+        }
+        free.add(slot);
+    }
+
+    /**
+     * @return a buffer over frame slot, of {@link #getFrameSize()} bytes
+     */
+    public ByteBuffer frame(int slot) {
+        ByteBuffer bb = chunks[slot / framesPerChunk].duplicate();
+        int pos = (slot % framesPerChunk) * frameSize;
+        bb.limit(pos + frameSize);
+        bb.position(pos);
+        return bb.slice();
+    }
+
+    /**
+     * @return the size of a frame in bytes
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return the number of frames
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * @return the number of frames not in use
+     */
+    public synchronized int getFreeFrames() {
+        return free.size();
+    }
+}
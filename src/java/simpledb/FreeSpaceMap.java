@@ -0,0 +1,206 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers how much room is left on every page of a HeapFile,
+ * so that inserts can go straight to a page with a free slot instead of
+ * probing (and locking) the file from page 0.
+ * <p>
+ * The map keeps one byte per page holding the page's free space in units
+ * chosen by the owning file (free tuple slots for HeapPage), clamped to
+ * {@link #MAX_UNITS}. It is persisted in a sidecar file next to the data
+ * file ("table.dat" -> "table.dat.fsm"). The sidecar of a data file in
+ * the temporary directory, such as the tables tests create with
+ * {@link File#createTempFile}, is deleted when the JVM exits, like those
+ * files usually are; a table there that outlives the JVM rebuilds its map
+ * from its pages when it is opened again.
+ * <p>
+ * The map is only a hint: the in-memory copy follows
+ * {@link HeapPage#insertTuple} / {@link HeapPage#deleteTuple} (including
+ * changes of transactions that may still abort), while the sidecar is
+ * updated whenever a page is written to disk. Callers must always check the
+ * page itself and {@link #update} the map when the hint turns out to be
+ * wrong.
+ */
+public class FreeSpaceMap {
+
+    /**
+     * Largest value a single page entry can hold.
+     */
+    public static final int MAX_UNITS = 255;
+
+    private final File file;
+    private final boolean temporary;
+    private transient FileChannel channel;
+
+    // 每个page剩余空间，单位由HeapFile决定
+    private byte[] units;
+    private int numPages;
+    // 有剩余空间的page，方便快速查找
+    private final BitSet hasRoom = new BitSet();
+
+    /**
+     * Opens the free-space map stored in file, or an empty map if the file
+     * does not exist yet.
+     *
+     * @param file the sidecar file backing this map
+     */
+    public FreeSpaceMap(File file) throws IOException {
+        this.file = file;
+        this.temporary = inTempDir(file);
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                units = new byte[(int) raf.length()];
+                raf.readFully(units);
+            }
+            numPages = units.length;
+            for (int i = 0; i < numPages; i++) {
+                if (units[i] != 0) {
+                    hasRoom.set(i);
+                }
+            }
+        } else {
+            units = new byte[16];
+            numPages = 0;
+        }
+    }
+
+    private static boolean inTempDir(File file) throws IOException {
+        File dir = file.getCanonicalFile().getParentFile();
+        return dir != null && dir.equals(new File(System.getProperty("java.io.tmpdir")).getCanonicalFile());
+    }
+
+    /**
+     * @return whether the sidecar is deleted when the JVM exits, because it
+     * lies in the temporary directory
+     */
+    boolean isTemporary() {
+        return temporary;
+    }
+
+    /**
+     * @return the sidecar file that stores the free-space map of dataFile
+     */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Removes the free-space map of dataFile, e.g. after the data file has
+     * been rewritten and the map no longer describes it.
+     */
+    public static void discard(File dataFile) {
+        File fsm = sidecarFor(dataFile);
+        if (fsm.exists() && !fsm.delete()) {
+            System.err.println("could not delete stale free space map " + fsm);
+        }
+    }
+
+    /**
+     * @return the number of pages the map has an entry for
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the recorded free space of page pgNo, or 0 if the page is unknown
+     */
+    public synchronized int getUnits(int pgNo) {
+        return pgNo < numPages ? units[pgNo] & 0xff : 0;
+    }
+
+    /**
+     * Records (in memory only) that page pgNo now has freeUnits of free space.
+     * Pages past the end of the map are added to it.
+     */
+    public synchronized void update(int pgNo, int freeUnits) {
+        int v = Math.max(0, Math.min(MAX_UNITS, freeUnits));
+        if (pgNo >= units.length) {
+            units = Arrays.copyOf(units, Math.max(pgNo + 1, units.length * 2));
+        }
+        numPages = Math.max(numPages, pgNo + 1);
+        units[pgNo] = (byte) v;
+        hasRoom.set(pgNo, v > 0);
+    }
+
+    /**
+     * Returns the first page, starting at fromPgNo, whose recorded free
+     * space is at least minUnits.
+     *
+     * @return the page number, or -1 if no page has enough room
+     */
+    public synchronized int findPage(int minUnits, int fromPgNo) {
+        for (int i = hasRoom.nextSetBit(Math.max(0, fromPgNo)); i >= 0 && i < numPages; i = hasRoom.nextSetBit(i + 1)) {
+            if ((units[i] & 0xff) >= minUnits) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records that page pgNo has freeUnits of free space and writes that
+     * entry to the sidecar file. Called when the page itself is written.
+     */
+    public synchronized void persist(int pgNo, int freeUnits) throws IOException {
+        update(pgNo, freeUnits);
+        ByteBuffer b = ByteBuffer.wrap(units, pgNo, 1);
+        channel().write(b, pgNo);
+    }
+
+    /**
+     * Writes the whole map to the sidecar file, replacing its contents.
+     */
+    public synchronized void persistAll() throws IOException {
+        FileChannel fc = channel();
+        fc.truncate(numPages);
+        ByteBuffer b = ByteBuffer.wrap(units, 0, numPages);
+        long pos = 0;
+        while (b.hasRemaining()) {
+            pos += fc.write(b, pos);
+        }
+    }
+
+    /**
+     * Forgets every page from page numPages on, in memory and in the sidecar
+     * file, after the data file has been shortened to numPages pages.
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        if (numPages >= this.numPages) {
+            return;
+        }
+        hasRoom.clear(numPages, this.numPages);
+        Arrays.fill(units, numPages, this.numPages, (byte) 0);
+        this.numPages = numPages;
+        channel().truncate(numPages);
+    }
+
+    /**
+     * Closes the sidecar file; it is reopened if the map is written again.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            if (temporary && !file.exists()) {
+                // 临时目录中的表，sidecar随JVM退出删除
+                file.deleteOnExit();
+            }
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        return channel;
+    }
+}
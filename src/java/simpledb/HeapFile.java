@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,17 +12,65 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor. A HeapFile can also store its tuples in the variable-length
+ * {@link SlottedPage} format or the columnar {@link PaxPage} format instead,
+ * see {@link PageFormat}.
  *
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
  */
 public class HeapFile implements DbFile {
 
+    /**
+     * The formats the pages of a HeapFile can be stored in.
+     */
+    public enum PageFormat {
+        /**
+         * Fixed-width slots with a bitmap header, see {@link HeapPage}
+         */
+        HEAP,
+        /**
+         * A slot directory and variable-length records, see {@link SlottedPage}
+         */
+        SLOTTED,
+        /**
+         * One compressed minipage per column, see {@link PaxPage}
+         */
+        PAX
+    }
+
+    /**
+     * Upper bound of the region mapped by a single MappedByteBuffer in
+     * memory-mapped mode. A MappedByteBuffer is int-indexed, so bigger files
+     * are mapped as a list of segments (of a multiple of the page size).
+     */
+    private static final int MAX_MAP_SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Largest number of blank pages {@link #insertTuples} appends to the
+     * file at once
+     */
+    static final int MAX_EXTENT_PAGES = 64;
+
     private TupleDesc td;
     private File f;
     private int numPage;
 
+    // 是否通过mmap读取page
+    private final boolean memoryMapped;
+    // page的存储格式
+    private final PageFormat format;
+    // page的大小
+    private final int pageSize;
+    private final int mapSegmentSize;
+    private transient List<MappedByteBuffer> mapSegments;
+
+    // 每个page的剩余空间，insertTuple用它来选择page
+    private transient FreeSpaceMap fsm;
+
+    // 长期持有的文件channel，readPage/writePage都使用positional I/O，不再每次打开文件
+    private transient volatile FileChannel channel;
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -27,9 +78,62 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
-        // some code goes here
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally
+     * reading pages through a memory mapping of the file.
+     * <p>
+     * In memory-mapped mode the file keeps a read-only {@link FileChannel}
+     * mapping for its whole lifetime (remapped as the file grows), and
+     * {@link #readPage} builds each HeapPage straight from a slice of that
+     * mapping, so a buffer pool miss costs neither an open/seek/close nor a
+     * copy into a fresh byte array. Writes still go through
+     * {@link #writePage}; the mapping sees them through the OS page cache.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this heap file.
+     * @param td           the schema of the tuples stored in the file
+     * @param memoryMapped whether to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
+        this(f, td, memoryMapped, PageFormat.HEAP);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages are
+     * stored in the given format. The file must have been written in that
+     * format, e.g. by {@link HeapFileEncoder}.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this heap file.
+     * @param td           the schema of the tuples stored in the file
+     * @param memoryMapped whether to read pages through a memory mapping
+     * @param format       the format of the pages of the file
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped, PageFormat format) {
+        this(f, td, memoryMapped, format, BufferPool.getPageSize());
+    }
+
+    /**
+     * Same as {@link #HeapFile(File, TupleDesc, boolean, PageFormat)}, with
+     * pages of pageSize bytes instead of the database default
+     * {@link BufferPool#getPageSize()}. The file must have been written
+     * with the same page size.
+     *
+     * @param pageSize bytes per page, a positive multiple of 8
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped, PageFormat format, int pageSize) {
+        if (pageSize <= 0 || pageSize % 8 != 0) {
+            throw new IllegalArgumentException("invalid page size " + pageSize);
+        }
         this.td = td;
         this.f = f;
+        this.memoryMapped = memoryMapped;
+        this.format = format;
+        this.pageSize = pageSize;
+        this.mapSegmentSize = MAX_MAP_SEGMENT_SIZE / pageSize * pageSize;
         this.numPage = numPages();
     }
 
@@ -68,44 +172,287 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * @return the size in bytes of the pages of this file
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the format the pages of this file are stored in
+     */
+    public PageFormat getPageFormat() {
+        return format;
+    }
+
+    /**
+     * Builds a page of this file's format from its on-disk image.
+     */
+    TuplePage newPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        switch (format) {
+            case SLOTTED:
+                return new SlottedPage(pid, td, data, pageSize);
+            case PAX:
+                return new PaxPage(pid, td, data, pageSize);
+            default:
+                return new HeapPage(pid, data, pageSize);
+        }
+    }
+
+    /**
+     * @return how much free space (in units of this file's page format) t
+     * needs. For PAX pages this is only an estimate, as the encoded size of a
+     * row depends on the rest of the page.
+     */
+    private int unitsNeeded(Tuple t) {
+        switch (format) {
+            case SLOTTED:
+            case PAX:
+                return SlottedPage.unitsNeeded(t);
+            default:
+                return 1;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        Page page = null;
-        byte[] data = new byte[BufferPool.PAGE_SIZE];
-
-        // 一次只取需要的部分
-        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
-            // page在HeapFile的偏移量
-            int pos = pid.pageNumber() * BufferPool.PAGE_SIZE;
-            raf.seek(pos);
-            raf.read(data, 0, data.length);
-            page = new HeapPage((HeapPageId) pid, data);
+        try {
+            if (memoryMapped) {
+                return newPage((HeapPageId) pid, mappedPage(pid.pageNumber()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return readPage(pid, ByteBuffer.allocate(pageSize));
+    }
+
+    /**
+     * Reads page pid straight into frame, e.g. a frame of the BufferPool's
+     * {@link FrameArena}, and returns the page over it.
+     *
+     * @param frame a buffer of (at least) the file's page size
+     */
+    Page readPage(PageId pid, ByteBuffer frame) {
+        try {
+            if (memoryMapped) {
+                Page page = newPage((HeapPageId) pid, mappedPage(pid.pageNumber()));
+                ((TuplePage) page).moveTo(frame);
+                return page;
+            }
+            // 一次只取需要的部分，page在HeapFile的偏移量
+            ByteBuffer data = frame.duplicate();
+            data.clear();
+            data.limit(pageSize);
+            long pos = (long) pid.pageNumber() * pageSize;
+            FileChannel fc = channel();
+            while (data.hasRemaining()) {
+                if (fc.read(data, pos + data.position()) < 0) {
+                    // past the end of the file: the rest of the page is zero
+                    while (data.hasRemaining()) {
+                        data.put((byte) 0);
+                    }
+                }
+            }
+            data.clear();
+            return newPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Reads count contiguous pages starting at page firstPgNo with a single
+     * scatter read, one buffer per page, instead of one read per page. Used
+     * by the BufferPool to fill several frames at once for sequential scans.
+     * The request is clipped to the end of the file.
+     *
+     * @param firstPgNo the page number of the first page to read
+     * @param count     the number of pages to read
+     * @return the pages read, in page number order
+     * @throws IllegalArgumentException if firstPgNo is not a page of this file
+     */
+    public List<Page> readPages(int firstPgNo, int count) {
+        if (firstPgNo < 0 || firstPgNo >= numPages()) {
+            throw new IllegalArgumentException("page " + firstPgNo + " is not in " + f);
+        }
+        count = Math.min(count, numPages() - firstPgNo);
+        List<Page> pages = new ArrayList<>(count);
+        try {
+            if (memoryMapped) {
+                for (int i = 0; i < count; i++) {
+                    pages.add(newPage(new HeapPageId(getId(), firstPgNo + i), mappedPage(firstPgNo + i)));
+                }
+                return pages;
+            }
+            ByteBuffer[] bufs = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                bufs[i] = ByteBuffer.allocate(pageSize);
+            }
+            FileChannel fc = channel();
+            // the scatter read goes through the channel position, which only
+            // readPages uses; positional reads and writes don't touch it
+            synchronized (this) {
+                fc.position((long) firstPgNo * pageSize);
+                while (bufs[count - 1].hasRemaining()) {
+                    if (fc.read(bufs) < 0) {
+                        break;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                bufs[i].clear();
+                pages.add(newPage(new HeapPageId(getId(), firstPgNo + i), bufs[i]));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return page;
+        return pages;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
-            raf.seek(page.getId().pageNumber() * BufferPool.PAGE_SIZE);
-            byte[] data = page.getPageData();
-            raf.write(data);
+        // page的字节本身就是磁盘格式，直接写出，不需要编码或复制
+        ByteBuffer data = page instanceof TuplePage ? ((TuplePage) page).getPageBuffer() : ByteBuffer.wrap(page.getPageData());
+        long pos = (long) page.getId().pageNumber() * pageSize;
+        FileChannel fc = channel();
+        while (data.hasRemaining()) {
+            fc.write(data, pos + data.position());
+        }
+        freeSpaceMap().persist(page.getId().pageNumber(), ((TuplePage) page).getFreeUnits());
+    }
+
+    /**
+     * Writes pages of contiguous page numbers, in page number order, with a
+     * single gather write instead of one write per page. Used by the
+     * {@link BackgroundWriter} to write runs of adjacent dirty pages.
+     *
+     * @param pages pages of this file with contiguous page numbers
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.size() == 1) {
+            writePage(pages.get(0));
+            return;
+        }
+        ByteBuffer[] bufs = new ByteBuffer[pages.size()];
+        for (int i = 0; i < bufs.length; i++) {
+            Page page = pages.get(i);
+            if (page.getId().pageNumber() != pages.get(0).getId().pageNumber() + i) {
+                throw new IllegalArgumentException("pages are not contiguous");
+            }
+            bufs[i] = page instanceof TuplePage ? ((TuplePage) page).getPageBuffer() : ByteBuffer.wrap(page.getPageData());
+        }
+        FileChannel fc = channel();
+        // 与readPages一样，gather write使用channel的position
+        synchronized (this) {
+            fc.position((long) pages.get(0).getId().pageNumber() * pageSize);
+            while (bufs[bufs.length - 1].hasRemaining()) {
+                fc.write(bufs);
+            }
+        }
+        for (Page page : pages) {
+            freeSpaceMap().persist(page.getId().pageNumber(), ((TuplePage) page).getFreeUnits());
+        }
+    }
+
+    /**
+     * Returns the channel this file does all its I/O through, opening it on
+     * first use. The channel stays open until {@link #close}.
+     */
+    FileChannel channel() throws IOException {
+        FileChannel fc = channel;
+        if (fc != null && fc.isOpen()) {
+            return fc;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                channel = new RandomAccessFile(f, "rw").getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Closes the channel (and drops the mapping and free-space map) held by this file. The file
+     * reopens them transparently if it is used again afterwards.
+     */
+    public synchronized void close() throws IOException {
+        mapSegments = null;
+        if (fsm != null) {
+            fsm.close();
+            fsm = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
         }
     }
 
+    /**
+     * Returns a read-only view of page pgNo inside the file mapping, mapping
+     * (or remapping) the segment that contains it if the file has grown
+     * since it was last mapped. A trailing page that is only partially on
+     * disk is returned zero-padded.
+     *
+     * @throws IllegalArgumentException if the page lies beyond the end of the file
+     */
+    private synchronized ByteBuffer mappedPage(int pgNo) throws IOException {
+        FileChannel fc = channel();
+        if (mapSegments == null) {
+            mapSegments = new ArrayList<>();
+        }
+        long pos = (long) pgNo * pageSize;
+        int segNo = (int) (pos / mapSegmentSize);
+        int offset = (int) (pos % mapSegmentSize);
+
+        MappedByteBuffer segment = segNo < mapSegments.size() ? mapSegments.get(segNo) : null;
+        if (segment == null || segment.capacity() < offset + pageSize) {
+            // the file grew (or this segment was never mapped): map it again
+            long fileSize = fc.size();
+            long segStart = (long) segNo * mapSegmentSize;
+            if (pos >= fileSize) {
+                throw new IllegalArgumentException("page " + pgNo + " is beyond the end of " + f);
+            }
+            long segLen = Math.min(mapSegmentSize, fileSize - segStart);
+            segment = fc.map(FileChannel.MapMode.READ_ONLY, segStart, segLen);
+            while (mapSegments.size() <= segNo) {
+                mapSegments.add(null);
+            }
+            mapSegments.set(segNo, segment);
+        }
+
+        ByteBuffer slice = segment.duplicate();
+        int end = Math.min(offset + pageSize, slice.capacity());
+        slice.limit(end);
+        slice.position(offset);
+        if (end - offset < pageSize) {
+            byte[] padded = new byte[pageSize];
+            slice.get(padded, 0, end - offset);
+            return ByteBuffer.wrap(padded);
+        }
+        return slice.slice();
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
         if (numPage == 0) {
-            long ret = getFile().length() / BufferPool.PAGE_SIZE;
-            if (getFile().length() % BufferPool.PAGE_SIZE != 0) {
+            long ret = getFile().length() / pageSize;
+            if (getFile().length() % pageSize != 0) {
                 ret++;
             }
             numPage = (int) ret;
@@ -118,45 +465,230 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> affectedPages = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() != 0) {
-                //page的insertTuple已经负责修改tuple信息表明其存储在该page上
-                page.insertTuple(t);
-                page.markDirty(true, tid);
-                affectedPages.add(page);
-                break;
-            }
-        }
-        if (affectedPages.size() == 0) {
-            //说明page都已经满了
-            //创建一个新的空白的Page
-            HeapPageId npid = new HeapPageId(getId(), numPages());
-            HeapPage blankPage = new HeapPage(npid, HeapPage.createEmptyPageData());
-            numPage++;
-            //将其写入磁盘
-            writePage(blankPage);
-            //通过BufferPool来访问该新的page
-            HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, npid, Permissions.READ_WRITE);
-            newPage.insertTuple(t);
-            newPage.markDirty(true, tid);
-            affectedPages.add(newPage);
+        TuplePage page = findPageWithRoom(tid, t, 0);
+        if (page == null) {
+            //说明page都已经满了(或者都被其他事务占用)
+            //在文件末尾追加一个新的空白的Page，并通过BufferPool来访问
+            HeapPageId npid = new HeapPageId(getId(), allocatePages(1));
+            page = (TuplePage) Database.getBufferPool().getPinnedPage(tid, npid, Permissions.READ_WRITE);
+        }
+        try {
+            //page的insertTuple已经负责修改tuple信息表明其存储在该page上
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+        } finally {
+            Database.getBufferPool().unpinPage(tid, page.getId());
         }
+        affectedPages.add(page);
         return affectedPages;
         // not necessary for proj1
     }
 
+    /**
+     * Inserts all of tuples, filling one page at a time: a page found to
+     * have room is locked and marked dirty once and then takes as many of
+     * the tuples as fit, and when the file is full it grows by extents of
+     * blank pages written with a single write each, doubling in size (up to
+     * {@link #MAX_EXTENT_PAGES}) for every extent this call adds.
+     *
+     * @see DbFile#insertTuples
+     */
+    @Override
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> affectedPages = new ArrayList<>();
+        Set<PageId> dirtied = new HashSet<>();
+        TuplePage page = null;
+        int from = 0;
+        int extent = 1;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (page == null || !page.hasRoomFor(t)) {
+                page = findPageWithRoom(tid, t, from);
+                while (page == null) {
+                    // 文件已满，一次追加一个extent
+                    from = allocatePages(extent);
+                    extent = Math.min(extent * 2, MAX_EXTENT_PAGES);
+                    page = findPageWithRoom(tid, t, from);
+                    if (page == null) {
+                        // 新的page都被其他事务占用了，等待第一个
+                        HeapPageId pid = new HeapPageId(getId(), from);
+                        page = (TuplePage) Database.getBufferPool().getPinnedPage(tid, pid, Permissions.READ_WRITE);
+                        if (!page.hasRoomFor(t)) {
+                            Database.getBufferPool().unpinPage(tid, pid);
+                            throw new DbException("tuple does not fit on page " + from);
+                        }
+                    }
+                }
+                from = page.getId().pageNumber();
+                // 标记为脏之后就不会被驱逐了，不再需要pin
+                if (dirtied.add(page.getId())) {
+                    page.markDirty(true, tid);
+                    affectedPages.add(page);
+                }
+                Database.getBufferPool().unpinPage(tid, page.getId());
+            }
+            page.insertTuple(t);
+        }
+        return affectedPages;
+    }
+
+    /**
+     * Finds a page with room for t through the free-space map, looking at
+     * pages from number from onwards, and returns it locked and pinned (see
+     * {@link BufferPool#getPinnedPage}) for tid. Pages other transactions
+     * are using are skipped rather than waited for.
+     *
+     * @return the page, or null if no page has room
+     */
+    private TuplePage findPageWithRoom(TransactionId tid, Tuple t, int from)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpaceMap();
+        int needed = unitsNeeded(t);
+        // 通过free space map直接找到有足够空间的page，而不是从page 0开始逐个加写锁检查
+        for (int i = fsm.findPage(needed, from); i >= 0; i = fsm.findPage(needed, i + 1)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean held = bufferPool.holdsLock(tid, pid);
+            if (bufferPool.tryGetPage(tid, pid, Permissions.READ_WRITE) == null) {
+                // 其他事务正在使用这个page，不排队等待，直接尝试下一个
+                continue;
+            }
+            // 已经持有写锁，不会等待
+            TuplePage page = (TuplePage) bufferPool.getPinnedPage(tid, pid, Permissions.READ_WRITE);
+            if (page.hasRoomFor(t)) {
+                return page;
+            }
+            bufferPool.unpinPage(tid, pid);
+            // the map was out of date; fix it and don't keep the page locked
+            fsm.update(i, Math.min(page.getFreeUnits(), needed - 1));
+            if (!held) {
+                bufferPool.releasePage(tid, pid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends n blank pages to the end of the file and records them in the
+     * free-space map.
+     *
+     * @return the number of the first new page
+     */
+    synchronized int allocatePages(int n) throws IOException {
+        int first = numPages();
+        writeBlankPages(first, n);
+        numPage = first + n;
+        int free = emptyPageUnits();
+        FreeSpaceMap fsm = freeSpaceMap();
+        for (int i = first; i < first + n; i++) {
+            fsm.persist(i, free);
+        }
+        return first;
+    }
+
+    /**
+     * @return the free space (see {@link TuplePage#getFreeUnits}) of an empty
+     * page of this file
+     */
+    int emptyPageUnits() throws IOException {
+        // 全0的page对所有格式来说都是空page
+        HeapPageId pid = new HeapPageId(getId(), 0);
+        return newPage(pid, ByteBuffer.wrap(HeapPage.createEmptyPageData(pageSize))).getFreeUnits();
+    }
+
+    /**
+     * Drops the pages from page first to the end of the file, if the file
+     * still has exactly count pages, i.e. no pages were appended since the
+     * caller checked them. The caller must make sure the dropped pages are
+     * empty, are locked and have been removed from the BufferPool.
+     *
+     * @return whether the file was shortened
+     * @see Vacuum
+     */
+    synchronized boolean truncatePages(int first, int count) throws IOException {
+        if (numPages() != count || first >= count) {
+            return false;
+        }
+        truncateStorage(first);
+        mapSegments = null;
+        numPage = first;
+        freeSpaceMap().truncate(first);
+        return true;
+    }
+
+    /**
+     * Shortens the data file to its first n pages.
+     */
+    void truncateStorage(int n) throws IOException {
+        channel().truncate((long) n * pageSize);
+    }
+
+    /**
+     * Writes n blank pages starting at page first, with a single write.
+     */
+    void writeBlankPages(int first, int n) throws IOException {
+        ByteBuffer blank = ByteBuffer.allocate(n * pageSize);
+        long pos = (long) first * pageSize;
+        FileChannel fc = channel();
+        while (blank.hasRemaining()) {
+            fc.write(blank, pos + blank.position());
+        }
+    }
+
+    /**
+     * Returns the free-space map of this file. It is loaded from its sidecar
+     * file on first use, or rebuilt from the pages on disk if the sidecar is
+     * missing or does not cover the whole file.
+     *
+     * @see FreeSpaceMap
+     */
+    synchronized FreeSpaceMap freeSpaceMap() throws IOException {
+        if (fsm == null) {
+            FreeSpaceMap map = new FreeSpaceMap(FreeSpaceMap.sidecarFor(f));
+            if (map.numPages() != numPages()) {
+                for (int i = 0; i < numPages(); i += BufferPool.READ_BATCH_PAGES) {
+                    for (Page p : readPages(i, BufferPool.READ_BATCH_PAGES)) {
+                        map.update(p.getId().pageNumber(), ((TuplePage) p).getFreeUnits());
+                    }
+                }
+                map.persistAll();
+            }
+            fsm = map;
+        }
+        return fsm;
+    }
+
+    /**
+     * Called by the pages of this file whenever a tuple is inserted into or
+     * deleted from one of them, to keep the free-space map up to date.
+     *
+     * @param pgNo      the page that changed
+     * @param freeUnits the free space now on that page, see {@link TuplePage#getFreeUnits}
+     */
+    void noteFreeSpace(int pgNo, int freeUnits) {
+        try {
+            freeSpaceMap().update(pgNo, freeUnits);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         PageId pid = t.getRecordId().getPageId();
-        HeapPage affectedPage = null;
+        TuplePage affectedPage = null;
         for (int i = 0; i < numPages(); i++) {
             if (i == pid.pageNumber()) {
-                affectedPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                affectedPage.deleteTuple(t);
+                affectedPage = (TuplePage) Database.getBufferPool().getPinnedPage(tid, pid, Permissions.READ_WRITE);
+                try {
+                    affectedPage.deleteTuple(t);
+                    affectedPage.markDirty(true, tid);
+                } finally {
+                    Database.getBufferPool().unpinPage(tid, pid);
+                }
             }
         }
         if (affectedPage == null) {
@@ -169,7 +701,32 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, Collections.<Predicate>emptyList(), null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * predicates. The predicates are evaluated on the raw page bytes (see
+     * {@link HeapPage#matches}), so tuples that don't qualify are never
+     * decoded.
+     *
+     * @param tid        the transaction the scan runs in
+     * @param predicates predicates on the fields of this file's TupleDesc
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return new HeapFileIterator(tid, predicates, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, List)}, but only the fields set in
+     * fields are decoded; the other fields of the returned tuples are null.
+     * This is what makes scans of {@link PageFormat#PAX} files cheap when a
+     * query only references some of the columns.
+     *
+     * @param fields the indexes of the fields to decode, or null for all
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates, BitSet fields) {
+        return new HeapFileIterator(tid, predicates, fields);
     }
 
     private class HeapFileIterator implements DbFileIterator {
@@ -178,23 +735,82 @@ public class HeapFile implements DbFile {
 
         private Iterator<Tuple> tuplesInPage;
 
+        // 已经通过getPages批量取回、但还没有遍历到的page
+        private Iterator<Page> prefetched;
+
         private TransactionId tid;
 
-        public HeapFileIterator(TransactionId tid) {
+        // 下推到page上的过滤条件
+        private final List<Predicate> predicates;
+
+        // 需要解码的列，null表示全部
+        private final BitSet fields;
+
+        // 大表扫描时私有的ring，null表示经过buffer pool
+        private ScanRing ring;
+
+        // 预读后面的page，null表示不预读
+        private ReadAhead readAhead;
+
+        // 正在遍历的、pin在buffer pool中的page，null表示没有
+        private PageId pinned;
+
+        public HeapFileIterator(TransactionId tid, List<Predicate> predicates, BitSet fields) {
             this.tid = tid;
+            this.predicates = predicates;
+            this.fields = fields;
+        }
+
+        /**
+         * Returns the tuples of page pagePos. Pages are fetched from the
+         * BufferPool in batches of contiguous pages, so that pages which
+         * are not resident are read from disk with one scatter read per
+         * batch rather than one read per page. Scans of tables that are
+         * large compared to the pool read through a {@link ScanRing}, and
+         * the pages after each batch are read ahead by a {@link ReadAhead}.
+         * The page whose tuples are being returned stays pinned in the
+         * pool until the iterator moves on.
+         */
+        public Iterator<Tuple> getTuplesInPage(int pagePos) throws TransactionAbortedException, DbException {
+            // 先unpin上一个page，小的pool可能需要驱逐它
+            unpin();
+            if (prefetched == null || !prefetched.hasNext()) {
+                int count = Math.min(Database.getBufferPool().getReadBatchSize(), numPages() - pagePos);
+                List<PageId> pids = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    pids.add(new HeapPageId(getId(), pagePos + i));
+                }
+                prefetched = Database.getBufferPool().getPages(tid, pids, Permissions.READ_ONLY, ring, readAhead).iterator();
+                if (readAhead != null) {
+                    readAhead.advance(pagePos + count);
+                }
+            }
+            TuplePage page = (TuplePage) prefetched.next();
+            if (Database.getBufferPool().pinPage(tid, page.getId())) {
+                pinned = page.getId();
+            }
+            return page.iterator(predicates, fields);
         }
 
-        public Iterator<Tuple> getTuplesInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-            return page.iterator();
+        private void unpin() {
+            if (pinned != null) {
+                Database.getBufferPool().unpinPage(tid, pinned);
+                pinned = null;
+            }
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            unpin();
             pagePos = 0;
-            HeapPageId pid = new HeapPageId(getId(), pagePos);
+            prefetched = null;
+            if (ring == null) {
+                // rewind时沿用原来的ring
+                ring = Database.getBufferPool().scanRingFor(numPages());
+            }
+            readAhead = Database.getBufferPool().readAheadFor(tid, HeapFile.this, ring);
             //加载第一页的tuples
-            tuplesInPage = getTuplesInPage(pid);
+            tuplesInPage = numPages() > 0 ? getTuplesInPage(pagePos) : Collections.<Tuple>emptyIterator();
         }
 
         @Override
@@ -202,15 +818,15 @@ public class HeapFile implements DbFile {
             if (tuplesInPage == null) {
                 return false;
             }
-            if (tuplesInPage.hasNext()) {
-                return true;
-            }
-            if (pagePos + 1 < numPages()) {
+            while (!tuplesInPage.hasNext()) {
+                if (pagePos + 1 >= numPages()) {
+                    unpin();
+                    return false;
+                }
                 pagePos++;
-                HeapPageId pid = new HeapPageId(getId(), pagePos);
-                tuplesInPage = getTuplesInPage(pid);
-                return tuplesInPage.hasNext();
-            } else return false;
+                tuplesInPage = getTuplesInPage(pagePos);
+            }
+            return true;
         }
 
         @Override
@@ -228,8 +844,12 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpin();
             pagePos = 0;
             tuplesInPage = null;
+            prefetched = null;
+            ring = null;
+            readAhead = null;
         }
     }
 
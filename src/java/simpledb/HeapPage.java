@@ -2,29 +2,39 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
- * implements the Page interface that is used by BufferPool.
+ * implements the Page interface that is used by BufferPool. This is the
+ * fixed-width format ({@link HeapFile.PageFormat#HEAP}); see also
+ * {@link SlottedPage}.
  *
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     // 该heap page所在的页(对应物理上磁盘位置)
     HeapPageId pid;
     // 该页的tuple desc，所以一个页都应该是一种schema
     TupleDesc td;
-    // header
-    byte header[];
-    // data
-    Tuple tuples[];
-    // 有多少slots，即tuples和header的大小
+    // 每个字段在tuple内的偏移量
+    private final int[] fieldOffsets;
+    // 有多少slots，即header的大小
     int numSlots;
+    private int numEmptySlots;
 
-    // 磁盘上的旧数据
-    byte[] oldData;
+    // page的大小，由所属的table决定
+    private final int pageSize;
+
+    // page的原始字节(header + slots)，是page内容的唯一来源，tuple和字段都是按需从这里解码的
+    private ByteBuffer data;
+    // data是否是本page自己的拷贝；不是的话(例如mmap的slice或者构造时传入的数组)，第一次修改前要先复制
+    private boolean ownsData;
+
+    // 磁盘上的旧数据，与data共享，直到page被修改
+    private ByteBuffer oldData;
 
     private TransactionId lastDirtyOperation;
 
@@ -33,40 +43,72 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      * Specifically, the number of tuples is equal to: <p>
-     * floor((BufferPool.PAGE_SIZE*8) / (tuple size * 8 + 1))
+     * floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are not decoded up front: the page keeps data as is and
+     * decodes fields when they are asked for. data is never written to;
+     * the page copies it the first time it is modified.
+     * <p>
+     * The page size is the table's, see {@link Catalog#getPageSize}.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#PAGE_SIZE
+     * @see HeapFile#getPageSize
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage straight from a buffer holding the page image, such
+     * as a slice of a memory-mapped HeapFile, without copying it. The page
+     * starts at the buffer's current position; the buffer's position is
+     * left untouched, and its contents are never written by the page.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, Database.getCatalog().getPageSize(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of pageSize bytes, e.g. for a HeapFile that knows
+     * its page size already.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, int pageSize) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = pageSize;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        }
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        ByteBuffer bb = data.duplicate();
+        if (bb.remaining() >= pageSize) {
+            bb.limit(bb.position() + pageSize);
+            this.data = bb.slice();
+        } else {
+            // short page image: treat the missing tail as zeroes
+            byte[] copy = new byte[pageSize];
+            bb.get(copy, 0, bb.remaining());
+            this.data = ByteBuffer.wrap(copy);
+        }
+        this.ownsData = false;
 
-        try {
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        numEmptySlots = numSlots;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                numEmptySlots--;
+            }
         }
-        dis.close();
 
-        // 构造函数这里是否可以直接将 data copy给 oldData?
         setBeforeImage();
     }
 
@@ -80,7 +122,7 @@ public class HeapPage implements Page {
         if (numSlots != 0) {
             return numSlots;
         }
-        return ((BufferPool.PAGE_SIZE * 8) /  (td.getSize() * 8 + 1));
+        return ((pageSize * 8) /  (td.getSize() * 8 + 1));
     }
 
     /**
@@ -99,7 +141,7 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            return new HeapPage(pid, oldData);
+            return new HeapPage(pid, oldData, pageSize);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -109,7 +151,9 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        // 不复制，而是让当前数据变成只读的，下一次修改时再复制
+        oldData = data;
+        ownsData = false;
     }
 
     /**
@@ -121,37 +165,67 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of field col of slot slotId within the page
+     */
+    private int fieldOffset(int slotId, int col) {
+        return getHeaderSize() + slotId * td.getSize() + fieldOffsets[col];
+    }
+
+    /**
+     * Decodes a single field of the tuple in slot slotId, without building
+     * the rest of the tuple.
+     *
+     * @throws NoSuchElementException if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        // 如果slot没有被使用，说明dis中接下来的数据是无效的，所以跳过这些字节，并返回null
+    public Field getField(int slotId, int col) throws NoSuchElementException {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+            throw new NoSuchElementException("slot " + slotId + " is empty");
         }
+        return readField(slotId, col);
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    private Field readField(int slotId, int col) {
+        int off = fieldOffset(slotId, col);
+        Type type = td.getFieldType(col);
+        if (type == Type.INT_TYPE) {
+            return new IntField(data.getInt(off));
+        }
+        ByteBuffer bb = data.duplicate();
+        bb.position(off);
         try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return type.parse(bb);
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
+    }
+
+    /**
+     * Evaluates p against the tuple in slot slotId straight from the page
+     * bytes. Only the field p looks at is decoded, and integer comparisons
+     * don't allocate at all, so rows that fail p never become Tuples.
+     */
+    public boolean matches(int slotId, Predicate p) {
+        int col = p.getField();
+        if (td.getFieldType(col) == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+            return IntField.compare(data.getInt(fieldOffset(slotId, col)), p.getOp(),
+                    ((IntField) p.getOperand()).getValue());
+        }
+        return readField(slotId, col).compare(p.getOp(), p.getOperand());
+    }
 
+    /**
+     * Decodes the tuple in slot slotId.
+     */
+    private Tuple readTuple(int slotId, BitSet fields) {
+        // read fields in the tuple
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            if (fields == null || fields.get(j)) {
+                t.setField(j, readField(slotId, j));
+            }
+        }
         return t;
     }
 
@@ -162,69 +236,67 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * Since the page bytes are kept up to date as tuples are inserted and
+     * deleted, this is just a copy; there is nothing to encode.
      *
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
+        byte[] bytes = new byte[pageSize];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Returns a read-only view of the bytes of this page, positioned at the
+     * start of the page, for writing the page out without copying it. The
+     * view stays valid until the page is next modified.
+     */
+    public ByteBuffer getPageBuffer() {
+        return data.asReadOnlyBuffer();
+    }
 
-                }
-                continue;
-            }
+    /**
+     * Makes data a private, writable copy before the page is modified.
+     */
+    private void ensureOwnsData() {
+        if (!ownsData) {
+            data = heapCopy(data);
+            ownsData = true;
+        }
+    }
 
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
+    private ByteBuffer heapCopy(ByteBuffer bb) {
+        ByteBuffer copy = ByteBuffer.allocate(pageSize);
+        copy.put(bb.duplicate());
+        copy.clear();
+        return copy;
+    }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    public void moveTo(ByteBuffer frame) {
+        ByteBuffer bb = frame.duplicate();
+        bb.clear();
+        bb.put(data.duplicate());
+        bb.clear();
+        data = bb;
+        oldData = bb;
+        ownsData = false;
+    }
 
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public void moveToHeap() {
+        boolean shared = oldData == data;
+        if (data.isDirect()) {
+            data = heapCopy(data);
         }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (shared) {
+            // 仍然与before image共享，修改前要先复制
+            oldData = data;
+            ownsData = false;
+        } else if (oldData.isDirect()) {
+            oldData = heapCopy(oldData);
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -234,11 +306,19 @@ public class HeapPage implements Page {
      * this method to the HeapPage constructor will create a HeapPage with
      * no valid tuples in it.
      *
-     * @return The returned ByteArray.
+     * @return The returned ByteArray, of the default page size
+     * {@link BufferPool#getPageSize()}.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Same as {@link #createEmptyPageData()}, for a table with the given page
+     * size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -260,8 +340,12 @@ public class HeapPage implements Page {
         if (!hpid.equals(pid) || !isSlotUsed(tupleNum)) {
             throw new DbException("this tuple is not on this page, or tuple slot is already empty");
         }
-        tuples[tupleNum] = null;
         markSlotUsed(tupleNum, false);
+        // 空slot的内容清零，与之前的页面格式保持一致
+        ByteBuffer bb = data.duplicate();
+        bb.position(fieldOffset(tupleNum, 0));
+        bb.put(new byte[td.getSize()]);
+        noteFreeSpace();
     }
 
     /**
@@ -280,16 +364,34 @@ public class HeapPage implements Page {
         }
         for(int i = 0; i < getNumTuples(); i++) {
             if (!isSlotUsed(i)) {
-                tuples[i] = t;
+                // 只编码这一个tuple，直接写到page的字节里
+                ensureOwnsData();
+                ByteBuffer bb = data.duplicate();
+                bb.position(fieldOffset(i, 0));
+                for (int j = 0; j < td.numFields(); j++) {
+                    td.getFieldType(j).write(t.getField(j), bb);
+                }
                 //修改tuple的信息，表明它现在存储在这个page上
                 t.setRecordId(new RecordId(pid, i));
                 markSlotUsed(i ,true);
+                noteFreeSpace();
                 return;
             }
         }
         throw new DbException("this page is full(no empty slots).");
     }
 
+    /**
+     * Tells the HeapFile this page belongs to how many empty slots it has
+     * left, so its free-space map stays current.
+     */
+    private void noteFreeSpace() {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).noteFreeSpace(pid.pageNumber(), getNumEmptySlots());
+        }
+    }
+
     /**
      * 是否dirty，就是是否修改过
      * Marks this page as dirty/not dirty and record that transaction
@@ -315,13 +417,18 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int emptySlots = 0;
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (!isSlotUsed(i)) {
-                emptySlots++;
-            }
-        }
-        return emptySlots;
+        return numEmptySlots;
+    }
+
+    /**
+     * Free space of a HeapPage is counted in tuple slots.
+     */
+    public int getFreeUnits() {
+        return getNumEmptySlots();
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
     }
 
     /**
@@ -331,7 +438,7 @@ public class HeapPage implements Page {
         // some code goes here
         int byteNum = i / 8;
         int posInByte = i % 8;
-        return isOne(header[byteNum], posInByte);
+        return isOne(data.get(byteNum), posInByte);
     }
 
     private boolean isOne(byte b, int posInByte) {
@@ -348,7 +455,13 @@ public class HeapPage implements Page {
         int byteNum = i / 8;
         int posInByte = i % 8;
         byte mask = (byte) (1 << posInByte);
-        header[byteNum] = (byte) (value ? (header[byteNum] | mask) : (header[byteNum] & ~mask));
+        byte b = data.get(byteNum);
+        if (isOne(b, posInByte) == value) {
+            return;
+        }
+        ensureOwnsData();
+        data.put(byteNum, (byte) (value ? (b | mask) : (b & ~mask)));
+        numEmptySlots += value ? -1 : 1;
     }
 
     /**
@@ -356,18 +469,59 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return new TupleIterator();
+        return iterator(Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Like {@link #iterator()}, but only returns the tuples that satisfy all
+     * of predicates. Slots are tested with {@link #matches} before their
+     * tuple is decoded.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        return iterator(predicates, null);
+    }
+
+    /**
+     * Like {@link #iterator(List)}, but only decodes the fields set in
+     * fields; the others are left null.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates, BitSet fields) {
+        return new TupleIterator(predicates, fields);
     }
 
     private class TupleIterator implements Iterator<Tuple> {
 
-        private int used = 0;
-        private int index = 0;
-        private int usedTupleSum = getNumTuples() - getNumEmptySlots();
+        private final List<Predicate> predicates;
+        private final BitSet fields;
+        // 下一个要返回的slot，numSlots表示没有了
+        private int index = -1;
+
+        TupleIterator(List<Predicate> predicates, BitSet fields) {
+            this.predicates = predicates;
+            this.fields = fields;
+            advance();
+        }
+
+        private void advance() {
+            for (index++; index < numSlots; index++) {
+                if (isSlotUsed(index) && matchesAll(index)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean matchesAll(int slotId) {
+            for (Predicate p : predicates) {
+                if (!matches(slotId, p)) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
         @Override
         public boolean hasNext() {
-            return used < usedTupleSum && index < getNumTuples();
+            return index < numSlots;
         }
 
         @Override
@@ -375,13 +529,10 @@ public class HeapPage implements Page {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            while (!isSlotUsed(index)) {
-                index++;
-            }
-            used++;
-            return tuples[index++];
+            Tuple t = readTuple(index, fields);
+            advance();
+            return t;
         }
     }
 
 }
-
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * HotPageSet lets a BufferPool start warm after a restart. While the
+ * database runs, it saves the ids of the pool's pages to a small file every
+ * so often, the pages the replacement policy would keep longest first (see
+ * {@link ReplacementPolicy#ranking}). At startup, {@link #load} reads the
+ * saved pages back into the pool, so that the first queries after a restart
+ * find the pages they used before it in memory instead of on disk.
+ * <p>
+ * Loading takes the hottest pages that fit in the pool's free frames, then
+ * reads them in order of file and page number, a run of adjacent pages of
+ * a {@link HeapFile} at a time, so the disk sees large sequential reads
+ * rather than the random ones the queries would do. It never evicts a page
+ * and only takes shared locks without waiting: pages that another
+ * transaction has locked, or that belong to tables the catalog does not
+ * know (any more), are skipped.
+ * <p>
+ * The file holds the number of pages followed by the table id and page
+ * number of each page. It is written to a temporary file first and then
+ * renamed, so a crash while saving leaves the previous version.
+ *
+ * @see BufferPool#startHotPageSaver
+ * @see BufferPool#warmUp
+ */
+public class HotPageSet {
+
+    /**
+     * Default time in milliseconds between two saves.
+     */
+    public static final long DEFAULT_PERIOD_MS = 60_000;
+
+    private final BufferPool bufferPool;
+    private final File file;
+    private final long periodMillis;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param bufferPool   the pool to save the pages of, and to load them
+     *                     into
+     * @param file         the file to save the pages to
+     * @param periodMillis the time between two saves
+     */
+    public HotPageSet(BufferPool bufferPool, File file, long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("invalid period " + periodMillis);
+        }
+        this.bufferPool = bufferPool;
+        this.file = file;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * @return the file the pages are saved to
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Starts saving the pages every period.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "simpledb-hot-page-saver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops saving, after saving the pages one last time.
+     */
+    public void stop() throws IOException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+            notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            save();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            synchronized (this) {
+                if (running) {
+                    try {
+                        wait(periodMillis);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (running) {
+                try {
+                    save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the ids of the pages in the pool now.
+     *
+     * @return the number of pages saved
+     */
+    public int save() throws IOException {
+        List<PageId> pids = bufferPool.hotPages();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(pids.size());
+            for (PageId pid : pids) {
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.pageNumber());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return pids.size();
+    }
+
+    /**
+     * Reads a file written by {@link #save}.
+     *
+     * @return the saved pages, hottest first; empty if f does not exist
+     */
+    public static List<PageId> read(File f) throws IOException {
+        List<PageId> ret = new ArrayList<>();
+        if (!f.exists()) {
+            return ret;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int tableId = in.readInt();
+                int pgNo = in.readInt();
+                ret.add(new HeapPageId(tableId, pgNo));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the saved pages that fit in the pool's free frames into the
+     * pool, in order of file and page number.
+     *
+     * @return the number of pages read into the pool
+     */
+    public int load() throws IOException {
+        List<PageId> pids = new ArrayList<>();
+        int room = bufferPool.getNumPages() - bufferPool.cacheSize();
+        for (PageId pid : read(file)) {
+            if (pids.size() >= room) {
+                break;
+            }
+            if (bufferPool.isCached(pid)) {
+                continue;
+            }
+            DbFile f;
+            try {
+                f = Database.getCatalog().getDbFile(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            if (!(f instanceof HeapFile) || pid.pageNumber() < ((HeapFile) f).numPages()) {
+                pids.add(pid);
+            }
+        }
+        return bufferPool.preload(pids);
+    }
+
+    /**
+     * Like {@link #load}, on a thread of its own.
+     *
+     * @return the number of pages read into the pool, once they are
+     */
+    public CompletableFuture<Integer> loadInBackground() {
+        CompletableFuture<Integer> ret = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                ret.complete(load());
+            } catch (Throwable e) {
+                ret.completeExceptionally(e);
+            }
+        }, "simpledb-warm-up");
+        t.setDaemon(true);
+        t.start();
+        return ret;
+    }
+}
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableid specified in the
@@ -10,6 +12,11 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of child tuples handed to {@link BufferPool#insertTuples} at once
+     */
+    private static final int BATCH_SIZE = 1024;
+
     private TransactionId transactionId;
     private DbIterator child;
     private int tableid;
@@ -46,19 +53,26 @@ public class Insert extends Operator {
     /**
      * open是Insert的关键方法，open的时候就把事情做完了
      * todo 最终会调用HeapPage的insertTuple方法将数据写入，但是并没有写入磁盘还(只是内存)，应该有个flush操作吧
+     * <p>
+     * Child tuples are inserted in batches of {@link #BATCH_SIZE} through
+     * {@link BufferPool#insertTuples}.
      */
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         child.open();
         super.open();
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (child.hasNext()) {
-            Tuple next = child.next();
-            try {
-                // 插入tuple到指定的tableid中
-                Database.getBufferPool().insertTuple(transactionId, tableid, next);
-                count++;
-            } catch (IOException e) {
-                e.printStackTrace();
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    // 批量插入tuple到指定的tableid中
+                    Database.getBufferPool().insertTuples(transactionId, tableid, batch.iterator());
+                    count += batch.size();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                batch.clear();
             }
         }
     }
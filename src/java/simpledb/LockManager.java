@@ -1,16 +1,38 @@
 package simpledb;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * LockManager keeps the shared and exclusive page locks of transactions.
+ * <p>
+ * A request that cannot be granted right away joins a FIFO queue of the
+ * page and parks on a condition of its own. Whoever releases a lock on the
+ * page grants the requests at the head of its queue that have become
+ * compatible, in order, and wakes exactly those, so a waiter gets the lock
+ * as soon as it is free instead of at its next poll. A request never
+ * overtakes the queue: a new shared lock waits behind a waiting exclusive
+ * one, so writers do not starve behind a stream of readers. Upgrades (a
+ * transaction that holds a shared lock and asks for the exclusive one) go
+ * ahead of the other waiters, since those have to wait for the upgrading
+ * transaction anyway.
+ * <p>
+ * A request that would close a cycle in the waits-for graph, which takes
+ * the waiters ahead in the queues into account, aborts its transaction, as
+ * does one that waits longer than its transaction's lock-wait timeout
+ * (see {@link #setLockTimeout}).
+ *
  * @author: gaohan
  * @date: 2019-06-12
  */
 public class LockManager {
 
+    // 所有的锁信息和等待队列都由latch保护，每个等待的请求在latch的一个Condition上等待
+    private final ReentrantLock latch = new ReentrantLock();
+
     // Key相当于资源，LockState存放事务id与锁类型，故每个LockState代表某事务在Key上加了锁
     // 故整个map为所有资源的锁信息
     private Map<PageId, List<LockState>> lockStateMap;
@@ -18,86 +40,210 @@ public class LockManager {
     // Key为事务，PageId为正在等待的资源，相当于保存了等待的信息
     private Map<TransactionId, PageId> waitingInfo;
 
+    // 每个资源上按到达顺序排队的请求，升级请求排在最前面
+    private final Map<PageId, LinkedList<LockRequest>> waitQueues = new HashMap<>();
+
+    // 每个事务等待一个锁的最长时间(毫秒)，0表示一直等待
+    private final Map<TransactionId, Long> lockTimeouts = new ConcurrentHashMap<>();
+    private volatile long defaultLockTimeout;
+
+    /**
+     * A request waiting in the queue of a page.
+     */
+    private class LockRequest {
+        final TransactionId tid;
+        final Permissions perm;
+        final boolean upgrade;
+        final Condition granted = latch.newCondition();
+        boolean done;
+        boolean cancelled;
+
+        LockRequest(TransactionId tid, Permissions perm, boolean upgrade) {
+            this.tid = tid;
+            this.perm = perm;
+            this.upgrade = upgrade;
+        }
+    }
+
     public LockManager() {
         lockStateMap = new ConcurrentHashMap<>();
         waitingInfo = new ConcurrentHashMap<>();
     }
 
     /**
-     * 如果tid已经在pid上有读锁，返回true
-     * 如果tid在pid上已经有写锁，或者没有锁但条件允许tid给pid加读锁，则加锁后返回true
-     * 如果tid此时不能给pid加读锁，返回false
+     * Sets the time tid waits for a lock before it is aborted. The setting
+     * lasts until the locks of tid are released.
+     *
+     * @param millis the timeout in milliseconds, 0 to wait until granted
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("invalid timeout " + millis);
+        }
+        lockTimeouts.put(tid, millis);
+    }
+
+    /**
+     * Sets the lock-wait timeout of transactions that have not set their
+     * own.
+     *
+     * @param millis the timeout in milliseconds, 0 to wait until granted
+     */
+    public void setDefaultLockTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("invalid timeout " + millis);
+        }
+        defaultLockTimeout = millis;
+    }
+
+    /**
+     * @return the lock-wait timeout of tid in milliseconds, 0 if it waits
+     * until granted
+     */
+    public long getLockTimeout(TransactionId tid) {
+        Long t = lockTimeouts.get(tid);
+        return t == null ? defaultLockTimeout : t;
+    }
+
+    /**
+     * 如果tid已经在pid上有读锁或写锁，返回true
+     * 如果条件允许tid给pid加读锁，并且没有排在前面的等待者，则加锁后返回true
+     * 如果tid此时不能给pid加读锁，返回false，不等待
      *
      * @param tid
      * @param pid
      * @return
      */
-    public synchronized boolean grantSLock(TransactionId tid, PageId pid) {
-        ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
-        if (list != null && list.size() != 0) {
-            if (list.size() == 1) {//pid上只有一个锁
-                LockState ls = list.iterator().next();
-                if (ls.getTid().equals(tid)) {//判断是否为自己的锁
-                    //如果是读锁，直接返回（在||的之前返回），否则加锁再返回
-                    return ls.getPerm() == Permissions.READ_ONLY || lock(pid, tid, Permissions.READ_ONLY);
-                } else {
-                    //如果是别人的读锁，加锁再返回，是写锁则需要等待
-                    return ls.getPerm() == Permissions.READ_ONLY ? lock(pid, tid, Permissions.READ_ONLY) : wait(tid, pid);
-                }
-            } else {
-                // 多个锁有四种情况
-                // 1.两个锁，且都属于tid（一读一写）    2.两个锁，且都属于非tid的事务（一读一写）
-                // 3.多个读锁，且其中有一个为tid的读锁  4.多个读锁，且没有tid的读锁
-                for (LockState ls : list) {
-                    if (ls.getPerm() == Permissions.READ_WRITE) {
-                        //如果其中有一个写锁，那么根据是否为自己的来判断属于情况1还是2
-                        return ls.getTid().equals(tid) || wait(tid, pid);
-                    } else if (ls.getTid().equals(tid)) {//如果是读锁且是tid的
-                        return true;//情况3在此返回，也可能是情况1（如果先遍历到读锁）
-                    }
-                }
-                //情况4
-                return lock(pid, tid, Permissions.READ_ONLY);
-            }
-        } else {
-            return lock(pid, tid, Permissions.READ_ONLY);
+    public boolean grantSLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            return tryGrant(tid, pid, Permissions.READ_ONLY);
+        } finally {
+            latch.unlock();
         }
     }
 
     /**
      * 如果tid已经在pid上有写锁，则返回true
-     * 如果仅tid拥有pid的读锁，或tid在pid上没有锁但条件允许tid给pid加写锁，则加锁后返回true
-     * 如果tid此时不能给pid加写锁，返回false
+     * 如果仅tid拥有pid的读锁，或tid在pid上没有锁、也没有排在前面的等待者且条件允许tid给pid加写锁，则加锁后返回true
+     * 如果tid此时不能给pid加写锁，返回false，不等待
      *
      * @param tid
      * @param pid
      * @return
      */
-    public synchronized boolean grantXLock(TransactionId tid, PageId pid) {
-        ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
-        if (list != null && list.size() != 0) {
-            if (list.size() == 1) {//如果pid上只有一个锁
-                LockState ls = list.iterator().next();
-                // 如果是自己的写锁，直接返回（在||之前返回），否则加锁再返回（在lock处返回）
-                // 如果这个锁是别人的，必须等待，也就是在wait处（冒号之后）返回
-                return ls.getTid().equals(tid) ? ls.getPerm() == Permissions.READ_WRITE || lock(pid, tid, Permissions.READ_WRITE) : wait(tid, pid);
-            } else {
-                // 多个锁有三种情况，只有第一种情况返回true，其余返回wait
-                // 1.两个锁，且都属于tid（一读一写） 2.两个锁，且都属于非tid的事务（一读一写） 3.多个读锁
-                if (list.size() == 2) {
-                    for (LockState ls : list) {
-                        if (ls.getTid().equals(tid) && ls.getPerm() == Permissions.READ_WRITE) {
-                            return true;//两个锁而且有一个自己的写锁
+    public boolean grantXLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            return tryGrant(tid, pid, Permissions.READ_WRITE);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Blocks until tid holds a lock on pid for perm.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock, the
+     *                                     wait times out, or the locks of tid
+     *                                     are released meanwhile
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        latch.lock();
+        try {
+            if (tryGrant(tid, pid, perm)) {
+                return;
+            }
+            LockRequest req = enqueue(tid, pid, perm);
+            try {
+                long timeout = getLockTimeout(tid);
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (!req.done) {
+                    // 每次醒来都重新检查，等待期间waits-for图可能已经变化
+                    if (req.cancelled || deadlockOccurred(tid, pid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (timeout == 0) {
+                        req.granted.await();
+                    } else {
+                        if (nanos <= 0) {
+                            throw new TransactionAbortedException();
                         }
+                        nanos = req.granted.awaitNanos(nanos);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            } finally {
+                if (!req.done) {
+                    // 放弃等待，排在后面的请求可能因此可以加锁了
+                    LinkedList<LockRequest> queue = waitQueues.get(pid);
+                    if (queue != null) {
+                        queue.remove(req);
                     }
+                    grantWaiters(pid);
                 }
-                return wait(tid, pid);
+                waitingInfo.remove(tid, pid);
             }
-        } else {//pid上没有锁，可以加写锁
-            return lock(pid, tid, Permissions.READ_WRITE);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * tid已经有足够的锁时返回true；否则在兼容且不需要插队时加锁后返回true
+     */
+    private boolean tryGrant(TransactionId tid, PageId pid, Permissions perm) {
+        if (holds(tid, pid, perm)) {
+            return true;
+        }
+        // 升级时其他等待者反正要等tid结束，不算插队
+        boolean upgrade = holds(tid, pid, Permissions.READ_ONLY);
+        LinkedList<LockRequest> queue = waitQueues.get(pid);
+        if (!upgrade && queue != null && !queue.isEmpty()) {
+            return false;
         }
+        return compatible(tid, pid, perm) && lock(pid, tid, perm);
     }
 
+    /**
+     * @return whether tid holds a lock on pid that is at least as strong as
+     * perm
+     */
+    private boolean holds(TransactionId tid, PageId pid, Permissions perm) {
+        List<LockState> list = lockStateMap.get(pid);
+        if (list == null) {
+            return false;
+        }
+        for (LockState ls : list) {
+            if (ls.getTid().equals(tid) && (perm == Permissions.READ_ONLY || ls.getPerm() == Permissions.READ_WRITE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the locks other transactions hold on pid allow tid to
+     * lock it for perm
+     */
+    private boolean compatible(TransactionId tid, PageId pid, Permissions perm) {
+        List<LockState> list = lockStateMap.get(pid);
+        if (list == null) {
+            return true;
+        }
+        for (LockState ls : list) {
+            if (!ls.getTid().equals(tid) && conflicts(perm, ls.getPerm())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean conflicts(Permissions a, Permissions b) {
+        return a == Permissions.READ_WRITE || b == Permissions.READ_WRITE;
+    }
 
     /**
      * 加锁，表示tid在pid上有一个perm权限的锁，并返回true
@@ -106,7 +252,7 @@ public class LockManager {
      * @param tid
      * @param perm
      */
-    private synchronized boolean lock(PageId pid, TransactionId tid, Permissions perm) {
+    private boolean lock(PageId pid, TransactionId tid, Permissions perm) {
         LockState nls = new LockState(tid, perm);
         ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
         if (list == null) {
@@ -114,22 +260,67 @@ public class LockManager {
         }
         list.add(nls);
         lockStateMap.put(pid, list);
-        waitingInfo.remove(tid);
         return true;
     }
 
     /**
-     * 只是处理好waitingInfo的信息然后返回false
-     *
-     * @param tid
-     * @param pid
-     * @return
+     * 把请求放入pid的等待队列并记录等待信息。升级请求排在其他升级请求之后、普通请求之前
      */
-    private synchronized boolean wait(TransactionId tid, PageId pid) {
+    private LockRequest enqueue(TransactionId tid, PageId pid, Permissions perm) {
+        LockRequest req = new LockRequest(tid, perm, holds(tid, pid, Permissions.READ_ONLY));
+        LinkedList<LockRequest> queue = waitQueues.computeIfAbsent(pid, k -> new LinkedList<>());
+        if (req.upgrade) {
+            ListIterator<LockRequest> it = queue.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().upgrade) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(req);
+        } else {
+            queue.addLast(req);
+        }
         waitingInfo.put(tid, pid);
-        return false;
+        return req;
     }
 
+    /**
+     * 按顺序给pid队首已经兼容的请求加锁并唤醒它们，遇到第一个不能加锁的请求就停止
+     */
+    private void grantWaiters(PageId pid) {
+        LinkedList<LockRequest> queue = waitQueues.get(pid);
+        if (queue == null) {
+            return;
+        }
+        while (!queue.isEmpty()) {
+            LockRequest req = queue.getFirst();
+            if (!holds(req.tid, pid, req.perm)) {
+                if (!compatible(req.tid, pid, req.perm)) {
+                    break;
+                }
+                lock(pid, req.tid, req.perm);
+            }
+            queue.removeFirst();
+            req.done = true;
+            req.granted.signal();
+        }
+        if (queue.isEmpty()) {
+            waitQueues.remove(pid);
+        }
+    }
+
+    /**
+     * 事务放弃等待pid(例如tryGetPage失败)，清除其等待信息，避免误判死锁
+     */
+    public void cancelWait(TransactionId tid) {
+        latch.lock();
+        try {
+            waitingInfo.remove(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
 
     /**
      * hgao：如果只删除了一个读锁or写锁怎么办，没有删除完全
@@ -142,94 +333,119 @@ public class LockManager {
      * @param pid
      * @return
      */
-    public synchronized boolean unlock(TransactionId tid, PageId pid) {
-        ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
+    public boolean unlock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
 
-        if (list == null || list.size() == 0) return false;
-        List<LockState> lss = getLockState(tid, pid);
-        if (lss.isEmpty()) return false;
-        for (LockState ls : lss) {
-            list.remove(ls);
-            lockStateMap.put(pid, list);
+            if (list == null || list.size() == 0) return false;
+            List<LockState> lss = getLockState(tid, pid);
+            if (lss.isEmpty()) return false;
+            for (LockState ls : lss) {
+                list.remove(ls);
+            }
+            if (list.isEmpty()) {
+                lockStateMap.remove(pid);
+            }
+            grantWaiters(pid);
+            return true;
+        } finally {
+            latch.unlock();
         }
-        return true;
     }
 
     /**
-     * 释放事务tid拥有的所有锁
+     * 释放事务tid拥有的所有锁，tid仍在等待的请求被取消
      *
      * @param tid
      */
-    public synchronized void releaseTransactionLocks(TransactionId tid) {
-        //先找出所有，再释放
-        List<PageId> toRelease = getAllLocksByTid(tid);
-        for (PageId pid : toRelease) {
-            unlock(tid, pid);
+    public void releaseTransactionLocks(TransactionId tid) {
+        latch.lock();
+        try {
+            //先找出所有，再释放
+            List<PageId> toRelease = getAllLocksByTid(tid);
+            for (PageId pid : toRelease) {
+                unlock(tid, pid);
+            }
+            for (LinkedList<LockRequest> queue : waitQueues.values()) {
+                for (LockRequest req : queue) {
+                    if (req.tid.equals(tid)) {
+                        req.cancelled = true;
+                        req.granted.signal();
+                    }
+                }
+            }
+            lockTimeouts.remove(tid);
+        } finally {
+            latch.unlock();
         }
     }
 
     /**
-     * 拥有pid的ti的事务是否等待 tid所拥有的page(在tid所拥有的pages的waitingInfo中)
+     * tid在等待pid时，是否直接或间接地在等待它自己。tid所等待的事务是pid上与它冲突的持有者，
+     * 以及pid的队列中排在它前面、与它冲突的请求
      *
      * @param tid
      * @param pid
      * @return true表示进入了死锁，false表示没有
      */
-    public synchronized boolean deadlockOccurred(TransactionId tid, PageId pid) {//T1为tid，P3为pid
-        // 这些holders持有pid对应的page，所以他们不能再等待tid的pages了，不然tid等待holders，holders等待tid，死锁
-        List<LockState> holders = lockStateMap.get(pid);
-        if (holders == null || holders.size() == 0) {
-            return false;
-        }
-        List<PageId> pids = getAllLocksByTid(tid);//找出T1拥有的所有资源，即只含有P1的list
-        for (LockState ls : holders) {
-            TransactionId holder = ls.getTid();
-            //去掉T1，因为虽然上图没画出这种情况，但T1可能同时也在其他Page上有读锁，这会影响判断结果
-            if (!holder.equals(tid)) {
-                //判断T3(holder)是否直接或间接在等待P1(pids)
-                //由图可以看出T3在直接等待P2，而P2的拥有者T2在直接等待P1,即T3在间接等待P1
-                boolean isWaiting = isWaitingResources(holder, pids, tid);
-                if (isWaiting) {
+    public boolean deadlockOccurred(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            Set<TransactionId> visited = new HashSet<>();
+            Deque<TransactionId> toVisit = new ArrayDeque<>(blockers(tid, pid));
+            while (!toVisit.isEmpty()) {
+                TransactionId t = toVisit.pop();
+                if (t.equals(tid)) {
                     return true;
                 }
+                if (!visited.add(t)) {
+                    continue;
+                }
+                PageId waitingPage = waitingInfo.get(t);
+                if (waitingPage != null) {
+                    toVisit.addAll(blockers(t, waitingPage));
+                }
             }
+            return false;
+        } finally {
+            latch.unlock();
         }
-        return false;
     }
 
     /**
-     * 判断tid是否直接或间接地在等待pids中的某个资源
-     *
-     * @param tid
-     * @param pids
-     * @param toRemove 需要排除toRemove来判断，具体原因见方法内部注释；
-     *                 事实上，toRemove就是leadToDeadLock()的参数tid，也就是要排除它自己对判断过程的影响
-     * @return
+     * @return the transactions tid waits for to lock pid; a tid that is not
+     * in the queue of pid is taken to want an exclusive lock
      */
-    private synchronized boolean isWaitingResources(TransactionId tid, List<PageId> pids, TransactionId toRemove) {
-        PageId waitingPage = waitingInfo.get(tid);
-        if (waitingPage == null) {
-            return false;
-        }
-        for (PageId pid : pids) {
-            if (pid.equals(waitingPage)) {
-                return true;
+    private List<TransactionId> blockers(TransactionId tid, PageId pid) {
+        List<TransactionId> ret = new ArrayList<>();
+        Permissions perm = Permissions.READ_WRITE;
+        LinkedList<LockRequest> queue = waitQueues.get(pid);
+        if (queue != null) {
+            for (LockRequest req : queue) {
+                if (req.tid.equals(tid)) {
+                    perm = req.perm;
+                    break;
+                }
+            }
+            for (LockRequest req : queue) {
+                if (req.tid.equals(tid)) {
+                    break;
+                }
+                if (conflicts(perm, req.perm)) {
+                    ret.add(req.tid);
+                }
             }
         }
-        //到达这里说明tid并不直接在等待pids中的任意一个，但有可能间接在等待
-        //如果waitingPage的拥有者们(去掉toRemove)中的某一个正在等待pids中的某一个，说明是tid间接在等待
-        List<LockState> holders = lockStateMap.get(waitingPage);
-        if (holders == null || holders.size() == 0) return false;//该资源没有拥有者
-        for (LockState ls : holders) {
-            TransactionId holder = ls.getTid();
-            if (!holder.equals(toRemove)) {//去掉toRemove，在toRemove刚好拥有waitingResource的读锁时就需要
-                boolean isWaiting = isWaitingResources(holder, pids, toRemove);
-                if (isWaiting) return true;
+        List<LockState> holders = lockStateMap.get(pid);
+        if (holders != null) {
+            for (LockState ls : holders) {
+                if (!ls.getTid().equals(tid) && conflicts(perm, ls.getPerm())) {
+                    ret.add(ls.getTid());
+                }
             }
         }
-        //如果在for循环中没有return，说明每一个holder都不直接或间接等待pids
-        //故tid也非间接等待pids
-        return false;
+        return ret;
     }
 
     /**
@@ -237,18 +453,23 @@ public class LockManager {
      * @param pid 被上锁的page
      * @return tid代表的事务在pid上的锁;如果不存在该锁，返回null
      */
-    public synchronized List<LockState> getLockState(TransactionId tid, PageId pid) {
-        List<LockState> ret = new ArrayList<>();
-        ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
-        if (list == null || list.size() == 0) {
-            return null;
-        }
-        for (LockState ls : list) {
-            if (ls.getTid().equals(tid)) {//找到了对应的锁
-                ret.add(ls);
+    public List<LockState> getLockState(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            List<LockState> ret = new ArrayList<>();
+            ArrayList<LockState> list = (ArrayList<LockState>) lockStateMap.get(pid);
+            if (list == null || list.size() == 0) {
+                return null;
+            }
+            for (LockState ls : list) {
+                if (ls.getTid().equals(tid)) {//找到了对应的锁
+                    ret.add(ls);
+                }
             }
+            return ret;
+        } finally {
+            latch.unlock();
         }
-        return ret;
     }
 
     /**
@@ -257,12 +478,13 @@ public class LockManager {
      * @param tid
      * @return
      */
-    private synchronized List<PageId> getAllLocksByTid(TransactionId tid) {
+    private List<PageId> getAllLocksByTid(TransactionId tid) {
         ArrayList<PageId> pids = new ArrayList<>();
         for (Map.Entry<PageId, List<LockState>> entry : lockStateMap.entrySet()) {
             for (LockState ls : entry.getValue()) {
                 if (ls.getTid().equals(tid)) {
                     pids.add(entry.getKey());
+                    break;
                 }
             }
         }
@@ -6,6 +6,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -297,6 +299,65 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * 列裁剪: tells each SeqScan of the plan which of its fields the query
+     * references (in the SELECT list, WHERE clause, joins, GROUP BY and
+     * ORDER BY), so that scans of columnar (PAX) tables only decode those
+     * columns. Does nothing if the query selects "*" or a field can't be
+     * resolved; scans of tables none of whose fields are referenced are left
+     * alone, rather than returning tuples of nulls.
+     */
+    private void pruneScanColumns() {
+        if (selectList.isEmpty()) {
+            return;
+        }
+        List<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode)) {
+                names.add(lj.f2QuantifiedName);
+            }
+        }
+        names.add(groupByField);
+        names.add(aggField);
+        names.add(oByField);
+
+        HashMap<String, BitSet> referenced = new HashMap<String, BitSet>();
+        for (String name : names) {
+            if (name == null) {
+                continue;
+            }
+            int dot = name.indexOf('.');
+            if (dot < 0 || name.endsWith(".*")) {
+                return;
+            }
+            String alias = name.substring(0, dot);
+            DbIterator scan = subplanMap.get(alias);
+            if (!(scan instanceof SeqScan)) {
+                return;
+            }
+            int index;
+            try {
+                index = scan.getTupleDesc().fieldNameToIndex(name);
+            } catch (NoSuchElementException e) {
+                return;
+            }
+            if (!referenced.containsKey(alias)) {
+                referenced.put(alias, new BitSet());
+            }
+            referenced.get(alias).set(index);
+        }
+        for (Map.Entry<String, BitSet> e : referenced.entrySet()) {
+            ((SeqScan) subplanMap.get(e.getKey())).setReferencedFields(e.getValue());
+        }
+    }
+
     /**
      * hgao: 这个方法是proj3的总览
      * Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
@@ -333,6 +394,7 @@ public class LogicalPlan {
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
         }
+        pruneScanColumns();
 
         Iterator<LogicalFilterNode> filterIt = filters.iterator();
         // 处理filter的情况，即 where xx.id = 1 and xx.name = 'xxx', xx.age > 16 这种
@@ -366,8 +428,15 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            // 覆盖原来的table
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // 尽量把过滤条件下推到SeqScan，不满足条件的行不会被解码成tuple
+            DbIterator scan = subplan;
+            while (scan instanceof Filter) {
+                scan = ((Filter) scan).getChildren()[0];
+            }
+            if (!(scan instanceof SeqScan) || !((SeqScan) scan).pushDown(p)) {
+                // 覆盖原来的table
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * O'Neil, O'Neil and Weikum's LRU-K: evicts the page whose K-th most recent
+ * use lies furthest back. Pages used fewer than K times count as used
+ * infinitely long ago and go first (least recently used first), so pages
+ * touched once by a scan never push out pages with a history of reuse.
+ * <p>
+ * The history of an evicted page is remembered for a while (up to a pool's
+ * worth of pages), so that a page that comes back soon is recognized.
+ * <p>
+ * The pages in the pool are kept sorted by their eviction order, and are
+ * re-sorted one at a time as they are used, so evicting looks at the first
+ * few pages instead of sorting the pool. Hits are recorded in an
+ * {@link AccessBuffer} without taking the policy's lock and applied, in
+ * order, before the next change or eviction.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    private final int k;
+    private int maxGhosts;
+
+    private static class History {
+        // times[0]是最近一次访问
+        final long[] times;
+        int count;
+        boolean resident;
+        // 在order中的位置，不在pool中时为null
+        Key key;
+
+        History(int k) {
+            times = new long[k];
+        }
+    }
+
+    /**
+     * The position of a page in the eviction order: by K-th most recent
+     * use, then by most recent use, which is unique.
+     */
+    private static final class Key implements Comparable<Key> {
+        final long kth;
+        final long last;
+
+        Key(long kth, long last) {
+            this.kth = kth;
+            this.last = last;
+        }
+
+        public int compareTo(Key o) {
+            int c = Long.compare(kth, o.kth);
+            return c != 0 ? c : Long.compare(last, o.last);
+        }
+    }
+
+    private final Map<PageId, History> histories = new HashMap<>();
+    // pool中的page，按驱逐顺序排列
+    private final TreeMap<Key, PageId> order = new TreeMap<>();
+    // 已经被驱逐、但还保留了历史的page，最早驱逐的在前
+    private final LinkedHashSet<PageId> ghosts = new LinkedHashSet<>();
+    private long clock;
+    private final AccessBuffer accesses = new AccessBuffer();
+
+    /**
+     * @param k        the number of uses to remember per page, at least 1
+     * @param capacity the number of pages of the pool
+     */
+    public LruKPolicy(int k, int capacity) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.maxGhosts = capacity;
+    }
+
+    private void use(PageId pid, History h) {
+        if (h.key != null) {
+            order.remove(h.key);
+        }
+        System.arraycopy(h.times, 0, h.times, 1, k - 1);
+        h.times[0] = ++clock;
+        h.count++;
+        h.key = new Key(kthUse(h), h.times[0]);
+        order.put(h.key, pid);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        drain();
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(k);
+            histories.put(pid, h);
+        } else if (h.resident) {
+            return;
+        }
+        ghosts.remove(pid);
+        h.resident = true;
+        use(pid, h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (accesses.add(pid)) {
+            synchronized (this) {
+                drain();
+            }
+        }
+    }
+
+    private void use(PageId pid) {
+        History h = histories.get(pid);
+        if (h != null && h.resident) {
+            use(pid, h);
+        }
+    }
+
+    /**
+     * Applies the uses recorded since the last call; the caller holds the
+     * policy's lock.
+     */
+    private void drain() {
+        accesses.drain(this::use);
+    }
+
+    public synchronized void pageRemoved(PageId pid, boolean evicted) {
+        drain();
+        History h = histories.get(pid);
+        if (h != null && h.key != null) {
+            order.remove(h.key);
+            h.key = null;
+        }
+        if (!evicted) {
+            histories.remove(pid);
+            ghosts.remove(pid);
+            return;
+        }
+        if (h == null) {
+            return;
+        }
+        h.resident = false;
+        ghosts.add(pid);
+        trimGhosts();
+    }
+
+    private void trimGhosts() {
+        Iterator<PageId> it = ghosts.iterator();
+        while (ghosts.size() > maxGhosts && it.hasNext()) {
+            histories.remove(it.next());
+            it.remove();
+        }
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        drain();
+        maxGhosts = capacity;
+        trimGhosts();
+    }
+
+    private long kthUse(History h) {
+        // 访问次数不足K次的page，K距离视为无穷大
+        return h.count >= k ? h.times[k - 1] : 0;
+    }
+
+    /**
+     * Goes through the pages in eviction order one step at a time, each
+     * step under the policy's lock: a page used again meanwhile moves
+     * behind the iterator and is not offered again.
+     */
+    public Iterator<PageId> candidates() {
+        synchronized (this) {
+            drain();
+        }
+        return new Iterator<PageId>() {
+            private Key last;
+            private Map.Entry<Key, PageId> next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    synchronized (LruKPolicy.this) {
+                        next = last == null ? order.firstEntry() : order.higherEntry(last);
+                    }
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = next.getKey();
+                PageId ret = next.getValue();
+                next = null;
+                return ret;
+            }
+        };
+    }
+
+    public synchronized List<PageId> ranking() {
+        drain();
+        return new ArrayList<>(order.descendingMap().values());
+    }
+}
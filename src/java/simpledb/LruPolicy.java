@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evicts the least recently used page. Every use of a page appends an entry
+ * to a lock-free queue and makes it the page's current entry, so the
+ * queue holds the pages in order of use, with stale entries for pages that
+ * have been used again (or have left) since. Evicting walks the queue from
+ * its head and skips, and drops, the stale entries, so it does not depend
+ * on the size of the pool; when stale entries pile up because hits are
+ * much more frequent than misses, the queue is compacted.
+ * <p>
+ * Strict LRU has no resistance to scans: a scan of more pages than the pool
+ * holds pushes out every other page.
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    // 每个page当前有效的队列项，队列中其他指向该page的项都已过期
+    private final Map<PageId, Access> current = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Access> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private static final class Access {
+        final PageId pid;
+
+        Access(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    public void pageAdded(PageId pid) {
+        Access a = new Access(pid);
+        current.put(pid, a);
+        append(a);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Access old = current.get(pid);
+        if (old == null) {
+            return;
+        }
+        Access a = new Access(pid);
+        if (current.replace(pid, old, a)) {
+            append(a);
+        }
+    }
+
+    public void pageRemoved(PageId pid, boolean evicted) {
+        current.remove(pid);
+    }
+
+    private void append(Access a) {
+        queue.add(a);
+        if (queued.incrementAndGet() > 2 * current.size() + 64) {
+            compact();
+        }
+    }
+
+    private boolean stale(Access a) {
+        return current.get(a.pid) != a;
+    }
+
+    /**
+     * Drops the stale entries from the whole queue. Hits keep appending
+     * meanwhile; they are counted again from what is left.
+     */
+    private synchronized void compact() {
+        if (queued.get() <= 2 * current.size() + 64) {
+            return;
+        }
+        queue.removeIf(this::stale);
+        queued.set(queue.size());
+    }
+
+    public Iterator<PageId> candidates() {
+        return new Iterator<PageId>() {
+            private final Iterator<Access> it = queue.iterator();
+            // 还没遇到有效项时，遇到的过期项都在队首，可以直接出队
+            private boolean atHead = true;
+            private PageId next;
+
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    Access a = it.next();
+                    if (!stale(a)) {
+                        next = a.pid;
+                        atHead = false;
+                    } else if (atHead && queue.remove(a)) {
+                        queued.decrementAndGet();
+                    }
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PageId ret = next;
+                next = null;
+                return ret;
+            }
+        };
+    }
+}
@@ -0,0 +1,378 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * PageTable maps the ids of the pages cached by the {@link BufferPool} to
+ * the frames that hold them, so that threads looking up different pages do
+ * not contend with each other.
+ * <p>
+ * The table is split into hash-striped segments, each a HashMap guarded by
+ * its own lock, which is only held for the map lookup or update itself.
+ * Every cached page lives in a {@link Frame}; a frame is created empty on a
+ * miss and doubles as the latch for reading its page in, so that threads
+ * missing on the same page wait for one read instead of each reading it.
+ * <p>
+ * Which page to evict is up to a {@link ReplacementPolicy}, which the table
+ * keeps informed of every page that is added, used or removed. The policy
+ * is told about additions and removals under the segment lock of the page,
+ * so it always sees them in the same order as the table.
+ * <p>
+ * Every frame also carries the {@link Catalog.CachePriority cache priority}
+ * of its table, looked up once when the frame is added. Evicting goes
+ * through the policy's candidates for NORMAL pages first and only then for
+ * HIGH ones; PINNED pages are never evicted. At most
+ * {@link #setPinnedBudget the pinned budget} of frames are PINNED; pages of
+ * PINNED tables beyond it are cached as HIGH ones.
+ */
+public class PageTable {
+
+    /**
+     * Default number of segments
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * A slot of the page table. The page is null while it is being read in.
+     */
+    static final class Frame {
+        final PageId pid;
+        volatile Page page;
+        // 页面字节所在的FrameArena的slot，-1表示在堆上
+        int slot = -1;
+        // 正在使用这个page的次数，大于0时不会被驱逐；在segment的锁下修改
+        int pins;
+        // 加入时所属table的cache priority；在segment的锁下修改
+        Catalog.CachePriority priority = Catalog.CachePriority.NORMAL;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final HashMap<PageId, Frame>[] segments;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReplacementPolicy policy;
+    private final Function<PageId, Catalog.CachePriority> priorities;
+    // 每种priority的frame数，在segment的锁下修改
+    private final AtomicInteger[] counts = new AtomicInteger[Catalog.CachePriority.values().length];
+    private volatile int pinnedBudget = Integer.MAX_VALUE;
+
+    /**
+     * Creates a page table that evicts the least recently used pages.
+     */
+    public PageTable() {
+        this(DEFAULT_SEGMENTS, new LruPolicy());
+    }
+
+    /**
+     * @param numSegments the number of segments, rounded up to a power of 2
+     * @param policy      decides which pages {@link #evict} removes
+     */
+    public PageTable(int numSegments, ReplacementPolicy policy) {
+        this(numSegments, policy, pid -> Catalog.CachePriority.NORMAL);
+    }
+
+    /**
+     * @param numSegments the number of segments, rounded up to a power of 2
+     * @param policy      decides which pages {@link #evict} removes
+     * @param priorities  the cache priority of a page, asked once per frame
+     */
+    @SuppressWarnings("unchecked")
+    public PageTable(int numSegments, ReplacementPolicy policy, Function<PageId, Catalog.CachePriority> priorities) {
+        this.policy = policy;
+        this.priorities = priorities;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new AtomicInteger();
+        }
+        int n = 1;
+        while (n < numSegments) {
+            n <<= 1;
+        }
+        segments = new HashMap[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new HashMap<>();
+        }
+        mask = n - 1;
+    }
+
+    private HashMap<PageId, Frame> segmentFor(PageId pid) {
+        int h = pid.hashCode();
+        // 打散hash的高位，HeapPageId的hashCode低位变化很少
+        h ^= (h >>> 16);
+        h *= 0x9E3779B9;
+        return segments[(h >>> 16) & mask];
+    }
+
+    /**
+     * @return the cached page pid, or null if it is not (yet) in the table
+     */
+    public Page get(PageId pid) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        Frame f;
+        synchronized (seg) {
+            f = seg.get(pid);
+        }
+        if (f == null || f.page == null) {
+            return null;
+        }
+        policy.pageAccessed(pid);
+        return f.page;
+    }
+
+    /**
+     * Returns the frame of pid, adding an empty one if pid has none. The
+     * caller fills an empty frame under the frame's own lock.
+     */
+    Frame frameFor(PageId pid) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        Frame f;
+        synchronized (seg) {
+            f = seg.get(pid);
+            if (f == null) {
+                f = new Frame(pid);
+                f.priority = priorities.apply(pid);
+                if (f.priority == Catalog.CachePriority.PINNED
+                        && counts[f.priority.ordinal()].get() >= pinnedBudget) {
+                    // 超出预算的pinned page当作HIGH
+                    f.priority = Catalog.CachePriority.HIGH;
+                }
+                counts[f.priority.ordinal()].incrementAndGet();
+                seg.put(pid, f);
+                size.incrementAndGet();
+                policy.pageAdded(pid);
+                return f;
+            }
+        }
+        policy.pageAccessed(pid);
+        return f;
+    }
+
+    /**
+     * Puts page into the table, replacing the cached copy of its page if
+     * there is one.
+     */
+    public void put(Page page) {
+        Frame f = frameFor(page.getId());
+        synchronized (f) {
+            f.page = page;
+        }
+    }
+
+    /**
+     * Removes the frame of pid.
+     *
+     * @return whether pid had a frame
+     */
+    public boolean remove(PageId pid) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        synchronized (seg) {
+            Frame f = seg.remove(pid);
+            if (f == null) {
+                return false;
+            }
+            counts[f.priority.ordinal()].decrementAndGet();
+            policy.pageRemoved(pid, false);
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes f, unless its page has been given another frame meanwhile.
+     */
+    boolean remove(Frame f) {
+        HashMap<PageId, Frame> seg = segmentFor(f.pid);
+        synchronized (seg) {
+            if (seg.get(f.pid) != f) {
+                return false;
+            }
+            seg.remove(f.pid);
+            counts[f.priority.ordinal()].decrementAndGet();
+            policy.pageRemoved(f.pid, false);
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Pins the frame of pid, so that it is not evicted until it is
+     * unpinned as often as it was pinned.
+     *
+     * @return the pinned frame, or null if pid is not cached
+     */
+    Frame pin(PageId pid) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        synchronized (seg) {
+            Frame f = seg.get(pid);
+            if (f == null || f.page == null) {
+                return null;
+            }
+            f.pins++;
+            return f;
+        }
+    }
+
+    /**
+     * Undoes one {@link #pin} of f.
+     */
+    void unpin(Frame f) {
+        synchronized (segmentFor(f.pid)) {
+            if (f.pins > 0) {
+                f.pins--;
+            }
+        }
+    }
+
+    /**
+     * @return the frame of pid, or null, without counting as a use of pid
+     */
+    Frame peek(PageId pid) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        synchronized (seg) {
+            return seg.get(pid);
+        }
+    }
+
+    public boolean contains(PageId pid) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        synchronized (seg) {
+            return seg.containsKey(pid);
+        }
+    }
+
+    /**
+     * Tells the replacement policy that the pool now holds capacity pages.
+     */
+    void setCapacity(int capacity) {
+        policy.setCapacity(capacity);
+    }
+
+    /**
+     * Lets at most budget frames be PINNED. If more are, the ones the
+     * replacement policy would evict first become HIGH.
+     */
+    void setPinnedBudget(int budget) {
+        pinnedBudget = budget;
+        AtomicInteger pinned = counts[Catalog.CachePriority.PINNED.ordinal()];
+        for (Iterator<PageId> it = policy.candidates(); pinned.get() > budget && it.hasNext(); ) {
+            PageId pid = it.next();
+            HashMap<PageId, Frame> seg = segmentFor(pid);
+            synchronized (seg) {
+                Frame f = seg.get(pid);
+                if (f != null && f.priority == Catalog.CachePriority.PINNED) {
+                    f.priority = Catalog.CachePriority.HIGH;
+                    pinned.decrementAndGet();
+                    counts[f.priority.ordinal()].incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames that are PINNED
+     */
+    int pinnedCount() {
+        return counts[Catalog.CachePriority.PINNED.ordinal()].get();
+    }
+
+    /**
+     * @return the cached pages, the ones the replacement policy would keep
+     * longest first
+     */
+    List<PageId> ranking() {
+        return policy.ranking();
+    }
+
+    /**
+     * @return the number of frames, including the ones being read in
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return a snapshot of the cached pages, locking one segment at a time
+     */
+    public List<Page> pages() {
+        List<Page> ret = new ArrayList<>(size());
+        for (HashMap<PageId, Frame> seg : segments) {
+            synchronized (seg) {
+                for (Frame f : seg.values()) {
+                    Page p = f.page;
+                    if (p != null) {
+                        ret.add(p);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the first frame among the policy's candidates whose page is
+     * clean and not pinned, other than exclude, see {@link #evictFrame}.
+     *
+     * @return false if every other page is dirty, pinned or PINNED (or
+     * still being read)
+     */
+    boolean evict(Frame exclude) {
+        return evictFrame(exclude) != null;
+    }
+
+    /**
+     * Removes the first frame among the policy's candidates whose page is
+     * clean and not pinned, other than exclude. Pages of HIGH priority are
+     * only evicted when no NORMAL page can be, each level with its own
+     * pass over the candidates, which is skipped when the table has no
+     * frame of that level. PINNED pages are not evicted.
+     *
+     * @return the evicted frame, or null if every other page is dirty,
+     * pinned or PINNED (or still being read)
+     */
+    Frame evictFrame(Frame exclude) {
+        Frame f = evictFrame(exclude, Catalog.CachePriority.NORMAL);
+        return f != null ? f : evictFrame(exclude, Catalog.CachePriority.HIGH);
+    }
+
+    private Frame evictFrame(Frame exclude, Catalog.CachePriority level) {
+        Iterator<PageId> candidates = policy.candidates();
+        while (counts[level.ordinal()].get() > 0 && candidates.hasNext()) {
+            Frame f = tryEvict(candidates.next(), exclude, level);
+            if (f != null) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the frame of pid if its page is clean and not pinned, it is
+     * not exclude and its priority is level.
+     *
+     * @return the removed frame, or null
+     */
+    private Frame tryEvict(PageId pid, Frame exclude, Catalog.CachePriority level) {
+        HashMap<PageId, Frame> seg = segmentFor(pid);
+        Frame f;
+        synchronized (seg) {
+            f = seg.get(pid);
+            Page p = f == null ? null : f.page;
+            // dirty的page不能被驱逐(NO STEAL)，正在使用的page也不驱逐
+            if (f == exclude || p == null || p.isDirty() != null || f.pins > 0 || f.priority != level) {
+                return null;
+            }
+            seg.remove(pid);
+            counts[level.ordinal()].decrementAndGet();
+            policy.pageRemoved(pid, true);
+        }
+        size.decrementAndGet();
+        return f;
+    }
+}
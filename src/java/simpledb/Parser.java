@@ -596,7 +596,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -606,9 +606,23 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-warm hotPageFile]";
 
     protected void shutdown() {
+        // 报告压缩表的压缩比和压缩/解压耗时
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            DbFile f = Database.getCatalog().getDbFile(tableIt.next());
+            if (f instanceof CompressedHeapFile) {
+                System.out.println(f);
+            }
+        }
+        try {
+            // 保存最后一次的热点page，下次启动时预热
+            Database.getBufferPool().stopHotPageSaver();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -618,6 +632,8 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // cache=pinned的table在启动时整个读入buffer pool
+        Database.getBufferPool().loadPinnedTables();
 
         String queryFile = null;
 
@@ -635,6 +651,16 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-warm")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected file name after -warm\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    // 从上次保存的热点page预热buffer pool，并定期保存
+                    File hotPages = new File(argv[i]);
+                    Database.getBufferPool().warmUp(hotPages);
+                    Database.getBufferPool().startHotPageSaver(hotPages, HotPageSet.DEFAULT_PERIOD_MS);
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
@@ -0,0 +1,726 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Each instance of PaxPage stores data for one page of a HeapFile in the
+ * PAX layout ({@link HeapFile.PageFormat#PAX}): instead of storing rows
+ * one after the other, every column of the rows on the page is kept in its
+ * own "minipage", so that a scan that only needs some columns only decodes
+ * those.
+ * <p>
+ * The layout of a page is:
+ * <pre>
+ * int numRows | int minipage offset (one per column) | live bitmap | minipages
+ * </pre>
+ * The live bitmap has one bit per row (ceiling(numRows / 8) bytes); a row
+ * whose bit is clear has been deleted. Int minipages are bit-packed with
+ * whichever of two lightweight encodings is smaller:
+ * <ul>
+ * <li>frame of reference: every value is stored as value - min, using as
+ * many bits as max - min needs;</li>
+ * <li>delta: every value is stored as the (zigzag-encoded) difference to
+ * the previous row, which suits sorted or clustered columns.</li>
+ * </ul>
+ * An int minipage is one byte for the encoding, one byte for the bit width,
+ * an int base (min, or the first value), and then numRows packed values.
+ * String minipages store each value as an unsigned short length followed by
+ * the characters. An all-zero page is a valid empty page.
+ * <p>
+ * Rows are only ever appended, so row numbers (the slot of a RecordId) are
+ * stable; the space of deleted rows is not reused. Columns are decoded from
+ * the page bytes the first time they are needed; a modified page is
+ * re-encoded when its bytes are asked for.
+ *
+ * @see HeapFile
+ */
+public class PaxPage implements TuplePage {
+
+    private static final int FOR = 0;
+    private static final int DELTA = 1;
+    private static final int INT_MINIPAGE_HEADER = 6;
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int pageSize;
+
+    // page的字节；modified时已经过期，需要重新编码
+    private ByteBuffer data;
+    private ByteBuffer oldData;
+    private boolean modified;
+
+    private int numRows;
+    private BitSet live;
+    // 已经解码的列，int[]或String[]，没有用到的列保持为null
+    private final Object[] columns;
+
+    // 插入时用来计算编码后大小的统计信息，只有在所有列都解码后才有效
+    private boolean materialized;
+    private int[] min, max, last;
+    private long[] maxZigzag;
+    private int[] stringBytes;
+
+    private TransactionId lastDirtyOperation;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk.
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a PaxPage from a buffer holding the page image, starting at the
+     * buffer's current position. The buffer is never written to.
+     *
+     * @throws IOException if the bytes are not a valid PAX page
+     */
+    public PaxPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data,
+                Database.getCatalog().getPageSize(id.getTableId()));
+    }
+
+    /**
+     * Create a page of pageSize bytes for tuples of td without looking the
+     * table up in the catalog, e.g. to build pages in {@link HeapFileEncoder}.
+     */
+    PaxPage(HeapPageId id, TupleDesc td, ByteBuffer data, int pageSize) throws IOException {
+        this.pid = id;
+        this.td = td;
+        this.pageSize = pageSize;
+        this.columns = new Object[td.numFields()];
+
+        ByteBuffer bb = data.duplicate();
+        if (bb.remaining() >= pageSize) {
+            bb.limit(bb.position() + pageSize);
+            this.data = bb.slice();
+        } else {
+            byte[] copy = new byte[pageSize];
+            bb.get(copy, 0, bb.remaining());
+            this.data = ByteBuffer.wrap(copy);
+        }
+
+        numRows = this.data.getInt(0);
+        int bitmapStart = headerSize();
+        if (numRows < 0 || bitmapStart + (numRows + 7) / 8 > pageSize) {
+            throw new IOException("corrupt PAX page " + id);
+        }
+        live = new BitSet(numRows);
+        for (int i = 0; i < numRows; i++) {
+            if ((this.data.get(bitmapStart + i / 8) >> (i % 8) & 1) == 1) {
+                live.set(i);
+            }
+        }
+        setBeforeImage();
+    }
+
+    private int headerSize() {
+        return 4 + 4 * td.numFields();
+    }
+
+    // ------------------------------------------------------------------
+    // decoding
+
+    private int minipageOffset(int col) {
+        return data.getInt(4 + 4 * col);
+    }
+
+    /**
+     * @return column col of all rows on the page, decoding it if needed
+     */
+    private int[] intColumn(int col) {
+        if (columns[col] == null) {
+            int[] values = new int[Math.max(numRows, 16)];
+            if (numRows > 0) {
+                int off = minipageOffset(col);
+                int encoding = data.get(off);
+                int bits = data.get(off + 1);
+                int base = data.getInt(off + 2);
+                BitReader in = new BitReader(data, off + INT_MINIPAGE_HEADER);
+                int prev = base;
+                for (int i = 0; i < numRows; i++) {
+                    long v = in.read(bits);
+                    if (encoding == FOR) {
+                        values[i] = (int) (base + v);
+                    } else {
+                        int zz = (int) v;
+                        prev = i == 0 ? base : prev + ((zz >>> 1) ^ -(zz & 1));
+                        values[i] = prev;
+                    }
+                }
+            }
+            columns[col] = values;
+        }
+        return (int[]) columns[col];
+    }
+
+    private String[] stringColumn(int col) {
+        if (columns[col] == null) {
+            String[] values = new String[Math.max(numRows, 16)];
+            if (numRows > 0) {
+                int pos = minipageOffset(col);
+                for (int i = 0; i < numRows; i++) {
+                    int len = data.getShort(pos) & 0xffff;
+                    byte[] bs = new byte[len];
+                    ByteBuffer bb = data.duplicate();
+                    bb.position(pos + 2);
+                    bb.get(bs);
+                    values[i] = new String(bs);
+                    pos += 2 + len;
+                }
+            }
+            columns[col] = values;
+        }
+        return (String[]) columns[col];
+    }
+
+    private Field readField(int row, int col) {
+        if (td.getFieldType(col) == Type.INT_TYPE) {
+            return new IntField(intColumn(col)[row]);
+        }
+        return new StringField(stringColumn(col)[row], Type.STRING_LEN);
+    }
+
+    /**
+     * Decodes a single field of the tuple in row slotId.
+     *
+     * @throws NoSuchElementException if the row is empty or deleted
+     */
+    public Field getField(int slotId, int col) throws NoSuchElementException {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        return readField(slotId, col);
+    }
+
+    /**
+     * Evaluates p against the row slotId. Only the column p refers to is
+     * decoded.
+     */
+    public boolean matches(int slotId, Predicate p) {
+        int col = p.getField();
+        if (td.getFieldType(col) == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+            return IntField.compare(intColumn(col)[slotId], p.getOp(), ((IntField) p.getOperand()).getValue());
+        }
+        return readField(slotId, col).compare(p.getOp(), p.getOperand());
+    }
+
+    private Tuple readTuple(int slotId, BitSet fields) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            if (fields == null || fields.get(j)) {
+                t.setField(j, readField(slotId, j));
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int slotId) {
+        return slotId >= 0 && slotId < numRows && live.get(slotId);
+    }
+
+    /**
+     * @return the number of rows on the page, including deleted ones
+     */
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // ------------------------------------------------------------------
+    // encoding
+
+    private static int bitsFor(long unsigned) {
+        return 64 - Long.numberOfLeadingZeros(unsigned);
+    }
+
+    static long zigzag(int d) {
+        return ((d << 1) ^ (d >> 31)) & 0xffffffffL;
+    }
+
+    /**
+     * Decodes every column and computes the statistics used to size the
+     * encoded page, so that rows can be appended.
+     */
+    private void materialize() {
+        if (materialized) {
+            return;
+        }
+        int nf = td.numFields();
+        min = new int[nf];
+        max = new int[nf];
+        last = new int[nf];
+        maxZigzag = new long[nf];
+        stringBytes = new int[nf];
+        for (int j = 0; j < nf; j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int[] values = intColumn(j);
+                min[j] = Integer.MAX_VALUE;
+                max[j] = Integer.MIN_VALUE;
+                for (int i = 0; i < numRows; i++) {
+                    min[j] = Math.min(min[j], values[i]);
+                    max[j] = Math.max(max[j], values[i]);
+                    if (i > 0) {
+                        maxZigzag[j] = Math.max(maxZigzag[j], zigzag(values[i] - values[i - 1]));
+                    }
+                }
+                last[j] = numRows > 0 ? values[numRows - 1] : 0;
+            } else {
+                String[] values = stringColumn(j);
+                for (int i = 0; i < numRows; i++) {
+                    stringBytes[j] += 2 + values[i].length();
+                }
+            }
+        }
+        materialized = true;
+    }
+
+    /**
+     * @return the bit width and encoding of int column col for rows with
+     * the given statistics
+     */
+    private static int forBits(int min, int max) {
+        return bitsFor((long) max - min);
+    }
+
+    private static int intMinipageSize(int rows, int bits) {
+        return INT_MINIPAGE_HEADER + (int) (((long) rows * bits + 7) / 8);
+    }
+
+    /**
+     * @return the size of the minipage of an int column of rows values
+     * between min and max, whose zigzag-encoded differences are at most
+     * maxZigzag
+     */
+    static int intMinipageSize(int rows, int min, int max, long maxZigzag) {
+        return intMinipageSize(rows, Math.min(forBits(min, max), bitsFor(maxZigzag)));
+    }
+
+    /**
+     * Writes the minipage of the first rows values of an int column, with
+     * the statistics of {@link #intMinipageSize(int, int, int, long)}, at
+     * pos of out.
+     *
+     * @return the size of the minipage
+     */
+    static int writeIntMinipage(ByteBuffer out, int pos, int[] values, int rows, int min, int max, long maxZigzag) {
+        int fBits = forBits(min, max);
+        int dBits = bitsFor(maxZigzag);
+        boolean delta = dBits < fBits;
+        int bits = delta ? dBits : fBits;
+        out.put(pos, (byte) (delta ? DELTA : FOR));
+        out.put(pos + 1, (byte) bits);
+        out.putInt(pos + 2, delta ? values[0] : min);
+        BitWriter w = new BitWriter(out, pos + INT_MINIPAGE_HEADER);
+        for (int i = 0; i < rows; i++) {
+            if (delta) {
+                w.write(i == 0 ? 0 : zigzag(values[i] - values[i - 1]), bits);
+            } else {
+                w.write(((long) values[i] - min) & 0xffffffffL, bits);
+            }
+        }
+        w.flush();
+        return intMinipageSize(rows, bits);
+    }
+
+    /**
+     * @return the number of bytes the page takes up encoded, if t (when not
+     * null) were appended to it
+     */
+    private int encodedSize(Tuple t) {
+        materialize();
+        int rows = numRows + (t == null ? 0 : 1);
+        int size = headerSize() + (rows + 7) / 8;
+        if (rows == 0) {
+            return size;
+        }
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int lo = min[j], hi = max[j];
+                long zz = maxZigzag[j];
+                if (t != null) {
+                    int v = ((IntField) t.getField(j)).getValue();
+                    lo = numRows == 0 ? v : Math.min(lo, v);
+                    hi = numRows == 0 ? v : Math.max(hi, v);
+                    if (numRows > 0) {
+                        zz = Math.max(zz, zigzag(v - last[j]));
+                    }
+                }
+                size += intMinipageSize(rows, lo, hi, zz);
+            } else {
+                size += stringBytes[j];
+                if (t != null) {
+                    size += 2 + stringValue(t, j).length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static String stringValue(Tuple t, int j) {
+        String s = ((StringField) t.getField(j)).getValue();
+        return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+    }
+
+    /**
+     * Encodes the rows into a fresh page image.
+     */
+    private ByteBuffer encode() {
+        materialize();
+        ByteBuffer out = ByteBuffer.allocate(pageSize);
+        int nf = td.numFields();
+        out.putInt(0, numRows);
+        int pos = headerSize();
+        for (int i = 0; i < numRows; i++) {
+            if (live.get(i)) {
+                out.put(pos + i / 8, (byte) (out.get(pos + i / 8) | (1 << (i % 8))));
+            }
+        }
+        pos += (numRows + 7) / 8;
+        for (int j = 0; j < nf; j++) {
+            out.putInt(4 + 4 * j, numRows == 0 ? 0 : pos);
+            if (numRows == 0) {
+                continue;
+            }
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                pos += writeIntMinipage(out, pos, intColumn(j), numRows, min[j], max[j], maxZigzag[j]);
+            } else {
+                String[] values = stringColumn(j);
+                for (int i = 0; i < numRows; i++) {
+                    String s = values[i];
+                    out.putShort(pos, (short) s.length());
+                    for (int k = 0; k < s.length(); k++) {
+                        out.put(pos + 2 + k, (byte) s.charAt(k));
+                    }
+                    pos += 2 + s.length();
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Makes data reflect the current rows.
+     */
+    private void syncData() {
+        if (modified) {
+            data = encode();
+            modified = false;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // modification
+
+    /**
+     * @return true if t can be appended to this page
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return encodedSize(t) <= pageSize;
+    }
+
+    /**
+     * Appends t to the page if it fits. Does not touch t's RecordId.
+     *
+     * @return the row t was stored in, or -1 if it does not fit
+     */
+    int add(Tuple t) {
+        if (!hasRoomFor(t)) {
+            return -1;
+        }
+        int row = numRows;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int v = ((IntField) t.getField(j)).getValue();
+                int[] values = intColumn(j);
+                if (row == values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                    columns[j] = values;
+                }
+                values[row] = v;
+                if (row > 0) {
+                    maxZigzag[j] = Math.max(maxZigzag[j], zigzag(v - last[j]));
+                }
+                min[j] = row == 0 ? v : Math.min(min[j], v);
+                max[j] = row == 0 ? v : Math.max(max[j], v);
+                last[j] = v;
+            } else {
+                String s = stringValue(t, j);
+                String[] values = stringColumn(j);
+                if (row == values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                    columns[j] = values;
+                }
+                values[row] = s;
+                stringBytes[j] += 2 + s.length();
+            }
+        }
+        live.set(row);
+        numRows++;
+        modified = true;
+        return row;
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     * that it is now stored on this page.
+     *
+     * @param t The tuple to add.
+     * @throws DbException if the page does not have room for t or tupledesc
+     *                     is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("tuple description is mismatch.");
+        }
+        int row = add(t);
+        if (row < 0) {
+            throw new DbException("this page is full(not enough free space).");
+        }
+        t.setRecordId(new RecordId(pid, row));
+        noteFreeSpace();
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @param t The tuple to delete
+     * @throws DbException if this tuple is not on this page, or it is
+     *                     already deleted.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid) || !isSlotUsed(rid.tupleno())) {
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        }
+        materialize();
+        live.clear(rid.tupleno());
+        modified = true;
+        noteFreeSpace();
+    }
+
+    /**
+     * Free space in units of {@link SlottedPage#UNIT_SIZE} bytes. As the
+     * encoded size of a row depends on the other rows, this is only an
+     * estimate; {@link #hasRoomFor} is exact.
+     */
+    public int getFreeUnits() {
+        return Math.max(0, pageSize - encodedSize(null)) / SlottedPage.UNIT_SIZE;
+    }
+
+    private void noteFreeSpace() {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).noteFreeSpace(pid.pageNumber(), getFreeUnits());
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Page
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    public byte[] getPageData() {
+        syncData();
+        byte[] bytes = new byte[pageSize];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public ByteBuffer getPageBuffer() {
+        syncData();
+        return data.asReadOnlyBuffer();
+    }
+
+    public void moveTo(ByteBuffer frame) {
+        syncData();
+        ByteBuffer bb = frame.duplicate();
+        bb.clear();
+        bb.put(data.duplicate());
+        bb.clear();
+        data = bb;
+        oldData = bb;
+    }
+
+    public void moveToHeap() {
+        boolean shared = oldData == data;
+        if (data.isDirect()) {
+            data = heapCopy(data);
+        }
+        if (shared) {
+            oldData = data;
+        } else if (oldData.isDirect()) {
+            oldData = heapCopy(oldData);
+        }
+    }
+
+    private ByteBuffer heapCopy(ByteBuffer bb) {
+        ByteBuffer copy = ByteBuffer.allocate(pageSize);
+        copy.put(bb.duplicate());
+        copy.clear();
+        return copy;
+    }
+
+    public PaxPage getBeforeImage() {
+        try {
+            return new PaxPage(pid, td, oldData, pageSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        syncData();
+        oldData = data;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return iterator(Collections.<Predicate>emptyList(), null);
+    }
+
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        return iterator(predicates, null);
+    }
+
+    /**
+     * Only the columns in fields (and those predicates refer to) are
+     * decoded; the other fields of the returned tuples are null.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates, BitSet fields) {
+        return new TupleIterator(predicates, fields);
+    }
+
+    private class TupleIterator implements Iterator<Tuple> {
+
+        private final List<Predicate> predicates;
+        private final BitSet fields;
+        private final int rows = numRows;
+        private int index = -1;
+
+        TupleIterator(List<Predicate> predicates, BitSet fields) {
+            this.predicates = predicates;
+            this.fields = fields;
+            advance();
+        }
+
+        private void advance() {
+            for (index++; index < rows; index++) {
+                if (live.get(index) && matchesAll(index)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean matchesAll(int row) {
+            for (Predicate p : predicates) {
+                if (!matches(row, p)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < rows;
+        }
+
+        @Override
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = readTuple(index, fields);
+            advance();
+            return t;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // bit packing
+
+    /**
+     * Reads consecutive values of up to 32 bits, least significant bit
+     * first, from a buffer.
+     */
+    private static class BitReader {
+        private final ByteBuffer bb;
+        private int pos;
+        private long acc;
+        private int accBits;
+
+        BitReader(ByteBuffer bb, int pos) {
+            this.bb = bb;
+            this.pos = pos;
+        }
+
+        long read(int bits) {
+            if (bits == 0) {
+                return 0;
+            }
+            while (accBits < bits) {
+                acc |= (long) (bb.get(pos++) & 0xff) << accBits;
+                accBits += 8;
+            }
+            long v = acc & ((1L << bits) - 1);
+            acc >>>= bits;
+            accBits -= bits;
+            return v;
+        }
+    }
+
+    /**
+     * Writes consecutive values of up to 32 bits, least significant bit
+     * first, into a buffer.
+     */
+    private static class BitWriter {
+        private final ByteBuffer bb;
+        private int pos;
+        private long acc;
+        private int accBits;
+
+        BitWriter(ByteBuffer bb, int pos) {
+            this.bb = bb;
+            this.pos = pos;
+        }
+
+        void write(long v, int bits) {
+            if (bits == 0) {
+                return;
+            }
+            acc |= (v & ((1L << bits) - 1)) << accBits;
+            accBits += bits;
+            while (accBits >= 8) {
+                bb.put(pos++, (byte) acc);
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+
+        void flush() {
+            if (accBits > 0) {
+                bb.put(pos++, (byte) acc);
+                acc = 0;
+                accBits = 0;
+            }
+        }
+    }
+}
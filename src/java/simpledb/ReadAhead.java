@@ -0,0 +1,246 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead reads the pages a sequential scan of a {@link HeapFile} is about
+ * to use on the BufferPool's read-ahead threads, so that the scan's I/O
+ * overlaps with its processing of the pages before them.
+ * <p>
+ * Every time the scan moves on to a new batch of pages it calls
+ * {@link #advance}, and ReadAhead issues reads for the window of pages
+ * after that batch. The scan's transaction takes shared locks on the
+ * window's pages up front (without waiting; issuing stops at the first
+ * page another transaction has locked), so the pages cannot change between
+ * being read and being used. Pages that are read ahead are kept here, not
+ * in the pool, until {@link BufferPool#getPages} asks for them, so a scan
+ * that stops early leaves nothing behind in the pool, and the replacement
+ * policy only sees the scan's real references.
+ * <p>
+ * The window adapts to the scan: it is sized so that the pages the scan
+ * consumes while one page is being read are in flight (from moving
+ * averages of the scan's consumption rate and the read latency), doubles
+ * whenever the scan has to wait for a page that is still being read, and
+ * shrinks back gradually otherwise. The BufferPool keeps {@link Metrics}
+ * over all scans.
+ */
+public class ReadAhead {
+
+    /**
+     * Read-ahead counters of a BufferPool, over all scans.
+     */
+    public static class Metrics {
+        private final AtomicLong pagesRead = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong stalls = new AtomicLong();
+        private final AtomicLong advances = new AtomicLong();
+        private final AtomicLong windowPages = new AtomicLong();
+        private volatile int lastWindow;
+
+        /**
+         * @return the number of pages read ahead
+         */
+        public long getPagesRead() {
+            return pagesRead.get();
+        }
+
+        /**
+         * @return the number of pages scans found already read ahead
+         */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @return how often a scan had to wait for a page that was still
+         * being read ahead
+         */
+        public long getStalls() {
+            return stalls.get();
+        }
+
+        /**
+         * @return the average window size in pages
+         */
+        public double getAverageWindow() {
+            long n = advances.get();
+            return n == 0 ? 0 : (double) windowPages.get() / n;
+        }
+
+        /**
+         * @return the window size of the scan that advanced last
+         */
+        public int getLastWindow() {
+            return lastWindow;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read ahead %d pages, %d hits, %d stalls, average window %.1f pages",
+                    getPagesRead(), getHits(), getStalls(), getAverageWindow());
+        }
+    }
+
+    private final BufferPool bufferPool;
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final ScanRing ring;
+    private final int minWindow;
+    private final int maxWindow;
+
+    // 已经发出读取请求的page
+    private final Map<PageId, CompletableFuture<Page>> issued = new ConcurrentHashMap<>();
+    // 下一个还没发出读取请求的page
+    private int issuedUpTo;
+    private int window;
+    private boolean stalled;
+
+    // 扫描的消费速度(page/ns)和读一个page的时间(ns)的滑动平均
+    private double consumeRate;
+    private volatile double readNanos;
+    private long lastTime;
+    private int lastPos;
+
+    /**
+     * @param bufferPool the pool the scan reads through
+     * @param tid        the transaction of the scan
+     * @param file       the file being scanned
+     * @param ring       the ring of the scan, or null
+     * @param minWindow  the smallest window, usually the scan's batch size
+     * @param maxWindow  the largest window
+     */
+    ReadAhead(BufferPool bufferPool, TransactionId tid, HeapFile file, ScanRing ring, int minWindow, int maxWindow) {
+        this.bufferPool = bufferPool;
+        this.tid = tid;
+        this.file = file;
+        this.ring = ring;
+        this.minWindow = minWindow;
+        this.maxWindow = Math.max(minWindow, maxWindow);
+        this.window = minWindow;
+    }
+
+    /**
+     * @return the current window size in pages
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * The scan is about to use the pages from next on: adapts the window
+     * and issues reads for the pages in it that are not resident or in
+     * flight already.
+     */
+    public void advance(int next) throws DbException {
+        long now = System.nanoTime();
+        if (lastTime != 0 && next > lastPos && now > lastTime) {
+            double rate = (double) (next - lastPos) / (now - lastTime);
+            consumeRate = consumeRate == 0 ? rate : (consumeRate + rate) / 2;
+        }
+        lastTime = now;
+        lastPos = next;
+
+        int want = minWindow + (int) Math.ceil(2 * consumeRate * readNanos * minWindow);
+        if (stalled) {
+            want = Math.max(want, window * 2);
+            stalled = false;
+        } else if (want < window) {
+            want = (window + want) / 2;
+        }
+        window = Math.max(minWindow, Math.min(maxWindow, want));
+        Metrics m = bufferPool.getReadAheadMetrics();
+        m.advances.incrementAndGet();
+        m.windowPages.addAndGet(window);
+        m.lastWindow = window;
+
+        int end = Math.min(file.numPages(), next + window);
+        int first = -1;
+        for (int pgNo = Math.max(issuedUpTo, next); pgNo < end; pgNo++) {
+            PageId pid = new HeapPageId(file.getId(), pgNo);
+            boolean resident = bufferPool.isCached(pid) || (ring != null && ring.get(pid) != null)
+                    || bufferPool.inSecondTier(pid);
+            if (!resident && !bufferPool.tryLock(tid, pid, Permissions.READ_ONLY)) {
+                // 被其他事务锁住，扫描到这里时再等待
+                end = pgNo;
+                break;
+            }
+            if (resident) {
+                if (first >= 0) {
+                    issue(first, pgNo - first);
+                    first = -1;
+                }
+            } else if (first < 0) {
+                first = pgNo;
+            }
+        }
+        if (first >= 0) {
+            issue(first, end - first);
+        }
+        issuedUpTo = Math.max(issuedUpTo, end);
+    }
+
+    /**
+     * Reads count pages from first on, in the background.
+     */
+    private void issue(int first, int count) {
+        final List<CompletableFuture<Page>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CompletableFuture<Page> f = new CompletableFuture<>();
+            issued.put(new HeapPageId(file.getId(), first + i), f);
+            futures.add(f);
+        }
+        bufferPool.readAheadExecutor().execute(() -> {
+            try {
+                // 先取还没写回的版本，再读磁盘：查过之后才写回的page，读到的已经是新版本
+                Page[] pending = new Page[count];
+                for (int i = 0; i < count; i++) {
+                    pending[i] = bufferPool.pendingCopy(new HeapPageId(file.getId(), first + i));
+                }
+                long start = System.nanoTime();
+                List<Page> pages = file.readPages(first, count);
+                double nanos = (double) (System.nanoTime() - start) / Math.max(1, pages.size());
+                readNanos = readNanos == 0 ? nanos : (readNanos + nanos) / 2;
+                bufferPool.getReadAheadMetrics().pagesRead.addAndGet(pages.size());
+                for (int i = 0; i < count; i++) {
+                    Page page = pending[i];
+                    if (page == null && i < pages.size()) {
+                        page = pages.get(i);
+                    }
+                    futures.get(i).complete(page);
+                }
+            } catch (Throwable e) {
+                for (CompletableFuture<Page> f : futures) {
+                    f.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands over page pid if it has been read ahead, waiting for the read
+     * if it is still in flight.
+     *
+     * @return the page, or null if it was not read ahead
+     */
+    Page take(PageId pid) {
+        CompletableFuture<Page> f = issued.remove(pid);
+        if (f == null) {
+            return null;
+        }
+        Metrics m = bufferPool.getReadAheadMetrics();
+        if (!f.isDone()) {
+            stalled = true;
+            m.stalls.incrementAndGet();
+        }
+        Page page = f.join();
+        if (page != null) {
+            m.hits.incrementAndGet();
+        }
+        return page;
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A list of pages in the order they were last added (or moved) to its end,
+ * for the LRU and FIFO queues of {@link TwoQueuePolicy} and
+ * {@link ArcPolicy}. Every page carries the stamp it was added with, so
+ * an {@link #iterator} only remembers the stamp of the last page it
+ * returned and finds the next one from there. Evicting therefore looks at
+ * the few pages it needs rather than copying the list, and the list may
+ * change between the steps of an iterator: pages added after it started
+ * come at the end, pages removed are skipped.
+ * <p>
+ * Not thread safe; the policy using it synchronizes all calls, including
+ * the iterator's, on itself.
+ */
+class RecencyList {
+
+    private final TreeMap<Long, PageId> order = new TreeMap<>();
+    private final Map<PageId, Long> stamps = new HashMap<>();
+    private long clock;
+
+    int size() {
+        return stamps.size();
+    }
+
+    boolean isEmpty() {
+        return stamps.isEmpty();
+    }
+
+    boolean contains(PageId pid) {
+        return stamps.containsKey(pid);
+    }
+
+    /**
+     * Puts pid at the end of the list, moving it there if it is in the list
+     * already.
+     */
+    void addLast(PageId pid) {
+        Long old = stamps.put(pid, ++clock);
+        if (old != null) {
+            order.remove(old);
+        }
+        order.put(clock, pid);
+    }
+
+    /**
+     * @return whether pid was in the list
+     */
+    boolean remove(PageId pid) {
+        Long old = stamps.remove(pid);
+        if (old == null) {
+            return false;
+        }
+        order.remove(old);
+        return true;
+    }
+
+    /**
+     * Removes the first page of a non-empty list.
+     */
+    PageId removeFirst() {
+        PageId pid = order.pollFirstEntry().getValue();
+        stamps.remove(pid);
+        return pid;
+    }
+
+    /**
+     * @return the pages from the first to the last
+     */
+    List<PageId> toList() {
+        return new ArrayList<>(order.values());
+    }
+
+    /**
+     * Returns the pages from the first to the last. Each step synchronizes
+     * on lock.
+     */
+    Iterator<PageId> iterator(Object lock) {
+        return new Iterator<PageId>() {
+            private long last;
+            private Map.Entry<Long, PageId> next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    synchronized (lock) {
+                        next = order.higherEntry(last);
+                    }
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = next.getKey();
+                PageId ret = next.getValue();
+                next = null;
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * @return the pages of first, then those of second
+     */
+    static Iterator<PageId> concat(Iterator<PageId> first, Iterator<PageId> second) {
+        return new Iterator<PageId>() {
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            public PageId next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays page reference traces against every {@link ReplacementPolicy} and
+ * reports their hit ratios. The replay simulates a pool of a given number
+ * of clean pages, so it only measures the choices of the policies, not I/O.
+ * <p>
+ * The traces mix point lookups, 80% of which go to a hot set of half a pool
+ * on a lookup table twice the size of the pool, with sequential scans of a
+ * table four times the size of the pool:
+ * <ul>
+ * <li>lookups: point lookups only</li>
+ * <li>mixed: a scan starts every few thousand lookups and then runs
+ * interleaved with them</li>
+ * <li>heavy: scans run back to back, interleaved with the lookups</li>
+ * </ul>
+ * Run with
+ * <pre>
+ *     java -jar dist/simpledb.jar benchmark replacement [--capacity=n] [--length=n]
+ * </pre>
+ */
+public class ReplacementBenchmark {
+
+    // 两张表的table id
+    static final int LOOKUP_TABLE = 1;
+    static final int SCAN_TABLE = 2;
+
+    /**
+     * The hit ratios of one replay.
+     */
+    public static class Result {
+        private long hits;
+        private long lookups;
+        private long lookupHits;
+        private long total;
+
+        /**
+         * @return the share of all references that were hits
+         */
+        public double getHitRatio() {
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /**
+         * @return the share of the references to the lookup table that were
+         * hits
+         */
+        public double getLookupHitRatio() {
+            return lookups == 0 ? 0 : (double) lookupHits / lookups;
+        }
+    }
+
+    /**
+     * Builds a trace of the given kind.
+     *
+     * @param kind     "lookups", "mixed" or "heavy"
+     * @param capacity the pool size the trace is scaled to
+     * @param length   the number of references
+     * @param seed     the seed of the lookups
+     */
+    public static List<PageId> trace(String kind, int capacity, int length, long seed) {
+        if (!kind.equals("lookups") && !kind.equals("mixed") && !kind.equals("heavy")) {
+            throw new IllegalArgumentException("unknown trace " + kind);
+        }
+        Random random = new Random(seed);
+        int lookupPages = 2 * capacity;
+        int hotPages = Math.max(1, capacity / 2);
+        int scanPages = 4 * capacity;
+        int scanEvery = 5 * scanPages;
+        List<PageId> trace = new ArrayList<>(length);
+        // 正在进行的扫描的位置，-1表示没有扫描
+        int scanPos = kind.equals("heavy") ? 0 : -1;
+        for (int i = 0; trace.size() < length; i++) {
+            if (kind.equals("mixed") && scanPos < 0 && i % scanEvery == 0) {
+                scanPos = 0;
+            }
+            if (scanPos >= 0 && random.nextBoolean()) {
+                trace.add(new HeapPageId(SCAN_TABLE, scanPos++));
+                if (scanPos == scanPages) {
+                    scanPos = kind.equals("heavy") ? 0 : -1;
+                }
+            } else {
+                int pgNo = random.nextInt(10) < 8 ? random.nextInt(hotPages) : random.nextInt(lookupPages);
+                trace.add(new HeapPageId(LOOKUP_TABLE, pgNo));
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Replays trace on a simulated pool of capacity pages that evicts
+     * according to policy.
+     */
+    public static Result replay(ReplacementPolicy policy, int capacity, List<PageId> trace) {
+        Result r = new Result();
+        Set<PageId> resident = new HashSet<>();
+        for (PageId pid : trace) {
+            boolean hit = resident.contains(pid);
+            if (hit) {
+                policy.pageAccessed(pid);
+                r.hits++;
+            } else {
+                if (resident.size() == capacity) {
+                    Iterator<PageId> it = policy.candidates();
+                    PageId victim = it.next();
+                    resident.remove(victim);
+                    policy.pageRemoved(victim, true);
+                }
+                resident.add(pid);
+                policy.pageAdded(pid);
+            }
+            if (pid.getTableId() == LOOKUP_TABLE) {
+                r.lookups++;
+                if (hit) {
+                    r.lookupHits++;
+                }
+            }
+            r.total++;
+        }
+        return r;
+    }
+
+    /**
+     * benchmark replacement [--capacity=n] [--length=n]
+     */
+    public static void main(String[] args) {
+        int capacity = 100;
+        int length = 1000000;
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--capacity=")) {
+                    capacity = Integer.parseInt(arg.substring("--capacity=".length()));
+                } else if (arg.startsWith("--length=")) {
+                    length = Integer.parseInt(arg.substring("--length=".length()));
+                } else {
+                    System.err.println("Unknown option " + arg);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid option " + arg);
+                return;
+            }
+        }
+        System.out.printf("%-8s %-8s %10s %12s%n", "trace", "policy", "hit ratio", "lookup hits");
+        for (String kind : new String[]{"lookups", "mixed", "heavy"}) {
+            List<PageId> trace = trace(kind, capacity, length, 42);
+            for (ReplacementPolicy.Kind policy : ReplacementPolicy.Kind.values()) {
+                Result r = replay(policy.create(capacity), capacity, trace);
+                System.out.printf("%-8s %-8s %9.1f%% %11.1f%%%n", kind, policy,
+                        r.getHitRatio() * 100, r.getLookupHitRatio() * 100);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ReplacementPolicy decides which page the {@link BufferPool} evicts when it
+ * is full. The pool's {@link PageTable} tells the policy about every page
+ * that enters, is used or leaves the pool, and asks it for eviction
+ * candidates in order of preference; the pool evicts the first candidate
+ * that is clean (NO STEAL), so a policy never has to know about dirty pages
+ * or locks.
+ * <p>
+ * Policies must be thread-safe. {@link #pageAccessed} is called on every
+ * hit, possibly from many threads at once, and should be cheap. The other
+ * methods are called at most once per miss.
+ *
+ * @see Kind
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * The policies the BufferPool can be created with.
+     */
+    enum Kind {
+        /**
+         * Least recently used, see {@link LruPolicy}
+         */
+        LRU,
+        /**
+         * Second chance, see {@link ClockPolicy}
+         */
+        CLOCK,
+        /**
+         * Johnson and Shasha's 2Q, see {@link TwoQueuePolicy}
+         */
+        TWO_Q,
+        /**
+         * LRU-2, see {@link LruKPolicy}
+         */
+        LRU_K,
+        /**
+         * Adaptive replacement cache, see {@link ArcPolicy}
+         */
+        ARC;
+
+        /**
+         * @param capacity the number of pages of the pool the policy is for
+         * @return a new policy of this kind
+         */
+        public ReplacementPolicy create(int capacity) {
+            switch (this) {
+                case CLOCK:
+                    return new ClockPolicy();
+                case TWO_Q:
+                    return new TwoQueuePolicy(capacity);
+                case LRU_K:
+                    return new LruKPolicy(2, capacity);
+                case ARC:
+                    return new ArcPolicy(capacity);
+                default:
+                    return new LruPolicy();
+            }
+        }
+    }
+
+    /**
+     * A page that was not in the pool has been read in.
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * A page in the pool has been used again. Pages the policy does not
+     * know (any more) are ignored.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * A page has left the pool.
+     *
+     * @param evicted true if the page was evicted to make room, false if
+     *                it was dropped for another reason (e.g. discarded)
+     */
+    void pageRemoved(PageId pid, boolean evicted);
+
+    /**
+     * Returns the pages in the pool in the order they should be evicted.
+     * The caller evicts the first page it can and stops, so the iterator
+     * may be computed lazily, and may change the policy's state as it goes
+     * (e.g. clear reference bits).
+     */
+    Iterator<PageId> candidates();
+
+    /**
+     * Returns the pages in the pool, the ones the policy would keep longest
+     * first, e.g. the most recently used first for LRU. Unlike
+     * {@link #candidates} this must not change the policy's state. The
+     * default reverses the candidates, which suits policies whose
+     * candidates are a snapshot.
+     */
+    default List<PageId> ranking() {
+        List<PageId> ret = new ArrayList<>();
+        candidates().forEachRemaining(ret::add);
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * The pool has been resized to capacity pages. Policies that size
+     * their queues or history by the pool adjust them; the pool evicts any
+     * pages over the new capacity itself.
+     */
+    default void setCapacity(int capacity) {
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * ScanRing is a small private ring of page frames that one sequential scan
+ * of a large table reads its pages into, instead of the shared
+ * {@link PageTable} of the {@link BufferPool}, in the spirit of PostgreSQL's
+ * buffer access strategies. Once the ring is full each page read replaces
+ * the oldest one, so a scan of a table much bigger than the pool only ever
+ * holds a ring's worth of pages and leaves the pages other transactions
+ * use in the pool.
+ * <p>
+ * Only clean pages the scan reads under a shared lock go into a ring. A
+ * page that is already in the pool, in particular a dirty one, is always
+ * taken from the pool, see {@link BufferPool#getPages(TransactionId, java.util.List, Permissions, ScanRing)}.
+ * A ring belongs to a single scan and is not thread-safe.
+ */
+public class ScanRing {
+
+    private final Page[] frames;
+    // 下一个被替换的frame
+    private int next;
+    private long reads;
+
+    /**
+     * @param size the number of frames of the ring
+     */
+    public ScanRing(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("invalid ring size " + size);
+        }
+        frames = new Page[size];
+    }
+
+    /**
+     * @return the page pid if it is still in the ring, null otherwise
+     */
+    public Page get(PageId pid) {
+        for (Page p : frames) {
+            if (p != null && p.getId().equals(pid)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts a page that was just read from disk into the ring, in place of
+     * the oldest page once the ring is full.
+     *
+     * @return page
+     */
+    public Page add(Page page) {
+        frames[next] = page;
+        next = (next + 1) % frames.length;
+        reads++;
+        return page;
+    }
+
+    /**
+     * @return the number of frames of the ring
+     */
+    public int size() {
+        return frames.length;
+    }
+
+    /**
+     * @return how many pages have been read into the ring
+     */
+    public long getReads() {
+        return reads;
+    }
+}
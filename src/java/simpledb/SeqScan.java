@@ -16,6 +16,10 @@ public class SeqScan implements DbIterator {
     private String tableAlias;
     private DbFileIterator iterator;
     private TupleDesc td;
+    // 下推到扫描中的过滤条件
+    private final List<Predicate> predicates = new ArrayList<>();
+    // 需要解码的列，null表示全部
+    private BitSet fields;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -71,6 +75,49 @@ public class SeqScan implements DbIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Asks the scan to only return tuples that satisfy p, if the underlying
+     * file can evaluate predicates itself (a HeapFile tests them on the raw
+     * page bytes, so rows that fail p are never decoded into Tuples).
+     * Must be called before the scan is opened.
+     *
+     * @param p a predicate on the fields of {@link #getTupleDesc()}
+     * @return true if the scan will apply p, false if the caller still has
+     * to filter the scan's output
+     */
+    public boolean pushDown(Predicate p) {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            return false;
+        }
+        predicates.add(p);
+        iterator = ((HeapFile) file).iterator(tid, new ArrayList<>(predicates), fields);
+        return true;
+    }
+
+    /**
+     * Tells the scan that only the fields set in fields are used by the rest
+     * of the plan. If the underlying file is a {@link HeapFile.PageFormat#PAX}
+     * HeapFile (see {@link HeapFile#iterator(TransactionId, List, BitSet)})
+     * the other fields are not decoded and are null in the returned tuples.
+     * Row formats decode whole tuples anyway, so their scans ignore this and
+     * keep returning complete tuples. Must be called before the scan is
+     * opened.
+     *
+     * @param fields indexes into {@link #getTupleDesc()}, or null for all
+     * @return true if the scan will skip the other fields
+     */
+    public boolean setReferencedFields(BitSet fields) {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        // 只有列存的page能省掉解码，行存的tuple没必要留下null字段
+        if (!(file instanceof HeapFile) || ((HeapFile) file).getPageFormat() != HeapFile.PageFormat.PAX) {
+            return false;
+        }
+        this.fields = fields == null ? null : (BitSet) fields.clone();
+        iterator = ((HeapFile) file).iterator(tid, new ArrayList<>(predicates), this.fields);
+        return true;
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -7,8 +7,49 @@ public class SimpleDb {
     public static void main(String args[])
             throws DbException, TransactionAbortedException, IOException {
         // convert a file
+        // convert file.txt numFields [types [separator]] [--format=heap|slotted|pax] [--compress] [--pagesize=bytes] [--threads=n]
         if (args[0].equals("convert")) {
             try {
+                HeapFile.PageFormat format = HeapFile.PageFormat.HEAP;
+                boolean compress = false;
+                int pageSize = BufferPool.getPageSize();
+                int threads = BulkLoader.DEFAULT_THREADS;
+                List<String> positional = new ArrayList<String>();
+                for (String arg : args) {
+                    if (arg.startsWith("--format=")) {
+                        try {
+                            format = HeapFile.PageFormat.valueOf(arg.substring("--format=".length()).toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Unknown page format " + arg);
+                            return;
+                        }
+                    } else if (arg.equals("--compress")) {
+                        compress = true;
+                    } else if (arg.startsWith("--pagesize=")) {
+                        try {
+                            pageSize = Integer.parseInt(arg.substring("--pagesize=".length()));
+                        } catch (NumberFormatException e) {
+                            pageSize = -1;
+                        }
+                        if (pageSize <= 0 || pageSize % 8 != 0) {
+                            System.err.println("Invalid page size " + arg);
+                            return;
+                        }
+                    } else if (arg.startsWith("--threads=")) {
+                        try {
+                            threads = Integer.parseInt(arg.substring("--threads=".length()));
+                        } catch (NumberFormatException e) {
+                            threads = -1;
+                        }
+                        if (threads <= 0) {
+                            System.err.println("Invalid thread count " + arg);
+                            return;
+                        }
+                    } else {
+                        positional.add(arg);
+                    }
+                }
+                args = positional.toArray(new String[0]);
                 if (args.length < 3 || args.length > 5) {
                     System.err.println("Unexpected number of arguments to convert ");
                     return;
@@ -45,7 +86,7 @@ public class SimpleDb {
                 }
 
                 HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                        BufferPool.PAGE_SIZE, numOfAttributes, ts, fieldSeparator);
+                        pageSize, numOfAttributes, ts, fieldSeparator, format, compress, threads);
 
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -67,6 +108,18 @@ public class SimpleDb {
                 }
                 it.close();
             }
+        } else if (args[0].equals("benchmark")) {
+            // benchmark [--threads=n] [--seconds=s] [--pages=n]
+            // benchmark replacement [--capacity=n] [--length=n]
+            try {
+                if (args.length > 1 && args[1].equals("replacement")) {
+                    ReplacementBenchmark.main(Arrays.copyOfRange(args, 2, args.length));
+                } else {
+                    BufferPoolBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         } else if (args[0].equals("parser")) {
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length - 1];
@@ -0,0 +1,563 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Each instance of SlottedPage stores data for one page of a HeapFile in the
+ * slotted format ({@link HeapFile.PageFormat#SLOTTED}). Unlike
+ * {@link HeapPage}, records are variable-length: strings take only as many
+ * bytes as they have characters instead of a fixed Type.STRING_LEN + 4.
+ * <p>
+ * The layout of a page is:
+ * <pre>
+ * int numSlots | int recordStart | slot directory | free space | records
+ * </pre>
+ * The slot directory holds numSlots entries of two unsigned shorts, the
+ * offset and the length of the slot's record; offset 0 marks an empty slot.
+ * Records are packed at the end of the page and grow towards the
+ * directory; recordStart is the offset of the lowest record (0 for an empty
+ * page). A record stores its fields back to back: ints as 4 bytes, strings
+ * as an unsigned short length followed by the characters. An all-zero page
+ * is a valid empty page.
+ * <p>
+ * Slot numbers are stable (they are part of the RecordId), so deleting a
+ * record only clears its slot; the space is reclaimed by compacting the
+ * records when an insert needs it.
+ *
+ * @see HeapFile
+ * @see BufferPool
+ */
+public class SlottedPage implements TuplePage {
+
+    static final int HEADER_SIZE = 8;
+    static final int SLOT_SIZE = 4;
+    /**
+     * Largest page size the unsigned short record offsets can address
+     */
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    /**
+     * Size of the units free space is reported in, see {@link #getFreeUnits}
+     */
+    static final int UNIT_SIZE = 16;
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int pageSize;
+
+    // page的原始字节，与HeapPage一样是唯一的数据来源，写时复制
+    private ByteBuffer data;
+    private boolean ownsData;
+    private ByteBuffer oldData;
+
+    // 所有记录占用的字节数
+    private int liveBytes;
+
+    private TransactionId lastDirtyOperation;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk.
+     *
+     * @see #SlottedPage(HeapPageId, ByteBuffer)
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a SlottedPage from a buffer holding the page image, starting at
+     * the buffer's current position. Like {@link HeapPage}, the page never
+     * writes to the buffer; it makes its own copy when first modified.
+     *
+     * @throws IOException if the bytes are not a valid slotted page
+     */
+    public SlottedPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data,
+                Database.getCatalog().getPageSize(id.getTableId()));
+    }
+
+    /**
+     * Create a page of pageSize bytes for tuples of td without looking the
+     * table up in the catalog, e.g. to build pages in {@link HeapFileEncoder}.
+     */
+    SlottedPage(HeapPageId id, TupleDesc td, ByteBuffer data, int pageSize) throws IOException {
+        if (pageSize > MAX_PAGE_SIZE) {
+            throw new IOException("slotted pages can be at most " + MAX_PAGE_SIZE + " bytes");
+        }
+        this.pid = id;
+        this.td = td;
+        this.pageSize = pageSize;
+
+        ByteBuffer bb = data.duplicate();
+        if (bb.remaining() >= pageSize) {
+            bb.limit(bb.position() + pageSize);
+            this.data = bb.slice();
+        } else {
+            byte[] copy = new byte[pageSize];
+            bb.get(copy, 0, bb.remaining());
+            this.data = ByteBuffer.wrap(copy);
+        }
+        this.ownsData = false;
+
+        int n = getNumSlots();
+        if (n < 0 || HEADER_SIZE + n * SLOT_SIZE > recordStart() || recordStart() > pageSize) {
+            throw new IOException("corrupt slotted page " + id);
+        }
+        for (int i = 0; i < n; i++) {
+            if (slotOffset(i) != 0) {
+                liveBytes += slotLength(i);
+            }
+        }
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of bytes t takes up as a record in a slotted page
+     */
+    static int recordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                size += 4;
+            } else {
+                size += 2 + Math.min(((StringField) t.getField(j)).getValue().length(), Type.STRING_LEN);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of free-space units t needs on a slotted page
+     */
+    static int unitsNeeded(Tuple t) {
+        return (recordSize(t) + UNIT_SIZE - 1) / UNIT_SIZE;
+    }
+
+    private static void writeRecord(Tuple t, ByteBuffer bb) {
+        TupleDesc td = t.getTupleDesc();
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                bb.putInt(((IntField) t.getField(j)).getValue());
+            } else {
+                String s = ((StringField) t.getField(j)).getValue();
+                if (s.length() > Type.STRING_LEN) {
+                    s = s.substring(0, Type.STRING_LEN);
+                }
+                bb.putShort((short) s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    bb.put((byte) s.charAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of slots in the directory, used or not
+     */
+    public int getNumSlots() {
+        return data.getInt(0);
+    }
+
+    private int recordStart() {
+        int v = data.getInt(4);
+        return v == 0 ? pageSize : v;
+    }
+
+    private void setRecordStart(int v) {
+        data.putInt(4, v == pageSize ? 0 : v);
+    }
+
+    private int slotOffset(int slotId) {
+        return data.getShort(HEADER_SIZE + slotId * SLOT_SIZE) & 0xffff;
+    }
+
+    private int slotLength(int slotId) {
+        return data.getShort(HEADER_SIZE + slotId * SLOT_SIZE + 2) & 0xffff;
+    }
+
+    private void setSlot(int slotId, int offset, int length) {
+        data.putShort(HEADER_SIZE + slotId * SLOT_SIZE, (short) offset);
+        data.putShort(HEADER_SIZE + slotId * SLOT_SIZE + 2, (short) length);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int slotId) {
+        return slotId >= 0 && slotId < getNumSlots() && slotOffset(slotId) != 0;
+    }
+
+    /**
+     * @return the number of used slots on this page
+     */
+    public int getNumTuples() {
+        int count = 0;
+        for (int i = 0; i < getNumSlots(); i++) {
+            if (slotOffset(i) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of free bytes on this page, i.e. the room left for
+     * records once the page is compacted. If no slot is free, the directory
+     * entry a new record needs is already subtracted.
+     */
+    public int getFreeBytes() {
+        int n = getNumSlots();
+        int free = pageSize - HEADER_SIZE - n * SLOT_SIZE - liveBytes;
+        for (int i = 0; i < n; i++) {
+            if (slotOffset(i) == 0) {
+                return free;
+            }
+        }
+        return Math.max(0, free - SLOT_SIZE);
+    }
+
+    /**
+     * Free space in units of {@link #UNIT_SIZE} bytes, rounded down.
+     */
+    public int getFreeUnits() {
+        return getFreeBytes() / UNIT_SIZE;
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getFreeBytes() >= recordSize(t);
+    }
+
+    /**
+     * @return the offset of field col of the record in slot slotId
+     */
+    private int fieldPosition(int slotId, int col) {
+        int pos = slotOffset(slotId);
+        for (int j = 0; j < col; j++) {
+            pos += td.getFieldType(j) == Type.INT_TYPE ? 4 : 2 + (data.getShort(pos) & 0xffff);
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a single field of the tuple in slot slotId.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int col) throws NoSuchElementException {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        return readField(slotId, col);
+    }
+
+    private Field readField(int slotId, int col) {
+        int pos = fieldPosition(slotId, col);
+        if (td.getFieldType(col) == Type.INT_TYPE) {
+            return new IntField(data.getInt(pos));
+        }
+        int len = data.getShort(pos) & 0xffff;
+        byte[] bs = new byte[len];
+        ByteBuffer bb = data.duplicate();
+        bb.position(pos + 2);
+        bb.get(bs);
+        return new StringField(new String(bs), Type.STRING_LEN);
+    }
+
+    /**
+     * Evaluates p against the tuple in slot slotId without decoding the
+     * rest of the tuple, as {@link HeapPage#matches} does.
+     */
+    public boolean matches(int slotId, Predicate p) {
+        int col = p.getField();
+        if (td.getFieldType(col) == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+            return IntField.compare(data.getInt(fieldPosition(slotId, col)), p.getOp(),
+                    ((IntField) p.getOperand()).getValue());
+        }
+        return readField(slotId, col).compare(p.getOp(), p.getOperand());
+    }
+
+    private Tuple readTuple(int slotId, BitSet fields) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            if (fields == null || fields.get(j)) {
+                t.setField(j, readField(slotId, j));
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Stores t in the first free slot (or a new one), compacting the page if
+     * the free space is fragmented. Does not touch t's RecordId.
+     *
+     * @return the slot t was stored in, or -1 if it does not fit
+     */
+    int add(Tuple t) {
+        int len = recordSize(t);
+        int n = getNumSlots();
+        int slot = 0;
+        while (slot < n && slotOffset(slot) != 0) {
+            slot++;
+        }
+        int dirEnd = HEADER_SIZE + Math.max(n, slot + 1) * SLOT_SIZE;
+        if (recordStart() - dirEnd < len) {
+            if (pageSize - dirEnd - liveBytes < len) {
+                return -1;
+            }
+            compact();
+        }
+        ensureOwnsData();
+        int off = recordStart() - len;
+        ByteBuffer bb = data.duplicate();
+        bb.position(off);
+        writeRecord(t, bb);
+        setSlot(slot, off, len);
+        if (slot == n) {
+            data.putInt(0, n + 1);
+        }
+        setRecordStart(off);
+        liveBytes += len;
+        return slot;
+    }
+
+    /**
+     * Clears slot slotId. Trailing empty slots are dropped from the
+     * directory.
+     */
+    private void remove(int slotId) {
+        ensureOwnsData();
+        int off = slotOffset(slotId);
+        int len = slotLength(slotId);
+        setSlot(slotId, 0, 0);
+        liveBytes -= len;
+        if (off == recordStart()) {
+            setRecordStart(off + len);
+        }
+        int n = getNumSlots();
+        while (n > 0 && slotOffset(n - 1) == 0) {
+            n--;
+        }
+        data.putInt(0, n);
+        if (n == 0) {
+            setRecordStart(pageSize);
+        }
+    }
+
+    /**
+     * Moves all records to the end of the page so that the free space
+     * between the directory and the records is contiguous.
+     */
+    private void compact() {
+        int n = getNumSlots();
+        ByteBuffer compacted = ByteBuffer.allocate(pageSize);
+        ByteBuffer dir = data.duplicate();
+        dir.limit(HEADER_SIZE + n * SLOT_SIZE);
+        compacted.put(dir);
+
+        int pos = pageSize;
+        for (int i = 0; i < n; i++) {
+            int off = slotOffset(i);
+            if (off == 0) {
+                continue;
+            }
+            int len = slotLength(i);
+            pos -= len;
+            ByteBuffer rec = data.duplicate();
+            rec.position(off).limit(off + len);
+            compacted.position(pos);
+            compacted.put(rec);
+            compacted.putShort(HEADER_SIZE + i * SLOT_SIZE, (short) pos);
+        }
+        compacted.clear();
+        data = compacted;
+        ownsData = true;
+        setRecordStart(pos);
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     * that it is now stored on this page.
+     *
+     * @param t The tuple to add.
+     * @throws DbException if the page does not have room for t or tupledesc
+     *                     is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("tuple description is mismatch.");
+        }
+        int slot = add(t);
+        if (slot < 0) {
+            throw new DbException("this page is full(not enough free space).");
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        noteFreeSpace();
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @param t The tuple to delete
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid) || !isSlotUsed(rid.tupleno())) {
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        }
+        remove(rid.tupleno());
+        noteFreeSpace();
+    }
+
+    /**
+     * Tells the HeapFile this page belongs to how much room it has left,
+     * so its free-space map stays current.
+     */
+    private void noteFreeSpace() {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).noteFreeSpace(pid.pageNumber(), getFreeUnits());
+        }
+    }
+
+    private void ensureOwnsData() {
+        if (!ownsData) {
+            data = heapCopy(data);
+            ownsData = true;
+        }
+    }
+
+    private ByteBuffer heapCopy(ByteBuffer bb) {
+        ByteBuffer copy = ByteBuffer.allocate(pageSize);
+        copy.put(bb.duplicate());
+        copy.clear();
+        return copy;
+    }
+
+    public void moveTo(ByteBuffer frame) {
+        ByteBuffer bb = frame.duplicate();
+        bb.clear();
+        bb.put(data.duplicate());
+        bb.clear();
+        data = bb;
+        oldData = bb;
+        ownsData = false;
+    }
+
+    public void moveToHeap() {
+        boolean shared = oldData == data;
+        if (data.isDirect()) {
+            data = heapCopy(data);
+        }
+        if (shared) {
+            // 仍然与before image共享，修改前要先复制
+            oldData = data;
+            ownsData = false;
+        } else if (oldData.isDirect()) {
+            oldData = heapCopy(oldData);
+        }
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    public byte[] getPageData() {
+        byte[] bytes = new byte[pageSize];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public ByteBuffer getPageBuffer() {
+        return data.asReadOnlyBuffer();
+    }
+
+    public SlottedPage getBeforeImage() {
+        try {
+            return new SlottedPage(pid, td, oldData, pageSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        oldData = data;
+        ownsData = false;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return iterator(Collections.<Predicate>emptyList());
+    }
+
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        return iterator(predicates, null);
+    }
+
+    public Iterator<Tuple> iterator(List<Predicate> predicates, BitSet fields) {
+        return new TupleIterator(predicates, fields);
+    }
+
+    private class TupleIterator implements Iterator<Tuple> {
+
+        private final List<Predicate> predicates;
+        private final BitSet fields;
+        private final int numSlots = getNumSlots();
+        private int index = -1;
+
+        TupleIterator(List<Predicate> predicates, BitSet fields) {
+            this.predicates = predicates;
+            this.fields = fields;
+            advance();
+        }
+
+        private void advance() {
+            for (index++; index < numSlots; index++) {
+                if (isSlotUsed(index) && matchesAll(index)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean matchesAll(int slotId) {
+            for (Predicate p : predicates) {
+                if (!matches(slotId, p)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < numSlots;
+        }
+
+        @Override
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = readTuple(index, fields);
+            advance();
+            return t;
+        }
+    }
+
+}
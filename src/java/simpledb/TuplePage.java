@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * TuplePage is the interface of the page formats a HeapFile can be stored
+ * in: pages holding whole tuples that can be inserted, deleted and
+ * iterated over.
+ * <p>
+ * Free space is reported in "units" whose size is up to the format (one
+ * tuple slot for {@link HeapPage}, {@link SlottedPage#UNIT_SIZE} bytes for
+ * {@link SlottedPage} and {@link PaxPage}). HeapFile keeps these numbers in
+ * its {@link FreeSpaceMap}.
+ *
+ * @see HeapFile
+ * @see HeapPage
+ * @see SlottedPage
+ * @see PaxPage
+ */
+public interface TuplePage extends Page {
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the tuple doesn't fit or its TupleDesc does not
+     *                     match the page's
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Deletes the specified tuple from the page.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    public Iterator<Tuple> iterator();
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     * predicates
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates);
+
+    /**
+     * Like {@link #iterator(List)}, but only the fields whose index is set in
+     * fields are decoded; the others are left null in the returned tuples.
+     * A null fields decodes every field.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates, BitSet fields);
+
+    /**
+     * @return true if t can be inserted into this page
+     */
+    public boolean hasRoomFor(Tuple t);
+
+    /**
+     * @return how much room (in units of this page format) is left on the page
+     */
+    public int getFreeUnits();
+
+    /**
+     * @return a read-only view of the bytes of this page in their on-disk
+     * format, positioned at the start of the page
+     */
+    public ByteBuffer getPageBuffer();
+
+    /**
+     * Copies the bytes of this page into frame (e.g. a frame of a
+     * {@link FrameArena}) and keeps them there from now on; the bytes also
+     * become the page's before image. Only for clean pages. The page still
+     * never writes to frame: it makes a private copy the first time it is
+     * modified.
+     */
+    public void moveTo(ByteBuffer frame);
+
+    /**
+     * Moves the bytes of this page, and of its before image, out of the
+     * frame they were moved to with {@link #moveTo} into private memory, so
+     * that the frame can be reused.
+     */
+    public void moveToHeap();
+
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The full version of Johnson and Shasha's 2Q. A page read in for the
+ * first time goes to the FIFO queue A1in; only a page that is read in again
+ * while it is still remembered in the ghost queue A1out (the ids of pages
+ * recently evicted from A1in) goes to the LRU queue Am. Pages touched once,
+ * such as the pages of a scan, therefore pass through A1in without pushing
+ * the hot pages out of Am.
+ * <p>
+ * A1in is kept at about a quarter of the pool and A1out remembers half a
+ * pool's worth of pages, the sizes recommended in the paper. A1in and Am
+ * are {@link RecencyList}s, so the candidates are found step by step
+ * rather than copied. Hits are recorded in an {@link AccessBuffer} without
+ * taking the policy's lock and applied before the next change or eviction.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private int kin;
+    private int kout;
+
+    // 第一次访问的page，FIFO
+    private final RecencyList a1in = new RecencyList();
+    // 多次访问的page，LRU（第一个是最久未使用的）
+    private final RecencyList am = new RecencyList();
+    // 最近从a1in中驱逐的page，只保存id
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final AccessBuffer accesses = new AccessBuffer();
+
+    /**
+     * @param capacity the number of pages of the pool
+     */
+    public TwoQueuePolicy(int capacity) {
+        setCapacity(capacity);
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        drain();
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        while (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        drain();
+        if (a1in.contains(pid) || am.contains(pid)) {
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.addLast(pid);
+        } else {
+            a1in.addLast(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (accesses.add(pid)) {
+            synchronized (this) {
+                drain();
+            }
+        }
+    }
+
+    private void use(PageId pid) {
+        if (am.contains(pid)) {
+            am.addLast(pid);
+        }
+    }
+
+    /**
+     * Applies the uses recorded since the last call; the caller holds the
+     * policy's lock.
+     */
+    private void drain() {
+        accesses.drain(this::use);
+    }
+
+    public synchronized void pageRemoved(PageId pid, boolean evicted) {
+        drain();
+        if (a1in.remove(pid)) {
+            if (evicted) {
+                a1out.add(pid);
+                if (a1out.size() > kout) {
+                    Iterator<PageId> it = a1out.iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    /**
+     * The oldest pages of A1in come first if A1in is over its share of the
+     * pool, otherwise the least recently used pages of Am.
+     */
+    public synchronized Iterator<PageId> candidates() {
+        drain();
+        if (a1in.size() > kin) {
+            return RecencyList.concat(a1in.iterator(this), am.iterator(this));
+        }
+        return RecencyList.concat(am.iterator(this), a1in.iterator(this));
+    }
+
+    public synchronized List<PageId> ranking() {
+        drain();
+        List<PageId> ret = new ArrayList<>(a1in.size() + am.size());
+        if (a1in.size() > kin) {
+            ret.addAll(a1in.toList());
+            ret.addAll(am.toList());
+        } else {
+            ret.addAll(am.toList());
+            ret.addAll(a1in.toList());
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+}
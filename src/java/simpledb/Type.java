@@ -2,6 +2,8 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +26,20 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer bb) throws ParseException {
+            try {
+                return new IntField(bb.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", bb.position());
+            }
+        }
+
+        @Override
+        public void write(Field f, ByteBuffer bb) {
+            bb.putInt(((IntField) f).getValue());
+        }
+
     },
     STRING_TYPE() {
         @Override
@@ -43,6 +59,36 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer bb) throws ParseException {
+            try {
+                int start = bb.position();
+                int strLen = bb.getInt();
+                byte bs[] = new byte[strLen];
+                bb.get(bs);
+                bb.position(start + getLen());
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new ParseException("couldn't parse", bb.position());
+            }
+        }
+
+        @Override
+        public void write(Field f, ByteBuffer bb) {
+            // 与StringField.serialize相同的格式
+            String s = ((StringField) f).getValue();
+            if (s.length() > STRING_LEN) {
+                s = s.substring(0, STRING_LEN);
+            }
+            bb.putInt(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bb.put((byte) s.charAt(i));
+            }
+            for (int i = s.length(); i < STRING_LEN; i++) {
+                bb.put((byte) 0);
+            }
+        }
     },
     ;
 
@@ -62,4 +108,25 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * Same as {@link #parse(DataInputStream)}, but reads the field straight
+     * out of a buffer (e.g. a slice of a memory-mapped file) starting at its
+     * current position. On return the position is just past the field.
+     *
+     * @param bb The buffer to read from
+     * @return a Field object of the same type as this object
+     * @throws ParseException if the buffer does not hold a complete field
+     */
+    public abstract Field parse(ByteBuffer bb) throws ParseException;
+
+    /**
+     * Writes f at the buffer's current position in the same format as
+     * {@link Field#serialize}, so that {@link #parse(ByteBuffer)} reads it
+     * back. On return the position is just past the field.
+     *
+     * @param f  a Field of this type
+     * @param bb The buffer to write to
+     */
+    public abstract void write(Field f, ByteBuffer bb);
+
 }
@@ -0,0 +1,317 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vacuum compacts a {@link HeapFile} online: it moves the live tuples of the
+ * last pages of the file into the free space of the first ones, and then
+ * cuts the pages left empty off the end of the file. Deleted tuples only
+ * leave holes in their pages, so after many deletes a table is spread over
+ * many half-empty pages that scans and the BufferPool still read in full.
+ * <p>
+ * The work is done in ordinary transactions, so it runs alongside other
+ * transactions on the table:
+ * <ul>
+ * <li>Each move round write-locks, through the BufferPool, only the page it
+ * takes tuples from and the page it puts them into. Pages it passes over
+ * without changing them (full ones at the front, empty ones at the end) are
+ * unlocked again right away. The next round goes on where the last one
+ * stopped, so every page is visited about once in the whole run. A round
+ * stops once it has dirtied about half of the BufferPool, since dirty pages
+ * cannot be evicted before commit.</li>
+ * <li>Before a round commits, the before and after image of every page it
+ * changed is written to the {@link LogFile} and the log is forced, then the
+ * pages are flushed and the commit record is written, as for any other
+ * transaction.</li>
+ * <li>The last transaction write-locks the trailing pages, checks that they
+ * are (still) empty and drops them from the BufferPool and the file, after
+ * logging the truncation (see {@link LogFile#logTruncatePages}). Other
+ * transactions may have put tuples into pages behind the moving rounds
+ * meanwhile; such pages are kept. Only empty pages are cut off, so recovery
+ * never needs their contents: a page past the end of the file reads as an
+ * empty page.</li>
+ * </ul>
+ * The {@link Report} gives the fill factor of the file before and after,
+ * i.e. the average share of a page's space taken by live tuples, so that
+ * callers can decide when a table is worth compacting.
+ */
+public class Vacuum {
+
+    private final HeapFile file;
+    private final int maxDirtyPages;
+
+    private int tuplesMoved;
+    // 下一轮从哪个page取tuple、往哪个page放tuple
+    private int src;
+    private int dst;
+
+    /**
+     * Creates a vacuum for file, which must be registered in the Catalog.
+     */
+    public Vacuum(HeapFile file) {
+        this(file, Math.max(2, Database.getBufferPool().getNumPages() / 2));
+    }
+
+    /**
+     * Same as {@link #Vacuum(HeapFile)}, committing a move round whenever it
+     * has dirtied maxDirtyPages pages.
+     */
+    Vacuum(HeapFile file, int maxDirtyPages) {
+        if (maxDirtyPages < 2) {
+            throw new IllegalArgumentException("a move round needs at least 2 dirty pages");
+        }
+        this.file = file;
+        this.maxDirtyPages = maxDirtyPages;
+    }
+
+    /**
+     * Compacts the file of the table with the given id.
+     *
+     * @see #run
+     */
+    public static Report vacuum(int tableId) throws DbException, IOException, TransactionAbortedException {
+        DbFile f = Database.getCatalog().getDbFile(tableId);
+        if (!(f instanceof HeapFile)) {
+            throw new DbException("table " + tableId + " is not a heap file");
+        }
+        return new Vacuum((HeapFile) f).run();
+    }
+
+    /**
+     * Moves the tuples of the file into as few pages as possible and
+     * truncates the file after the last page that still has tuples.
+     *
+     * @return the fill factor and size of the file before and after
+     * @throws TransactionAbortedException if a round had to be aborted
+     *                                     because of a deadlock; the rounds
+     *                                     committed before it are kept
+     */
+    public Report run() throws DbException, IOException, TransactionAbortedException {
+        Report report = new Report();
+        report.pagesBefore = file.numPages();
+        report.fillBefore = fillFactor();
+
+        tuplesMoved = 0;
+        src = file.numPages() - 1;
+        dst = 0;
+        boolean done = false;
+        while (!done) {
+            Transaction tx = new Transaction();
+            tx.start();
+            Map<Integer, TuplePage> dirtied = new LinkedHashMap<>();
+            try {
+                done = moveRound(tx.getId(), dirtied);
+                commit(tx, dirtied.values());
+            } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+                tx.abort();
+                throw e;
+            }
+        }
+
+        Transaction tx = new Transaction();
+        tx.start();
+        try {
+            truncate(tx.getId());
+            tx.commit();
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            tx.abort();
+            throw e;
+        }
+
+        report.tuplesMoved = tuplesMoved;
+        report.pagesAfter = file.numPages();
+        report.fillAfter = fillFactor();
+        return report;
+    }
+
+    /**
+     * Moves tuples from page src backwards into pages from dst on, until
+     * the two meet or maxDirtyPages pages are dirty. The pages changed are
+     * added to dirtied; src and dst are left where the next round goes on.
+     *
+     * @return whether the file is compact
+     */
+    private boolean moveRound(TransactionId tid, Map<Integer, TuplePage> dirtied)
+            throws DbException, TransactionAbortedException {
+        if (dst >= src) {
+            return true;
+        }
+        // 两个page都pin住，改的一定是buffer pool中的page
+        TuplePage to = page(tid, dst);
+        while (dst < src) {
+            TuplePage from = page(tid, src);
+            List<Tuple> tuples = new ArrayList<>();
+            Iterator<Tuple> it = from.iterator();
+            while (it.hasNext()) {
+                tuples.add(it.next());
+            }
+            for (Tuple t : tuples) {
+                while (!to.hasRoomFor(t)) {
+                    release(tid, dst, dirtied);
+                    if (++dst == src) {
+                        return true;
+                    }
+                    to = page(tid, dst);
+                }
+                int newPages = (dirtied.containsKey(dst) ? 0 : 1) + (dirtied.containsKey(src) ? 0 : 1);
+                if (dirtied.size() + newPages > maxDirtyPages) {
+                    return false;
+                }
+                from.deleteTuple(t);
+                to.insertTuple(t);
+                from.markDirty(true, tid);
+                to.markDirty(true, tid);
+                dirtied.put(src, from);
+                dirtied.put(dst, to);
+                tuplesMoved++;
+            }
+            release(tid, src, dirtied);
+            src--;
+        }
+        return true;
+    }
+
+    /**
+     * Unpins page pgNo, and unlocks it unless tid has changed it.
+     */
+    private void release(TransactionId tid, int pgNo, Map<Integer, TuplePage> dirtied) {
+        HeapPageId pid = new HeapPageId(file.getId(), pgNo);
+        Database.getBufferPool().unpinPage(tid, pid);
+        if (!dirtied.containsKey(pgNo)) {
+            Database.getBufferPool().releasePage(tid, pid);
+        }
+    }
+
+    /**
+     * Logs the changed pages of tx (write-ahead) and commits it. Dirty pages
+     * stay in the BufferPool until commit, so the pages are still the cached
+     * ones. With a {@link BackgroundWriter} running, the commit logs the
+     * pages itself (see {@link BufferPool#flushPages}), so they are not
+     * logged here.
+     */
+    private void commit(Transaction tx, Collection<TuplePage> dirtied) throws IOException {
+        if (Database.getBufferPool().getBackgroundWriter() == null) {
+            LogFile log = Database.getLogFile();
+            for (TuplePage p : dirtied) {
+                log.logWrite(tx.getId(), p.getBeforeImage(), p);
+            }
+            log.force();
+        }
+        tx.commit();
+    }
+
+    /**
+     * Write-locks the empty pages at the end of the file, logs their
+     * truncation and cuts them off.
+     */
+    private void truncate(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        int count = file.numPages();
+        int first = count;
+        while (first > 0 && !((TuplePage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(file.getId(), first - 1), Permissions.READ_WRITE)).iterator().hasNext()) {
+            first--;
+        }
+        if (first == count) {
+            return;
+        }
+        for (int i = first; i < count; i++) {
+            Database.getBufferPool().discardPage(new HeapPageId(file.getId(), i));
+        }
+        // 持有file的锁，记日志和截断之间不会有其他事务追加page
+        synchronized (file) {
+            if (file.numPages() != count) {
+                // 其间有其他事务追加了page，这次不截断
+                Debug.log("vacuum: %s grew, not truncated", file.getFile());
+                return;
+            }
+            LogFile log = Database.getLogFile();
+            log.logTruncatePages(tid, file.getId(), first, count);
+            log.force();
+            file.truncatePages(first, count);
+        }
+    }
+
+    /**
+     * Write-locks and pins page pgNo. Pins left when a round ends are undone
+     * when its transaction completes.
+     */
+    private TuplePage page(TransactionId tid, int pgNo) throws DbException, TransactionAbortedException {
+        return (TuplePage) Database.getBufferPool().getPinnedPage(tid, new HeapPageId(file.getId(), pgNo), Permissions.READ_WRITE);
+    }
+
+    /**
+     * Returns the fill factor of the file: the average, over its pages, of
+     * the share of a page's space in use. Reads every page under a read lock
+     * of its own transaction.
+     */
+    public double fillFactor() throws DbException, IOException, TransactionAbortedException {
+        int pages = file.numPages();
+        if (pages == 0) {
+            return 0;
+        }
+        double empty = file.emptyPageUnits();
+        double sum = 0;
+        Transaction tx = new Transaction();
+        tx.start();
+        try {
+            for (int i = 0; i < pages; i++) {
+                TuplePage p = (TuplePage) Database.getBufferPool().getPage(tx.getId(), new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+                sum += 1 - p.getFreeUnits() / empty;
+            }
+        } finally {
+            tx.commit();
+        }
+        return sum / pages;
+    }
+
+    /**
+     * What a {@link #run} did to the file.
+     */
+    public static class Report {
+        private int pagesBefore;
+        private int pagesAfter;
+        private double fillBefore;
+        private double fillAfter;
+        private int tuplesMoved;
+    // 下一轮从哪个page取tuple、往哪个page放tuple
+    private int src;
+    private int dst;
+
+        public int getPagesBefore() {
+            return pagesBefore;
+        }
+
+        public int getPagesAfter() {
+            return pagesAfter;
+        }
+
+        /**
+         * @return the fill factor (between 0 and 1) before compaction
+         */
+        public double getFillBefore() {
+            return fillBefore;
+        }
+
+        /**
+         * @return the fill factor (between 0 and 1) after compaction
+         */
+        public double getFillAfter() {
+            return fillAfter;
+        }
+
+        public int getTuplesMoved() {
+            return tuplesMoved;
+        }
+
+        public String toString() {
+            return String.format("pages %d -> %d, fill factor %.1f%% -> %.1f%%, %d tuples moved",
+                    pagesBefore, pagesAfter, fillBefore * 100, fillAfter * 100, tuplesMoved);
+        }
+    }
+}
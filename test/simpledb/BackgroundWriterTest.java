@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    private BufferPool bp;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        bp = Database.resetBufferPool(4);
+        // 测试里手动flush
+        bp.startBackgroundWriter(60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bp.stopBackgroundWriter();
+    }
+
+    /**
+     * Deletes the first tuple of each of the given pages and commits.
+     */
+    private void deleteFirstTuples(int... pgNos) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int pgNo : pgNos) {
+            HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, page.iterator().next());
+        }
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * Committed pages wait in the writer, which writes adjacent pages with
+     * a single write.
+     */
+    @Test
+    public void coalescesAdjacentPages() throws Exception {
+        deleteFirstTuples(7, 2, 4, 3);
+        BackgroundWriter writer = bp.getBackgroundWriter();
+        assertEquals(4, writer.pendingPages());
+        assertNull(bp.getPage(new TransactionId(), new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY).isDirty());
+        assertEquals(504, TestUtil.countTuples(hf.readPage(new HeapPageId(hf.getId(), 2))));
+
+        writer.flush();
+        assertEquals(0, writer.pendingPages());
+        assertEquals(4, writer.getPagesWritten());
+        assertEquals(2, writer.getWrites());
+        for (int pgNo : new int[]{2, 3, 4, 7})
+            assertEquals(503, TestUtil.countTuples(hf.readPage(new HeapPageId(hf.getId(), pgNo))));
+        assertEquals(504, TestUtil.countTuples(hf.readPage(new HeapPageId(hf.getId(), 5))));
+    }
+
+    /**
+     * A page that was evicted before the writer got to it is read back from
+     * the writer, not from disk.
+     */
+    @Test
+    public void readsPendingVersion() throws Exception {
+        deleteFirstTuples(0);
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i < hf.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertNotNull(bp.getBackgroundWriter().pendingCopy(pid));
+        assertEquals(504, TestUtil.countTuples(hf.readPage(pid)));
+        assertEquals(503, TestUtil.countTuples(bp.getPage(tid, pid, Permissions.READ_ONLY)));
+        bp.transactionComplete(tid);
+
+        bp.stopBackgroundWriter();
+        assertNull(bp.getBackgroundWriter());
+        assertEquals(503, TestUtil.countTuples(hf.readPage(pid)));
+    }
+
+    /**
+     * A stopped writer refuses pages, so that a commit that still found it
+     * writes its pages itself rather than leave them with no one to write
+     * them.
+     */
+    @Test
+    public void refusesPagesOnceStopped() throws Exception {
+        BackgroundWriter writer = bp.getBackgroundWriter();
+        bp.stopBackgroundWriter();
+        assertFalse(writer.submit(hf.readPage(new HeapPageId(hf.getId(), 0))));
+        assertEquals(0, writer.pendingPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolResizeTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+    }
+
+    /**
+     * Shrinking evicts clean pages only; the locks and dirty pages of
+     * running transactions survive it.
+     */
+    @Test
+    public void shrinkKeepsLocksAndDirtyPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(20);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, page.iterator().next());
+        }
+        TestUtil.readPages(bp, tid, hf, 3, 20);
+        assertEquals(20, bp.cacheSize());
+
+        bp.resize(5);
+        assertEquals(5, bp.getNumPages());
+        assertEquals(5, bp.cacheSize());
+        bp.resize(2);
+        assertEquals(3, bp.cacheSize());
+        for (int i = 0; i < 3; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertTrue(bp.isCached(pid));
+            assertTrue(bp.holdsLock(tid, pid));
+        }
+        assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), 19)));
+        bp.transactionComplete(tid, true);
+
+        assertEquals(503, TestUtil.countTuples(hf.readPage(new HeapPageId(hf.getId(), 0))));
+        TransactionId t2 = new TransactionId();
+        TestUtil.readPages(bp, t2, hf, 10, 11);
+        assertEquals(2, bp.cacheSize());
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * Growing the pool to fit the working set shows in the hit ratio after
+     * the change.
+     */
+    @Test
+    public void hitRatioBeforeAndAfter() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        assertNull(bp.getStatsBeforeResize());
+        TransactionId tid = new TransactionId();
+        // 15个page循环访问，LRU下10个page的pool一次也不会命中
+        for (int round = 0; round < 5; round++)
+            TestUtil.readPages(bp, tid, hf, 0, 15);
+
+        BufferPool.Stats before = bp.resize(20);
+        assertEquals(75, before.getMisses());
+        assertEquals(0.0, before.getHitRatio(), 0.0);
+        assertEquals(10, before.getCapacity());
+
+        for (int round = 0; round < 5; round++)
+            TestUtil.readPages(bp, tid, hf, 0, 15);
+        bp.transactionComplete(tid);
+        BufferPool.Stats after = bp.getStatsSinceResize();
+        assertEquals(before.getMisses(), bp.getStatsBeforeResize().getMisses());
+        assertEquals(5, after.getMisses());
+        assertTrue(after.toString(), after.getHitRatio() > 0.9);
+        assertEquals(20, after.getCapacity());
+        assertEquals(15, after.getCachedPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
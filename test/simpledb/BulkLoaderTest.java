@@ -0,0 +1,178 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE};
+    private static final int ROWS = 3000;
+
+    private File txt;
+
+    /**
+     * Writes an input file with Windows line endings, blank lines, bad lines
+     * and no newline at the end.
+     */
+    @Before
+    public void writeInput() throws Exception {
+        txt = File.createTempFile("bulk", ".txt");
+        txt.deleteOnExit();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            sb.append(i).append(", name").append(i % 97).append(" ,").append(-i);
+            sb.append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i % 500 == 0)
+                sb.append("\n1,not an int,x\n2,too,many,fields\n");
+        }
+        sb.append(ROWS).append(",last,").append(-ROWS);
+        FileOutputStream os = new FileOutputStream(txt);
+        os.write(sb.toString().getBytes("US-ASCII"));
+        os.close();
+    }
+
+    private byte[] load(HeapFile.PageFormat format, int threads, int chunkSize) throws Exception {
+        File out = File.createTempFile("bulk", ".dat");
+        out.deleteOnExit();
+        long rows = new BulkLoader(TYPES, ',', BufferPool.PAGE_SIZE, format, threads, chunkSize).load(txt, out);
+        assertEquals(ROWS + 1, rows);
+        return Files.readAllBytes(out.toPath());
+    }
+
+    /**
+     * Splitting the input into many small ranges parsed by several threads
+     * gives the same file as parsing it in one piece, and the rows read back
+     * as written.
+     */
+    @Test
+    public void rangesMatchSequential() throws Exception {
+        byte[] expected = load(HeapFile.PageFormat.HEAP, 1, Integer.MAX_VALUE);
+        assertEquals(0, expected.length % BufferPool.PAGE_SIZE);
+        for (int chunkSize : new int[]{7, 100, 4096}) {
+            assertArrayEquals(expected, load(HeapFile.PageFormat.HEAP, 4, chunkSize));
+        }
+
+        File out = File.createTempFile("bulk", ".dat");
+        out.deleteOnExit();
+        HeapFileEncoder.convert(txt, out, BufferPool.PAGE_SIZE, 3, TYPES, ',');
+        assertArrayEquals(expected, Files.readAllBytes(out.toPath()));
+
+        HeapFile hf = new HeapFile(out, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        boolean[] seen = new boolean[ROWS + 1];
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertFalse(seen[i]);
+            seen[i] = true;
+            assertEquals(i == ROWS ? "last" : "name" + (i % 97), ((StringField) t.getField(1)).getValue());
+            assertEquals(-i, ((IntField) t.getField(2)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        for (boolean b : seen)
+            assertEquals(true, b);
+    }
+
+    /**
+     * The packed page formats are filled in input order as well.
+     */
+    @Test
+    public void packedFormats() throws Exception {
+        for (HeapFile.PageFormat format : new HeapFile.PageFormat[]{HeapFile.PageFormat.SLOTTED, HeapFile.PageFormat.PAX}) {
+            byte[] expected = load(format, 1, Integer.MAX_VALUE);
+            assertArrayEquals(expected, load(format, 3, 50));
+        }
+    }
+
+    /**
+     * The packed formats are encoded straight from the parsed records, the
+     * same as adding the rows as Tuples to SlottedPages and PaxPages, for
+     * ISO-8859-1 text and strings longer than STRING_LEN.
+     */
+    @Test
+    public void packedMatchTuplePages() throws Exception {
+        File latin1 = File.createTempFile("bulk", ".txt");
+        latin1.deleteOnExit();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            sb.append(i * 7).append(",caf\u00e9 \u00fc").append(i % 13);
+            if (i % 10 == 0) {
+                for (int k = 0; k < Type.STRING_LEN + 20; k++)
+                    sb.append((char) ('\u00c0' + k % 30));
+            }
+            sb.append(',').append(i % 4).append('\n');
+        }
+        List<String> lines = Arrays.asList(sb.toString().split("\n"));
+        FileOutputStream os = new FileOutputStream(latin1);
+        os.write(sb.toString().getBytes(BulkLoader.CHARSET));
+        os.close();
+
+        TupleDesc td = new TupleDesc(TYPES);
+        for (HeapFile.PageFormat format : new HeapFile.PageFormat[]{HeapFile.PageFormat.SLOTTED, HeapFile.PageFormat.PAX}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            TuplePage page = null;
+            for (String line : lines) {
+                String[] values = line.split(",");
+                Tuple t = new Tuple(td);
+                t.setField(0, new IntField(Integer.parseInt(values[0])));
+                t.setField(1, new StringField(values[1], Type.STRING_LEN));
+                t.setField(2, new IntField(Integer.parseInt(values[2])));
+                if (page == null || add(page, t) < 0) {
+                    if (page != null)
+                        expected.write(page.getPageData());
+                    page = emptyPage(format, td);
+                    assertTrue(add(page, t) >= 0);
+                }
+            }
+            expected.write(page.getPageData());
+
+            File out = File.createTempFile("bulk", ".dat");
+            out.deleteOnExit();
+            long rows = new BulkLoader(TYPES, ',', BufferPool.PAGE_SIZE, format, 3, 1000).load(latin1, out);
+            assertEquals(ROWS, rows);
+            assertArrayEquals(format.toString(), expected.toByteArray(), Files.readAllBytes(out.toPath()));
+        }
+    }
+
+    private static TuplePage emptyPage(HeapFile.PageFormat format, TupleDesc td) throws Exception {
+        ByteBuffer empty = ByteBuffer.allocate(BufferPool.PAGE_SIZE);
+        if (format == HeapFile.PageFormat.PAX)
+            return new PaxPage(new HeapPageId(0, 0), td, empty, BufferPool.PAGE_SIZE);
+        return new SlottedPage(new HeapPageId(0, 0), td, empty, BufferPool.PAGE_SIZE);
+    }
+
+    private static int add(TuplePage page, Tuple t) {
+        if (page instanceof PaxPage)
+            return ((PaxPage) page).add(t);
+        return ((SlottedPage) page).add(t);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
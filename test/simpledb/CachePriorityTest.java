@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CachePriorityTest extends SimpleDbTestBase {
+
+    private HeapFile dim;
+    private HeapFile mid;
+    private HeapFile fact;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        dim = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        mid = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        fact = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+    }
+
+    private static int cached(BufferPool bp, HeapFile f) {
+        int n = 0;
+        for (int i = 0; i < f.numPages(); i++)
+            if (bp.isCached(new HeapPageId(f.getId(), i)))
+                n++;
+        return n;
+    }
+
+    /**
+     * The pages of a HIGH priority table outlast a scan of a large table,
+     * which pushes out those of a NORMAL one.
+     */
+    @Test
+    public void highPriorityOutlastsScans() throws Exception {
+        assertEquals(Catalog.CachePriority.NORMAL, Database.getCatalog().getCachePriority(dim.getId()));
+        BufferPool bp = Database.resetBufferPool(10);
+        TransactionId tid = new TransactionId();
+        TestUtil.readPages(bp, tid, dim, 0, 3);
+        TestUtil.readPages(bp, tid, fact, 0, 30);
+        assertEquals(0, cached(bp, dim));
+
+        Database.getCatalog().setCachePriority(dim.getId(), Catalog.CachePriority.HIGH);
+        TestUtil.readPages(bp, tid, dim, 0, 3);
+        TestUtil.readPages(bp, tid, fact, 0, 30);
+        assertEquals(3, cached(bp, dim));
+        assertEquals(7, cached(bp, fact));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A PINNED table is loaded up front and stays resident, giving way to
+     * neither NORMAL nor HIGH pages.
+     */
+    @Test
+    public void pinnedTableStaysResident() throws Exception {
+        Database.getCatalog().setCachePriority(dim.getId(), Catalog.CachePriority.PINNED);
+        Database.getCatalog().setCachePriority(mid.getId(), Catalog.CachePriority.HIGH);
+        BufferPool bp = Database.resetBufferPool(5);
+        assertEquals(3, bp.loadPinnedTables());
+        assertEquals(3, cached(bp, dim));
+
+        TransactionId tid = new TransactionId();
+        TestUtil.readPages(bp, tid, fact, 0, 30);
+        TestUtil.readPages(bp, tid, mid, 0, 2);
+        assertEquals(3, cached(bp, dim));
+        assertEquals(2, cached(bp, mid));
+        assertEquals(0, cached(bp, fact));
+
+        bp.resize(4);
+        assertEquals(3, cached(bp, dim));
+        assertFalse(bp.isCached(new HeapPageId(mid.getId(), 0)));
+        assertTrue(bp.isCached(new HeapPageId(mid.getId(), 1)));
+
+        // pool缩小到2时预算只有1个page，超出的pinned page和HIGH的一样被驱逐
+        bp.resize(2);
+        assertEquals(1, cached(bp, dim));
+        assertTrue(bp.isCached(new HeapPageId(dim.getId(), 2)));
+        assertTrue(bp.isCached(new HeapPageId(mid.getId(), 1)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages of a PINNED table within the budget are not evicted even when
+     * no other page can be, while those beyond it give way like HIGH ones.
+     */
+    @Test
+    public void pinnedWithinBudget() throws Exception {
+        Database.getCatalog().setCachePriority(dim.getId(), Catalog.CachePriority.PINNED);
+        BufferPool bp = Database.resetBufferPool(4);
+        assertEquals(3, BufferPool.pinnedBudget(4));
+        assertEquals(3, bp.loadPinnedTables());
+
+        TransactionId tid = new TransactionId();
+        TestUtil.readPages(bp, tid, fact, 0, 1);
+        bp.getPage(tid, new HeapPageId(fact.getId(), 0), Permissions.READ_WRITE).markDirty(true, tid);
+        try {
+            TestUtil.readPages(bp, tid, fact, 1, 2);
+            assertTrue("expected a full pool", false);
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(3, cached(bp, dim));
+        bp.transactionComplete(tid, false);
+
+        // 缩小后预算只有1个page，最早的两个pinned page当作HIGH
+        bp.resize(2);
+        tid = new TransactionId();
+        TestUtil.readPages(bp, tid, fact, 0, 30);
+        assertEquals(1, cached(bp, dim));
+        assertTrue(bp.isCached(new HeapPageId(dim.getId(), 2)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CachePriorityTest.class);
+    }
+}
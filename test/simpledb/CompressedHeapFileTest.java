@@ -0,0 +1,153 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    private File raw;
+    private File compressed;
+
+    @Before
+    public void setUp() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 2000; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(i % 10);
+            tuples.add(tuple);
+        }
+        raw = File.createTempFile("raw", ".dat");
+        raw.deleteOnExit();
+        HeapFileEncoder.convert(tuples, raw, BufferPool.PAGE_SIZE, 2);
+
+        compressed = File.createTempFile("compressed", ".dat");
+        compressed.deleteOnExit();
+        CompressedHeapFile.directoryFor(compressed).deleteOnExit();
+        CompressedHeapFile.compressFile(raw, compressed);
+    }
+
+    private CompressedHeapFile open() {
+        CompressedHeapFile hf = new CompressedHeapFile(compressed, Utility.getTupleDesc(2), HeapFile.PageFormat.HEAP);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Pages read back from the compressed file are the same as the raw ones,
+     * and the file is much smaller.
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile plain = new HeapFile(raw, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(plain, SystemTestUtil.getUUID());
+        CompressedHeapFile hf = open();
+
+        assertEquals(plain.numPages(), hf.numPages());
+        assertTrue(compressed.length() * 3 < raw.length());
+        assertTrue(hf.getCompressionRatio() > 3);
+
+        for (int i = 0; i < hf.numPages(); i++) {
+            Page expected = plain.readPage(new HeapPageId(plain.getId(), i));
+            Page actual = hf.readPage(new HeapPageId(hf.getId(), i));
+            assertArrayEquals(expected.getPageData(), actual.getPageData());
+        }
+        List<Page> batch = hf.readPages(1, 10);
+        assertEquals(hf.numPages() - 1, batch.size());
+        assertArrayEquals(plain.readPage(new HeapPageId(plain.getId(), 2)).getPageData(), batch.get(1).getPageData());
+
+        assertEquals(hf.numPages() + batch.size(), hf.getStats().getPagesRead());
+        assertEquals(0, hf.getStats().getPagesWritten());
+    }
+
+    /**
+     * Inserts are compressed on write and survive reopening the file.
+     */
+    @Test
+    public void insertAndReopen() throws Exception {
+        CompressedHeapFile hf = open();
+        int pages = hf.numPages();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(-1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.numPages() > pages);
+        assertTrue(hf.getStats().getPagesWritten() > 0);
+        assertTrue(hf.getStats().getBytesWritten() < hf.getStats().getPagesWritten() * BufferPool.PAGE_SIZE);
+        hf.close();
+
+        Database.reset();
+        CompressedHeapFile reopened = open();
+        assertEquals(hf.numPages(), reopened.numPages());
+        int count = 0, inserted = 0;
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            count++;
+            if (((IntField) t.getField(0)).getValue() == -1)
+                inserted++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2600, count);
+        assertEquals(600, inserted);
+    }
+
+    /**
+     * A rewritten page never overwrites its current image, and the extents
+     * of replaced images are used again, so rewriting the same page over and
+     * over does not grow the file.
+     */
+    @Test
+    public void rewriteOutOfPlace() throws Exception {
+        CompressedHeapFile hf = open();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage full = (HeapPage) hf.readPage(pid);
+        HeapPage half = (HeapPage) hf.readPage(pid);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = half.iterator(); it.hasNext(); )
+            tuples.add(it.next());
+        for (int i = 0; i < tuples.size(); i += 2)
+            half.deleteTuple(tuples.get(i));
+
+        byte[] before = TestUtil.readFileBytes(compressed.getPath());
+        hf.writePage(half);
+        byte[] after = TestUtil.readFileBytes(compressed.getPath());
+        assertArrayEquals(before, Arrays.copyOf(after, before.length));
+
+        for (int i = 0; i < 50; i++)
+            hf.writePage(i % 2 == 0 ? full : half);
+        assertTrue(compressed.length() < before.length + 3 * BufferPool.PAGE_SIZE);
+        assertArrayEquals(half.getPageData(), hf.readPage(pid).getPageData());
+        hf.close();
+
+        Database.reset();
+        CompressedHeapFile reopened = open();
+        assertArrayEquals(half.getPageData(), reopened.readPage(new HeapPageId(reopened.getId(), 0)).getPageData());
+        assertEquals(compressed.length(), reopened.getStoredBytes() + reopened.getFreeBytes());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedPageCacheTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+    }
+
+    private static List<String> tuples(Page page) {
+        List<String> ret = new ArrayList<>();
+        for (Iterator<Tuple> it = ((HeapPage) page).iterator(); it.hasNext(); )
+            ret.add(it.next().toString());
+        return ret;
+    }
+
+    /**
+     * Pages evicted from the pool are served from the second tier when
+     * they are used again, with the contents they have on disk.
+     */
+    @Test
+    public void missesServedFromSecondTier() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        CompressedPageCache tier = bp.enableSecondTier(1 << 20);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 30; i++)
+            bp.getPage(tid, TestUtil.pid(hf, i), Permissions.READ_ONLY);
+        assertEquals(20, tier.size());
+        assertEquals(30, tier.getMisses());
+        assertTrue(tier.toString(), tier.getCompressionRatio() < 1);
+
+        for (int i = 0; i < 30; i++) {
+            Page page = bp.getPage(tid, TestUtil.pid(hf, i), Permissions.READ_ONLY);
+            assertEquals(tuples(hf.readPage(TestUtil.pid(hf, i))), tuples(page));
+        }
+        bp.transactionComplete(tid);
+        assertEquals(30, tier.getHits());
+        assertEquals(0.5, tier.getHitRatio(), 0.0);
+        assertEquals(20, tier.size());
+        assertFalse(tier.contains(TestUtil.pid(hf, 25)));
+    }
+
+    /**
+     * Writing or discarding a page drops its copy in the second tier.
+     */
+    @Test
+    public void writesInvalidate() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        CompressedPageCache tier = bp.enableSecondTier(1 << 20);
+        TransactionId t1 = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(t1, TestUtil.pid(hf, 0), Permissions.READ_WRITE);
+        bp.deleteTuple(t1, page.iterator().next());
+        bp.transactionComplete(t1, true);
+        for (int i = 1; i < 15; i++)
+            bp.getPage(new TransactionId(), TestUtil.pid(hf, i), Permissions.READ_ONLY);
+        assertTrue(tier.contains(TestUtil.pid(hf, 0)));
+        assertEquals(503, tuples(tier.take(TestUtil.pid(hf, 0))).size());
+        assertNull(tier.take(TestUtil.pid(hf, 0)));
+
+        assertTrue(tier.contains(TestUtil.pid(hf, 1)));
+        bp.discardPage(TestUtil.pid(hf, 1));
+        assertFalse(tier.contains(TestUtil.pid(hf, 1)));
+    }
+
+    /**
+     * The second tier drops the pages it has had longest to stay within
+     * its capacity.
+     */
+    @Test
+    public void capacity() throws Exception {
+        BufferPool bp = Database.resetBufferPool(5);
+        CompressedPageCache tier = bp.enableSecondTier(3 * BufferPool.getPageSize());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 30; i++)
+            bp.getPage(tid, TestUtil.pid(hf, i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertTrue(tier.getUsedBytes() <= tier.getCapacityBytes());
+        assertEquals(25, tier.getPagesPut());
+        assertTrue(tier.contains(TestUtil.pid(hf, 24)));
+        assertFalse(tier.contains(TestUtil.pid(hf, 0)));
+    }
+
+    /**
+     * A page the pool evicted is only put once its reservation still
+     * stands: reading the page back, writing it or evicting it again in
+     * the meantime cancels the older reservation.
+     */
+    @Test
+    public void putAfterReservation() throws Exception {
+        CompressedPageCache tier = new CompressedPageCache(1 << 20);
+        Page page = hf.readPage(TestUtil.pid(hf, 0));
+
+        long r = tier.reserve(TestUtil.pid(hf, 0));
+        tier.put(page, r);
+        assertTrue(tier.contains(TestUtil.pid(hf, 0)));
+        tier.put(page, r);
+        assertEquals(1, tier.size());
+
+        r = tier.reserve(TestUtil.pid(hf, 1));
+        assertNull(tier.take(TestUtil.pid(hf, 1)));
+        tier.put(hf.readPage(TestUtil.pid(hf, 1)), r);
+        assertFalse(tier.contains(TestUtil.pid(hf, 1)));
+
+        r = tier.reserve(TestUtil.pid(hf, 2));
+        tier.invalidate(TestUtil.pid(hf, 2));
+        tier.put(hf.readPage(TestUtil.pid(hf, 2)), r);
+        assertFalse(tier.contains(TestUtil.pid(hf, 2)));
+
+        long older = tier.reserve(TestUtil.pid(hf, 3));
+        long newer = tier.reserve(TestUtil.pid(hf, 3));
+        tier.put(hf.readPage(TestUtil.pid(hf, 3)), older);
+        assertFalse(tier.contains(TestUtil.pid(hf, 3)));
+        tier.put(hf.readPage(TestUtil.pid(hf, 3)), newer);
+        assertTrue(tier.contains(TestUtil.pid(hf, 3)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageCacheTest.class);
+    }
+}
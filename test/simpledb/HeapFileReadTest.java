@@ -77,6 +77,51 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        HeapPage expected = (HeapPage) hf.readPage(pid);
+
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(expected.getPageData(), page.getPageData()));
+
+        try {
+            mapped.readPage(new HeapPageId(hf.getId(), 1));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1200, null, null);
+        assertEquals(3, threePageFile.numPages());
+
+        // the request is clipped to the end of the file
+        List<Page> pages = threePageFile.readPages(1, 5);
+        assertEquals(2, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPageId pid = new HeapPageId(threePageFile.getId(), i + 1);
+            assertEquals(pid, pages.get(i).getId());
+            assertTrue(Arrays.equals(threePageFile.readPage(pid).getPageData(), pages.get(i).getPageData()));
+        }
+
+        try {
+            threePageFile.readPages(3, 1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
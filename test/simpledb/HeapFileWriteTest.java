@@ -1,11 +1,15 @@
 package simpledb;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -43,6 +47,152 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() going to a page that has room
+     * again, as found through the free-space map.
+     */
+    @Test public void addTupleReusesFreedSlot() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 505; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (first == null)
+                first = t;
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(0, empty.freeSpaceMap().getUnits(0));
+
+        empty.deleteTuple(tid, first);
+        assertEquals(1, empty.freeSpaceMap().getUnits(0));
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(0, empty.freeSpaceMap().getUnits(0));
+    }
+
+    /**
+     * The free-space map is persisted next to the data file and reloaded.
+     */
+    @Test public void freeSpaceMapPersists() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        File sidecar = FreeSpaceMap.sidecarFor(f);
+        sidecar.deleteOnExit();
+
+        FreeSpaceMap map = new FreeSpaceMap(sidecar);
+        map.persist(0, 0);
+        map.persist(2, 300);
+        map.update(1, 5);   // in memory only
+        assertEquals(1, map.findPage(1, 0));
+        assertEquals(2, map.findPage(6, 0));
+        assertEquals(-1, map.findPage(1, 3));
+        map.close();
+
+        FreeSpaceMap reloaded = new FreeSpaceMap(sidecar);
+        assertEquals(3, reloaded.numPages());
+        assertEquals(FreeSpaceMap.MAX_UNITS, reloaded.getUnits(2));
+        assertEquals(0, reloaded.getUnits(1));
+        assertEquals(2, reloaded.findPage(1, 0));
+        reloaded.close();
+
+        FreeSpaceMap.discard(f);
+        assertFalse(sidecar.exists());
+    }
+
+    /**
+     * The free-space map of a table in the temporary directory is deleted
+     * at exit along with the table, and only there.
+     */
+    @Test public void temporarySidecar() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(-1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(FreeSpaceMap.sidecarFor(hf.getFile()).exists());
+        assertTrue(hf.freeSpaceMap().isTemporary());
+
+        File kept = new File("fsm-not-temporary.dat").getAbsoluteFile();
+        assertFalse(new FreeSpaceMap(FreeSpaceMap.sidecarFor(kept)).isTemporary());
+        assertFalse(FreeSpaceMap.sidecarFor(kept).exists());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuples(): pages are filled in bulk and
+     * the file grows by doubling extents of blank pages.
+     */
+    @Test public void insertTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 3000; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        ArrayList<Page> pages = empty.insertTuples(tid, tuples.iterator());
+
+        // 3000 tuples need 6 pages: the existing one, then extents of 1, 2 and 4
+        assertEquals(6, pages.size());
+        assertEquals(8, empty.numPages());
+        for (Page p : pages)
+            assertEquals(tid, p.isDirty());
+        assertEquals(0, tuples.get(503).getRecordId().getPageId().pageNumber());
+        assertEquals(1, tuples.get(504).getRecordId().getPageId().pageNumber());
+        assertEquals(5, tuples.get(2999).getRecordId().getPageId().pageNumber());
+
+        // the pages of the last extent that were not needed are empty
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(3000, count);
+    }
+
+    /**
+     * Unit test for a HeapFile with a larger page size than the default:
+     * pages hold proportionally more tuples, and inserted tuples survive
+     * being flushed and read back.
+     */
+    @Test public void largerPageSize() throws Exception {
+        int pageSize = 4 * BufferPool.PAGE_SIZE;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3000; ++i) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(-i);
+            tuples.add(tuple);
+        }
+        File f = File.createTempFile("pagesize", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, pageSize, 2);
+        assertEquals(0, f.length() % pageSize);
+
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), false, HeapFile.PageFormat.HEAP, pageSize);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(pageSize, Database.getCatalog().getPageSize(hf.getId()));
+        // 2016 tuples per 16KB page instead of 504 per 4KB page
+        assertEquals(2, hf.numPages());
+
+        for (int i = 0; i < 1100; ++i)
+            hf.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, hf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3L * pageSize, f.length());
+
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(4100, count);
+    }
+
     /**
      * JUnit suite target
      */
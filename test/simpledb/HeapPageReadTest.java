@@ -129,6 +129,42 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getField() and HeapPage.iterator(List)
+     */
+    @Test
+    public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertEquals(EXAMPLE_VALUES[3][1], ((IntField) page.getField(3, 1)).getValue());
+
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(40000));
+        List<Predicate> predicates = Collections.singletonList(p);
+        Iterator<Tuple> it = page.iterator(predicates);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            assertEquals(EXAMPLE_VALUES[row][0] > 40000, page.matches(row, p));
+            if (EXAMPLE_VALUES[row][0] > 40000) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(row, tup.getRecordId().tupleno());
+                assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            }
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * A page must never write to the buffer it was created from
+     */
+    @Test
+    public void sourceBufferUnchanged() throws Exception {
+        byte[] data = EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertTrue(Arrays.equals(EXAMPLE_DATA, data));
+        assertEquals(page.numSlots - EXAMPLE_VALUES.length, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(page.numSlots - EXAMPLE_VALUES.length - 1, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
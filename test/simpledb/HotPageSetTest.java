@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HotPageSetTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private File saved;
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+        saved = File.createTempFile("hotpages", ".dat");
+        saved.deleteOnExit();
+    }
+
+    /**
+     * The saved pages come most recently used first, and a new pool warmed
+     * up from them has the hottest ones that fit.
+     */
+    @Test
+    public void saveAndWarmUp() throws Exception {
+        BufferPool bp = Database.resetBufferPool(20);
+        TransactionId tid = new TransactionId();
+        TestUtil.readPages(bp, tid, hf, 0, 30);
+        TestUtil.readPages(bp, tid, hf, 5, 8);
+        bp.transactionComplete(tid);
+        bp.startHotPageSaver(saved, HotPageSet.DEFAULT_PERIOD_MS);
+        bp.stopHotPageSaver();
+
+        List<PageId> pids = HotPageSet.read(saved);
+        assertEquals(20, pids.size());
+        assertEquals(TestUtil.pid(hf, 7), pids.get(0));
+        assertEquals(TestUtil.pid(hf, 6), pids.get(1));
+        assertEquals(TestUtil.pid(hf, 5), pids.get(2));
+        assertEquals(TestUtil.pid(hf, 29), pids.get(3));
+
+        // 重启之后
+        bp = Database.resetBufferPool(10);
+        assertEquals(10, (int) bp.warmUp(saved).get());
+        assertEquals(10, bp.cacheSize());
+        for (int i = 0; i < 10; i++)
+            assertTrue(bp.isCached(pids.get(i)));
+        assertFalse(bp.isCached(TestUtil.pid(hf, 13)));
+
+        tid = new TransactionId();
+        TestUtil.readPages(bp, tid, hf, 5, 8);
+        TestUtil.readPages(bp, tid, hf, 23, 30);
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getStats().getMisses());
+    }
+
+    /**
+     * Warming up uses only free frames, and skips pages that are cached
+     * already or do not exist (any more).
+     */
+    @Test
+    public void warmUpSkipsPages() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(saved))) {
+            int[][] pages = {{hf.getId(), 1}, {hf.getId(), 2}, {hf.getId() + 1, 3}, {hf.getId(), 40},
+                    {hf.getId(), 3}, {hf.getId(), 4}, {hf.getId(), 5}, {hf.getId(), 6}};
+            out.writeInt(pages.length);
+            for (int[] p : pages) {
+                out.writeInt(p[0]);
+                out.writeInt(p[1]);
+            }
+        }
+        BufferPool bp = Database.resetBufferPool(5);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, TestUtil.pid(hf, 2), Permissions.READ_WRITE);
+        bp.getPage(tid, TestUtil.pid(hf, 10), Permissions.READ_ONLY);
+
+        assertEquals(3, (int) bp.warmUp(saved).get());
+        assertEquals(5, bp.cacheSize());
+        assertTrue(bp.isCached(TestUtil.pid(hf, 1)));
+        assertTrue(bp.isCached(TestUtil.pid(hf, 3)));
+        assertTrue(bp.isCached(TestUtil.pid(hf, 4)));
+        assertFalse(bp.isCached(TestUtil.pid(hf, 5)));
+        assertTrue(bp.holdsLock(tid, TestUtil.pid(hf, 2)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page the background writer writes while the warm-up is reading it
+     * still comes back in its committed version.
+     */
+    @Test
+    public void warmUpWhileWriterFlushes() throws Exception {
+        BufferPool bp = Database.resetBufferPool(20);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 10, 1 << 16, null, null);
+        TestUtil.GatedHeapFile gated = new TestUtil.GatedHeapFile(f, Utility.getTupleDesc(2), "simpledb-warm-up", 3);
+        Database.getCatalog().addTable(gated, SystemTestUtil.getUUID());
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(saved))) {
+            out.writeInt(1);
+            out.writeInt(gated.getId());
+            out.writeInt(3);
+        }
+        bp.startBackgroundWriter(60000);
+        try {
+            TransactionId t1 = new TransactionId();
+            HeapPage page = (HeapPage) bp.getPage(t1, TestUtil.pid(gated, 3), Permissions.READ_WRITE);
+            bp.deleteTuple(t1, page.iterator().next());
+            bp.transactionComplete(t1);
+            // 已提交的版本只在writer中，不在pool中
+            bp.resize(1);
+            TransactionId t0 = new TransactionId();
+            bp.getPage(t0, TestUtil.pid(gated, 0), Permissions.READ_ONLY);
+            bp.transactionComplete(t0);
+            bp.resize(20);
+            assertFalse(bp.isCached(TestUtil.pid(gated, 3)));
+
+            CompletableFuture<Integer> loaded = bp.warmUp(saved);
+            assertTrue(gated.read.await(10, TimeUnit.SECONDS));
+            bp.getBackgroundWriter().flush();
+            gated.release.countDown();
+            assertEquals(1, (int) loaded.get(10, TimeUnit.SECONDS));
+            assertTrue(bp.isCached(TestUtil.pid(gated, 3)));
+
+            TransactionId t2 = new TransactionId();
+            assertEquals(503, TestUtil.countTuples(bp.getPage(t2, TestUtil.pid(gated, 3), Permissions.READ_ONLY)));
+            bp.transactionComplete(t2);
+        } finally {
+            bp.stopBackgroundWriter();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HotPageSetTest.class);
+    }
+}
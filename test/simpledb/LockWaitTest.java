@@ -0,0 +1,176 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.LockGrabber;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockWaitTest extends SimpleDbTestBase {
+
+    // 足够让一个等待中的线程进入等待队列
+    private static final int SETTLE_MS = 100;
+
+    private PageId p0;
+    private BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    private static LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm) throws Exception {
+        LockGrabber lg = new LockGrabber(tid, pid, perm);
+        lg.start();
+        Thread.sleep(SETTLE_MS);
+        return lg;
+    }
+
+    private static void awaitAcquired(LockGrabber lg) throws Exception {
+        lg.join(2000);
+        assertTrue(lg.acquired());
+    }
+
+    /**
+     * A waiter gets the lock as soon as the holder releases it, rather than
+     * at its next poll.
+     */
+    @Test
+    public void waiterWakesOnRelease() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.getPage(t1, p0, Permissions.READ_WRITE);
+        LockGrabber lg = startGrabber(t2, p0, Permissions.READ_ONLY);
+        assertFalse(lg.acquired());
+
+        long start = System.nanoTime();
+        bp.transactionComplete(t1);
+        lg.join(2000);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(lg.acquired());
+        assertTrue("woke after " + millis + " ms", millis < 200);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * A reader that arrives after a waiting writer waits behind it, so a
+     * stream of readers cannot starve the writer.
+     */
+    @Test
+    public void readersQueueBehindWaitingWriter() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        bp.getPage(t1, p0, Permissions.READ_ONLY);
+        LockGrabber writer = startGrabber(t2, p0, Permissions.READ_WRITE);
+        LockGrabber reader = startGrabber(t3, p0, Permissions.READ_ONLY);
+        assertFalse(writer.acquired());
+        assertFalse(reader.acquired());
+        assertNotNull(bp.getPage(t1, p0, Permissions.READ_ONLY));
+
+        bp.transactionComplete(t1);
+        awaitAcquired(writer);
+        Thread.sleep(SETTLE_MS);
+        assertFalse(reader.acquired());
+
+        bp.transactionComplete(t2);
+        awaitAcquired(reader);
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * An upgrade goes ahead of the writers that were already waiting.
+     */
+    @Test
+    public void upgradeGoesFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        bp.getPage(t1, p0, Permissions.READ_ONLY);
+        bp.getPage(t2, p0, Permissions.READ_ONLY);
+        LockGrabber writer = startGrabber(t3, p0, Permissions.READ_WRITE);
+        LockGrabber upgrade = startGrabber(t1, p0, Permissions.READ_WRITE);
+        assertFalse(upgrade.acquired());
+
+        bp.transactionComplete(t2);
+        awaitAcquired(upgrade);
+        assertFalse(writer.acquired());
+
+        bp.transactionComplete(t1);
+        awaitAcquired(writer);
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * A waiter on a page whose writer aborts gets the page as it was before
+     * the writer changed it: the pages of a transaction are rolled back
+     * before its locks are released.
+     */
+    @Test
+    public void waiterSeesRolledBackPage() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(t1, p0, Permissions.READ_WRITE);
+        bp.deleteTuple(t1, page.iterator().next());
+        bp.deleteTuple(t1, page.iterator().next());
+
+        AtomicInteger seen = new AtomicInteger(-1);
+        Thread waiter = new Thread(() -> {
+            try {
+                seen.set(TestUtil.countTuples(bp.getPage(t2, p0, Permissions.READ_ONLY)));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        waiter.start();
+        Thread.sleep(SETTLE_MS);
+        assertEquals(-1, seen.get());
+
+        bp.transactionComplete(t1, false);
+        waiter.join(2000);
+        assertEquals(504, seen.get());
+        assertNull(bp.getPage(t2, p0, Permissions.READ_ONLY).isDirty());
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * A transaction that waits longer than its lock-wait timeout is aborted.
+     */
+    @Test
+    public void waitTimesOut() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.getPage(t1, p0, Permissions.READ_WRITE);
+        bp.setLockTimeout(t2, 200);
+        LockGrabber lg = startGrabber(t2, p0, Permissions.READ_ONLY);
+        lg.join(2000);
+        assertFalse(lg.acquired());
+        assertTrue(lg.getError() instanceof TransactionAbortedException);
+
+        // t2放弃等待后不再挡住后来的请求
+        bp.transactionComplete(t1);
+        TransactionId t3 = new TransactionId();
+        bp.getPage(t3, p0, Permissions.READ_WRITE);
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockWaitTest.class);
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+
+    private BufferPool bp;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+        bp = Database.resetBufferPool(10, ReplacementPolicy.Kind.LRU, true);
+    }
+
+    private static List<Tuple> tuples(Page page) {
+        List<Tuple> ret = new ArrayList<>();
+        for (Iterator<Tuple> it = ((TuplePage) page).iterator(); it.hasNext(); )
+            ret.add(it.next());
+        return ret;
+    }
+
+    private static boolean inArena(Page page) {
+        return ((TuplePage) page).getPageBuffer().isDirect();
+    }
+
+    /**
+     * Cached pages keep their bytes in the arena; pages that leave the pool
+     * take their bytes with them before their frame is reused.
+     */
+    @Test
+    public void pagesLiveInFrames() throws Exception {
+        assertTrue(bp.isOffHeap());
+        TransactionId tid = new TransactionId();
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            Page page = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            assertTrue(inArena(page));
+            pages.add(page);
+        }
+        bp.transactionComplete(tid);
+        assertEquals(bp.getArena().getNumFrames() - 10, bp.getArena().getFreeFrames());
+
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            assertEquals(bp.isCached(page.getId()), inArena(page));
+            assertEquals(tuples(hf.readPage(page.getId())).toString(), tuples(page).toString());
+        }
+    }
+
+    /**
+     * Modified pages work on a copy, and go back to their frame once they
+     * are committed or aborted.
+     */
+    @Test
+    public void commitAndAbort() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId t1 = new TransactionId();
+        Page page = bp.getPage(t1, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(t1, tuples(page).get(0));
+        assertFalse(inArena(page));
+        assertEquals(504, tuples(page.getBeforeImage()).size());
+        bp.transactionComplete(t1, true);
+        assertTrue(inArena(page));
+        assertEquals(503, tuples(page).size());
+        assertEquals(503, tuples(hf.readPage(pid)).size());
+
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t2, tuples(bp.getPage(t2, pid, Permissions.READ_WRITE)).get(0));
+        bp.transactionComplete(t2, false);
+        Page reverted = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertTrue(inArena(reverted));
+        assertEquals(503, tuples(reverted).size());
+    }
+
+    @Test
+    public void arenaChunks() {
+        FrameArena arena = new FrameArena(3, 1024);
+        int a = arena.allocate();
+        int b = arena.allocate();
+        arena.frame(b).putInt(0, 42);
+        assertEquals(0, arena.frame(a).getInt(0));
+        assertEquals(42, arena.frame(b).getInt(0));
+        assertEquals(1024, arena.frame(b).capacity());
+        arena.allocate();
+        assertEquals(-1, arena.allocate());
+        arena.release(a);
+        assertEquals(a, arena.allocate());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    @Before
+    public void addTable() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static Page page(int pgNo) throws Exception {
+        return new HeapPage(new HeapPageId(-1, pgNo), ByteBuffer.wrap(HeapPage.createEmptyPageData()), BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Eviction takes the least recently used clean page and never a dirty
+     * one.
+     */
+    @Test
+    public void evictsLeastRecentlyUsedCleanPage() throws Exception {
+        PageTable table = new PageTable(4, new LruPolicy());
+        List<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < 4; i++) {
+            pages.add(page(i));
+            table.put(pages.get(i));
+            Thread.sleep(1);
+        }
+        assertEquals(4, table.size());
+        pages.get(0).markDirty(true, new TransactionId());
+        table.get(pages.get(1).getId());
+
+        assertTrue(table.evict(null));
+        assertFalse(table.contains(pages.get(2).getId()));
+        assertTrue(table.evict(null));
+        assertFalse(table.contains(pages.get(3).getId()));
+        PageTable.Frame last = table.frameFor(pages.get(1).getId());
+        assertFalse(table.evict(last));
+        assertSame(pages.get(0), table.get(pages.get(0).getId()));
+        assertEquals(2, table.size());
+    }
+
+    /**
+     * Threads adding, reading and removing pages of their own keep the
+     * table consistent.
+     */
+    @Test
+    public void concurrentAccess() throws Exception {
+        final PageTable table = new PageTable(8, new LruPolicy());
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int base = t * 1000;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = base; i < base + 500; i++) {
+                        Page p = page(i);
+                        table.put(p);
+                        if (table.get(p.getId()) != p)
+                            errors.incrementAndGet();
+                        if (i % 2 == 0 && !table.remove(p.getId()))
+                            errors.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, errors.get());
+        assertEquals(8 * 250, table.size());
+        assertEquals(8 * 250, table.pages().size());
+        assertNull(table.get(new HeapPageId(-1, 0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
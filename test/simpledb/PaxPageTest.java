@@ -0,0 +1,230 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxPageTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE};
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    @Before
+    public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(TYPES);
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int a, int b, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        t.setField(2, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> contents(Iterator<Tuple> it) {
+        List<Tuple> ret = new ArrayList<Tuple>();
+        while (it.hasNext())
+            ret.add(it.next());
+        return ret;
+    }
+
+    private static int intValue(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
+    /**
+     * Rows read back the same from the page bytes, and deleted rows keep
+     * the row numbers of the others.
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, contents(page.iterator()).size());
+        List<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; i < 100; i++) {
+            Tuple t = tuple(i * 7 - 300, -i, "row" + i);
+            page.insertTuple(t);
+            assertEquals(i, t.getRecordId().tupleno());
+            inserted.add(t);
+        }
+        page.deleteTuple(inserted.get(10));
+        assertFalse(page.isSlotUsed(10));
+
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        List<Tuple> tuples = contents(copy.iterator());
+        assertEquals(99, tuples.size());
+        for (Tuple t : tuples) {
+            int i = t.getRecordId().tupleno();
+            assertTrue(i != 10);
+            assertEquals(i * 7 - 300, intValue(t, 0));
+            assertEquals(-i, intValue(t, 1));
+            assertEquals("row" + i, ((StringField) t.getField(2)).getValue());
+        }
+        assertEquals(0, contents(page.getBeforeImage().iterator()).size());
+    }
+
+    /**
+     * Int columns with a small range (frame of reference) or increasing
+     * values (delta) are bit-packed, so many more rows fit on a page than
+     * the fixed-width HeapPage's slots.
+     */
+    @Test
+    public void packedIntColumns() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(1000000 + n * 3, n % 4, ""))) {
+            page.insertTuple(tuple(1000000 + n * 3, n % 4, ""));
+            n++;
+        }
+        int heapSlots = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        // 3 bits for each delta of column 0, 2 bits for each value of column 1
+        // and 2 bytes of string length per row
+        assertTrue(n > 40 * heapSlots);
+        assertTrue(n * 3 > BufferPool.PAGE_SIZE);
+
+        try {
+            page.insertTuple(tuple(1000000 + n * 3, n % 4, ""));
+            assertTrue("expected a full page", false);
+        } catch (DbException e) {
+            // expected
+        }
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        for (int i = 0; i < n; i += 97) {
+            assertEquals(1000000 + i * 3, ((IntField) copy.getField(i, 0)).getValue());
+            assertEquals(i % 4, ((IntField) copy.getField(i, 1)).getValue());
+        }
+    }
+
+    /**
+     * Fields outside the referenced set are not decoded, and predicates are
+     * evaluated on the columns.
+     */
+    @Test
+    public void prunedIterator() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 50; i++)
+            page.insertTuple(tuple(i, i % 5, "s" + i));
+        page = new PaxPage(pid, page.getPageData());
+
+        BitSet fields = new BitSet();
+        fields.set(0);
+        List<Predicate> preds = Collections.singletonList(new Predicate(1, Predicate.Op.EQUALS, new IntField(3)));
+        List<Tuple> tuples = contents(page.iterator(preds, fields));
+        assertEquals(10, tuples.size());
+        for (Tuple t : tuples) {
+            assertEquals(3, intValue(t, 0) % 5);
+            assertNull(t.getField(1));
+            assertNull(t.getField(2));
+        }
+    }
+
+    /**
+     * A PAX HeapFile written by HeapFileEncoder can be inserted into and
+     * scanned with only some of its columns.
+     */
+    @Test
+    public void paxHeapFile() throws Exception {
+        File txt = File.createTempFile("pax", ".txt");
+        txt.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(txt));
+        int rows = 5000;
+        for (int i = 0; i < rows; i++)
+            bw.write(i + "," + (i % 10) + ",author" + (i % 3) + "\n");
+        bw.close();
+
+        File heap = File.createTempFile("heap", ".dat");
+        heap.deleteOnExit();
+        File pax = File.createTempFile("pax", ".dat");
+        pax.deleteOnExit();
+        HeapFileEncoder.convert(txt, heap, BufferPool.PAGE_SIZE, 3, TYPES, ',', HeapFile.PageFormat.HEAP);
+        HeapFileEncoder.convert(txt, pax, BufferPool.PAGE_SIZE, 3, TYPES, ',', HeapFile.PageFormat.PAX);
+
+        HeapFile hf = new HeapFile(pax, td, false, HeapFile.PageFormat.PAX);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertTrue(hf.numPages() * 5 < new HeapFile(heap, td).numPages());
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(rows, rows % 10, "author0"));
+
+        BitSet fields = new BitSet();
+        fields.set(0);
+        DbFileIterator it = hf.iterator(tid, Collections.<Predicate>emptyList(), fields);
+        it.open();
+        boolean[] seen = new boolean[rows + 1];
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = intValue(t, 0);
+            assertNull(t.getField(2));
+            assertFalse(seen[i]);
+            seen[i] = true;
+            count++;
+        }
+        it.close();
+        assertEquals(rows + 1, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Only scans of PAX files leave out the fields the plan does not use;
+     * scans of row formats keep returning whole tuples.
+     */
+    @Test
+    public void scanPrunesOnlyPax() throws Exception {
+        HeapFile rows = SystemTestUtil.createRandomHeapFile(3, 100, null, null);
+        TransactionId tid = new TransactionId();
+        BitSet fields = new BitSet();
+        fields.set(0);
+        SeqScan scan = new SeqScan(tid, rows.getId());
+        assertFalse(scan.setReferencedFields(fields));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            for (int i = 0; i < 3; i++)
+                assertNotNull(t.getField(i));
+            count++;
+        }
+        scan.close();
+        assertEquals(100, count);
+
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        HeapFile pax = new HeapFile(f, td, false, HeapFile.PageFormat.PAX);
+        Database.getCatalog().addTable(pax, SystemTestUtil.getUUID());
+        assertTrue(new SeqScan(tid, pax.getId()).setReferencedFields(fields));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PinTest extends SimpleDbTestBase {
+
+    private HeapFile small;
+    private HeapFile large;
+
+    @Before
+    public void setUp() throws Exception {
+        small = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        large = SystemTestUtil.createRandomHeapFile(2, 504 * 12, null, null);
+    }
+
+    /**
+     * A pinned page stays in the pool until it is unpinned as often as it
+     * was pinned, and a pool of pinned pages has no room.
+     */
+    @Test
+    public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        TransactionId tid = new TransactionId();
+        TestUtil.readPages(bp, tid, small, 0, 1);
+        assertTrue(bp.pinPage(tid, TestUtil.pid(small, 0)));
+        assertTrue(bp.pinPage(tid, TestUtil.pid(small, 0)));
+        assertFalse(bp.pinPage(tid, TestUtil.pid(small, 1)));
+        TestUtil.readPages(bp, tid, large, 0, 10);
+        assertTrue(bp.isCached(TestUtil.pid(small, 0)));
+
+        bp.unpinPage(tid, TestUtil.pid(small, 0));
+        TestUtil.readPages(bp, tid, large, 0, 10);
+        assertTrue(bp.isCached(TestUtil.pid(small, 0)));
+        bp.unpinPage(tid, TestUtil.pid(small, 0));
+        TestUtil.readPages(bp, tid, large, 0, 10);
+        assertFalse(bp.isCached(TestUtil.pid(small, 0)));
+
+        bp = Database.resetBufferPool(2);
+        TestUtil.readPages(bp, tid, small, 0, 2);
+        bp.pinPage(tid, TestUtil.pid(small, 0));
+        bp.pinPage(tid, TestUtil.pid(small, 1));
+        try {
+            TestUtil.readPages(bp, tid, small, 2, 3);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * An iterator pins the page it is going through; the pin goes when
+     * the iterator is closed or its transaction completes.
+     */
+    @Test
+    public void iteratorPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = small.iterator(tid);
+        it.open();
+        it.next();
+        TestUtil.readPages(bp, tid, large, 0, 12);
+        assertTrue(bp.isCached(TestUtil.pid(small, 0)));
+        it.close();
+        TestUtil.readPages(bp, tid, large, 0, 12);
+        assertFalse(bp.isCached(TestUtil.pid(small, 0)));
+
+        it = small.iterator(tid);
+        it.open();
+        it.next();
+        bp.transactionComplete(tid);
+        TransactionId t2 = new TransactionId();
+        TestUtil.readPages(bp, t2, large, 0, 12);
+        assertFalse(bp.isCached(TestUtil.pid(small, 0)));
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * A page an operator is about to change stays pinned until it is
+     * unpinned, and inserting or deleting leaves no pins behind once the
+     * page is dirty.
+     */
+    @Test
+    public void operatorsPinUntilDirty() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        TransactionId tid = new TransactionId();
+        TransactionId reader = new TransactionId();
+        Page page = bp.getPinnedPage(tid, TestUtil.pid(small, 0), Permissions.READ_WRITE);
+        TestUtil.readPages(bp, reader, large, 0, 10);
+        assertTrue(bp.isCached(TestUtil.pid(small, 0)));
+        bp.unpinPage(tid, page.getId());
+        TestUtil.readPages(bp, reader, large, 0, 10);
+        assertFalse(bp.isCached(TestUtil.pid(small, 0)));
+
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid, small.getId(), t);
+        bp.deleteTuple(tid, t);
+        bp.transactionComplete(tid);
+        TestUtil.readPages(bp, reader, large, 0, 10);
+        assertFalse(bp.isCached(t.getRecordId().getPageId()));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PinTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    /**
+     * A HeapFile whose reads take a while, like reads from a slow disk.
+     */
+    private static class SlowHeapFile extends HeapFile {
+        private final long delayMillis;
+
+        SlowHeapFile(File f, TupleDesc td, long delayMillis) {
+            super(f, td);
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public List<Page> readPages(int firstPgNo, int count) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return super.readPages(firstPgNo, count);
+        }
+    }
+
+    private static HeapFile open(int pages, long delayMillis, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1 << 16, null, tuples);
+        HeapFile hf = new SlowHeapFile(f, Utility.getTupleDesc(2), delayMillis);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * A scan gets all the pages after its first batch from the read-ahead,
+     * and returns every tuple once.
+     */
+    @Test
+    public void scanUsesReadAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(100);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = open(40, 0, tuples);
+        assertNull(bp.readAheadFor(new TransactionId(), open(1, 0, null), null));
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        ReadAhead.Metrics m = bp.getReadAheadMetrics();
+        assertEquals(40 - bp.getReadBatchSize(), m.getPagesRead());
+        assertEquals(m.getPagesRead(), m.getHits());
+        assertEquals(40, bp.cacheSize());
+    }
+
+    /**
+     * When the scan keeps catching up with slow reads the window grows.
+     */
+    @Test
+    public void windowGrowsOnStalls() throws Exception {
+        BufferPool bp = Database.resetBufferPool(200);
+        HeapFile hf = open(120, 20, null);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        bp.transactionComplete(tid);
+
+        ReadAhead.Metrics m = bp.getReadAheadMetrics();
+        assertTrue(m.toString(), m.getStalls() > 0);
+        assertTrue(m.toString(), m.getAverageWindow() > bp.getReadBatchSize());
+        assertEquals(120, bp.cacheSize());
+    }
+
+    /**
+     * A page the background writer writes while its read-ahead is in flight
+     * still comes back in its committed version.
+     */
+    @Test
+    public void writerCommitsDuringReadAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(100);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 40, 1 << 16, null, null);
+        TestUtil.GatedHeapFile hf = new TestUtil.GatedHeapFile(f, Utility.getTupleDesc(2), "simpledb-read-ahead", 30);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        bp.startBackgroundWriter(60000);
+        try {
+            TransactionId t1 = new TransactionId();
+            HeapPage page = (HeapPage) bp.getPage(t1, TestUtil.pid(hf, 30), Permissions.READ_WRITE);
+            bp.deleteTuple(t1, page.iterator().next());
+            bp.transactionComplete(t1);
+            // 已提交的版本只在writer中，不在pool中
+            bp.resize(1);
+            TransactionId t0 = new TransactionId();
+            bp.getPage(t0, TestUtil.pid(hf, 0), Permissions.READ_ONLY);
+            bp.transactionComplete(t0);
+            bp.resize(100);
+            assertFalse(bp.isCached(TestUtil.pid(hf, 30)));
+            assertTrue(bp.getBackgroundWriter().pendingPages() > 0);
+
+            AtomicInteger count = new AtomicInteger();
+            TransactionId t2 = new TransactionId();
+            Thread scan = new Thread(() -> {
+                try {
+                    DbFileIterator it = hf.iterator(t2);
+                    it.open();
+                    while (it.hasNext()) {
+                        it.next();
+                        count.incrementAndGet();
+                    }
+                    it.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            scan.start();
+            assertTrue(hf.read.await(10, TimeUnit.SECONDS));
+            bp.getBackgroundWriter().flush();
+            hf.release.countDown();
+            scan.join(10000);
+            assertEquals(504 * 40 - 1, count.get());
+            bp.transactionComplete(t2);
+        } finally {
+            bp.stopBackgroundWriter();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
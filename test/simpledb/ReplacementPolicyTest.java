@@ -0,0 +1,195 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    /**
+     * With scans running alongside the point lookups, the scan resistant
+     * policies keep the lookups' hot set, where LRU loses much of it.
+     */
+    @Test
+    public void mixedTraceHitRatios() {
+        List<PageId> trace = ReplacementBenchmark.trace("heavy", 50, 100000, 1);
+        double lru = ReplacementBenchmark.replay(new LruPolicy(), 50, trace).getLookupHitRatio();
+        double clock = ReplacementBenchmark.replay(new ClockPolicy(), 50, trace).getLookupHitRatio();
+        assertTrue(clock >= lru);
+        for (ReplacementPolicy.Kind kind : new ReplacementPolicy.Kind[]{
+                ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.Kind.LRU_K, ReplacementPolicy.Kind.ARC}) {
+            double ratio = ReplacementBenchmark.replay(kind.create(50), 50, trace).getLookupHitRatio();
+            assertTrue(kind + " " + ratio + " vs " + lru, ratio > lru + 0.2);
+        }
+    }
+
+    /**
+     * CLOCK passes over pages whose reference bit is set, and offers every
+     * page once all bits have been cleared.
+     */
+    @Test
+    public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy();
+        for (int i = 0; i < 4; i++)
+            clock.pageAdded(new HeapPageId(1, i));
+        clock.pageAccessed(new HeapPageId(1, 0));
+        clock.pageAccessed(new HeapPageId(1, 2));
+        Iterator<PageId> it = clock.candidates();
+        assertEquals(new HeapPageId(1, 1), it.next());
+        assertEquals(new HeapPageId(1, 3), it.next());
+        assertEquals(new HeapPageId(1, 0), it.next());
+        clock.pageRemoved(new HeapPageId(1, 1), true);
+        int n = 0;
+        for (it = clock.candidates(); it.hasNext(); it.next())
+            n++;
+        assertEquals(6, n);
+    }
+
+    /**
+     * LRU offers the pages least recently used first, each page once, no
+     * matter how often the pages were hit since the last eviction.
+     */
+    @Test
+    public void lruOrderAfterManyHits() {
+        LruPolicy lru = new LruPolicy();
+        for (int i = 0; i < 4; i++)
+            lru.pageAdded(new HeapPageId(1, i));
+        for (int round = 0; round < 10000; round++) {
+            lru.pageAccessed(new HeapPageId(1, 2));
+            lru.pageAccessed(new HeapPageId(1, 0));
+        }
+        lru.pageAccessed(new HeapPageId(1, 9));
+        lru.pageRemoved(new HeapPageId(1, 3), true);
+        List<PageId> order = new ArrayList<>();
+        lru.candidates().forEachRemaining(order::add);
+        assertEquals(Arrays.asList(new HeapPageId(1, 1), new HeapPageId(1, 2), new HeapPageId(1, 0)), order);
+        assertEquals(Arrays.asList(new HeapPageId(1, 0), new HeapPageId(1, 2), new HeapPageId(1, 1)), lru.ranking());
+    }
+
+    /**
+     * The candidates of 2Q, LRU-K and ARC can be gone through while pages
+     * are used, added and removed: pages removed are skipped, pages added
+     * come at the end, and a page used again meanwhile comes after them,
+     * except in the FIFO queue of 2Q, where a second use does not move a
+     * page.
+     */
+    @Test
+    public void candidatesWhilePagesChange() {
+        for (ReplacementPolicy.Kind kind : new ReplacementPolicy.Kind[]{
+                ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.Kind.LRU_K, ReplacementPolicy.Kind.ARC}) {
+            ReplacementPolicy policy = kind.create(100);
+            for (int i = 0; i < 4; i++)
+                policy.pageAdded(new HeapPageId(1, i));
+            Iterator<PageId> it = policy.candidates();
+            assertEquals(kind.toString(), new HeapPageId(1, 0), it.next());
+            policy.pageAccessed(new HeapPageId(1, 1));
+            policy.pageRemoved(new HeapPageId(1, 2), true);
+            policy.pageAdded(new HeapPageId(1, 4));
+            List<PageId> rest = new ArrayList<>();
+            it.forEachRemaining(rest::add);
+            List<PageId> expected = new ArrayList<>(Arrays.asList(new HeapPageId(1, 3), new HeapPageId(1, 4)));
+            expected.add(kind == ReplacementPolicy.Kind.TWO_Q ? 0 : 2, new HeapPageId(1, 1));
+            assertEquals(kind.toString(), expected, rest);
+            assertEquals(kind.toString(), new HeapPageId(1, 0), policy.candidates().next());
+            assertEquals(kind.toString(), 4, policy.ranking().size());
+        }
+    }
+
+    /**
+     * Hits on 2Q, LRU-K and ARC do not wait for the policy's lock, and
+     * count once the policy next orders its pages: the page hit is kept
+     * longer than the one read in after it.
+     */
+    @Test
+    public void hitsDoNotLock() throws Exception {
+        for (ReplacementPolicy.Kind kind : new ReplacementPolicy.Kind[]{
+                ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.Kind.LRU_K, ReplacementPolicy.Kind.ARC}) {
+            final ReplacementPolicy policy = kind.create(100);
+            for (int i = 0; i < 4; i++)
+                policy.pageAdded(new HeapPageId(1, i));
+            // 再次读入的page进入2Q的Am和ARC的T2，在其中按使用排序
+            for (int i = 0; i < 2; i++) {
+                policy.pageRemoved(new HeapPageId(1, i), true);
+                policy.pageAdded(new HeapPageId(1, i));
+            }
+            Thread hits = new Thread(() -> {
+                for (int i = 0; i < 10; i++)
+                    policy.pageAccessed(new HeapPageId(1, 0));
+            });
+            synchronized (policy) {
+                hits.start();
+                hits.join(10000);
+                assertFalse(kind.toString(), hits.isAlive());
+            }
+            List<PageId> ranking = policy.ranking();
+            assertTrue(kind.toString(), ranking.indexOf(new HeapPageId(1, 0)) < ranking.indexOf(new HeapPageId(1, 1)));
+        }
+    }
+
+    /**
+     * CLOCK ranks the pages whose reference bit is set first, without
+     * clearing any bit.
+     */
+    @Test
+    public void clockRanking() {
+        ClockPolicy clock = new ClockPolicy();
+        for (int i = 0; i < 4; i++)
+            clock.pageAdded(new HeapPageId(1, i));
+        clock.pageAccessed(new HeapPageId(1, 1));
+        List<PageId> ranking = clock.ranking();
+        assertEquals(4, ranking.size());
+        assertEquals(new HeapPageId(1, 1), ranking.get(0));
+        assertEquals(ranking, clock.ranking());
+        assertEquals(new HeapPageId(1, 0), clock.candidates().next());
+        assertEquals(new HeapPageId(1, 2), clock.candidates().next());
+    }
+
+    /**
+     * A BufferPool with a scan resistant policy still has the pages that
+     * were used twice after a scan of more pages than the pool holds.
+     */
+    @Test
+    public void bufferPoolKeepsHotPages() throws Exception {
+        for (ReplacementPolicy.Kind kind : new ReplacementPolicy.Kind[]{
+                ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.Kind.LRU_K, ReplacementPolicy.Kind.ARC}) {
+            Database.reset();
+            BufferPool bp = Database.resetBufferPool(20, kind);
+            assertEquals(kind, bp.getReplacementPolicy());
+            HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+            HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 60, null, null);
+
+            TransactionId tid = new TransactionId();
+            TestUtil.readPages(bp, tid, hot, 0, hot.numPages());
+            TestUtil.readPages(bp, tid, hot, 0, hot.numPages());
+            // fills the pool; 2Q only keeps pages that come back after
+            // leaving its FIFO queue
+            TestUtil.readPages(bp, tid, big, 0, 20);
+            TestUtil.readPages(bp, tid, hot, 0, hot.numPages());
+            TestUtil.readPages(bp, tid, big, 20, big.numPages());
+            bp.transactionComplete(tid);
+
+            assertEquals(20, bp.cacheSize());
+            for (int i = 0; i < hot.numPages(); i++)
+                assertTrue(kind + " lost page " + i, bp.isCached(new HeapPageId(hot.getId(), i)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RollbackTest extends SimpleDbTestBase {
+
+    /**
+     * A HeapFile that counts the pages read from it.
+     */
+    private static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public List<Page> readPages(int firstPgNo, int count) {
+            reads.addAndGet(count);
+            return super.readPages(firstPgNo, count);
+        }
+    }
+
+    private CountingHeapFile hf;
+    private BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 5, 1 << 16, null, null);
+        hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        bp = Database.resetBufferPool(50);
+    }
+
+    private List<String> contents(TransactionId tid, int pgNo) throws Exception {
+        List<String> ret = new ArrayList<>();
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, TestUtil.pid(hf, pgNo), Permissions.READ_ONLY)).iterator();
+        while (it.hasNext())
+            ret.add(it.next().toString());
+        return ret;
+    }
+
+    private void deleteFirst(TransactionId tid, int pgNo) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, TestUtil.pid(hf, pgNo), Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    /**
+     * Abort restores the last committed version of each page it dirtied
+     * from memory, without reading from the file.
+     */
+    @Test
+    public void abortWithoutReads() throws Exception {
+        TransactionId t1 = new TransactionId();
+        deleteFirst(t1, 0);
+        bp.transactionComplete(t1, true);
+        TransactionId t0 = new TransactionId();
+        List<String> page0 = contents(t0, 0);
+        List<String> page1 = contents(t0, 1);
+        bp.transactionComplete(t0);
+        assertEquals(503, page0.size());
+
+        TransactionId t2 = new TransactionId();
+        deleteFirst(t2, 0);
+        deleteFirst(t2, 0);
+        deleteFirst(t2, 1);
+        bp.insertTuple(t2, hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        int reads = hf.reads.get();
+        bp.transactionComplete(t2, false);
+        assertEquals(reads, hf.reads.get());
+
+        TransactionId t3 = new TransactionId();
+        assertEquals(page0, contents(t3, 0));
+        assertEquals(page1, contents(t3, 1));
+        assertEquals(reads, hf.reads.get());
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * A page written by flushAllPages rolls back to what was written.
+     */
+    @Test
+    public void abortAfterFlush() throws Exception {
+        TransactionId t1 = new TransactionId();
+        deleteFirst(t1, 2);
+        bp.flushAllPages();
+        bp.transactionComplete(t1, true);
+
+        TransactionId t2 = new TransactionId();
+        deleteFirst(t2, 2);
+        bp.transactionComplete(t2, false);
+        TransactionId t3 = new TransactionId();
+        assertEquals(503, contents(t3, 2).size());
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RollbackTest.class);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanRingTest extends SimpleDbTestBase {
+
+    private BufferPool bp;
+    private HeapFile hot;
+    private HeapFile big;
+    private ArrayList<ArrayList<Integer>> bigTuples;
+
+    @Before
+    public void setUp() throws Exception {
+        bp = Database.resetBufferPool(20);
+        hot = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        bigTuples = new ArrayList<>();
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * 60, null, bigTuples);
+    }
+
+    @Test
+    public void ringOnlyForLargeTables() {
+        assertNull(bp.scanRingFor(15));
+        ScanRing ring = bp.scanRingFor(16);
+        assertNotNull(ring);
+        assertEquals(bp.getReadBatchSize(), ring.size());
+        assertEquals(BufferPool.SCAN_RING_PAGES, Database.resetBufferPool(1000).scanRingFor(1000).size());
+        assertNull(Database.resetBufferPool(7).scanRingFor(1000));
+    }
+
+    /**
+     * A scan of a table three times the size of the pool reads it through
+     * its ring and leaves the pages that were cached before in the pool.
+     */
+    @Test
+    public void largeScanKeepsCache() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+
+        SystemTestUtil.matchTuples(big, tid, bigTuples);
+        // rewind回到开头仍然得到所有的tuple
+        SeqScan scan = new SeqScan(tid, big.getId(), "big");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.rewind();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(2 * bigTuples.size(), n);
+        bp.transactionComplete(tid);
+
+        assertEquals(hot.numPages(), bp.cacheSize());
+        for (int i = 0; i < hot.numPages(); i++)
+            assertTrue(bp.isCached(new HeapPageId(hot.getId(), i)));
+    }
+
+    /**
+     * Pages the transaction has changed are taken from the pool, not read
+     * into the ring.
+     */
+    @Test
+    public void scanSeesDirtyPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        bp.deleteTuple(tid, first);
+
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            assertTrue(!it.next().getRecordId().equals(first.getRecordId()));
+            n++;
+        }
+        it.close();
+        assertEquals(bigTuples.size() - 1, n);
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
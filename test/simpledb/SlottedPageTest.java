@@ -0,0 +1,173 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = new Type[]{Type.INT_TYPE, Type.STRING_TYPE};
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    @Before
+    public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(TYPES);
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> contents(TuplePage page) {
+        List<Tuple> ret = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            ret.add(it.next());
+        return ret;
+    }
+
+    /**
+     * Short strings are stored compactly, so many more rows fit on a page
+     * than the fixed-width HeapPage's slots.
+     */
+    @Test
+    public void insertUntilFull() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, page.getNumTuples());
+        int n = 0;
+        while (page.getFreeBytes() >= SlottedPage.recordSize(tuple(n, "name" + n))) {
+            Tuple t = tuple(n, "name" + n);
+            page.insertTuple(t);
+            assertEquals(n, t.getRecordId().tupleno());
+            n++;
+        }
+        int heapSlots = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        assertTrue(n > 5 * heapSlots);
+
+        try {
+            page.insertTuple(tuple(0, "does not fit"));
+            assertTrue("expected a full page", false);
+        } catch (DbException e) {
+            // expected
+        }
+
+        List<Tuple> tuples = contents(page);
+        assertEquals(n, tuples.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, ((IntField) tuples.get(i).getField(0)).getValue());
+            assertEquals("name" + i, ((StringField) tuples.get(i).getField(1)).getValue());
+        }
+    }
+
+    /**
+     * Deleted slots are reused, and fragmented free space is compacted when
+     * an insert needs it; the remaining records and their slots survive.
+     */
+    @Test
+    public void deleteAndCompact() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        List<Tuple> inserted = new ArrayList<Tuple>();
+        while (page.getFreeBytes() >= SlottedPage.recordSize(tuple(0, "abcdefgh"))) {
+            Tuple t = tuple(inserted.size(), "abcdefgh");
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        // free every other record; no single hole fits a long string
+        for (int i = 0; i < inserted.size(); i += 2)
+            page.deleteTuple(inserted.get(i));
+        assertFalse(page.isSlotUsed(0));
+        assertTrue(page.isSlotUsed(1));
+
+        Tuple big = tuple(-1, "a much longer string than any of the others on the page");
+        page.insertTuple(big);
+        assertEquals(0, big.getRecordId().tupleno());
+
+        for (int i = 1; i < inserted.size(); i += 2) {
+            assertEquals(i, ((IntField) page.getField(i, 0)).getValue());
+            assertEquals("abcdefgh", ((StringField) page.getField(i, 1)).getValue());
+        }
+        assertEquals("a much longer string than any of the others on the page",
+                ((StringField) page.getField(0, 1)).getValue());
+
+        // and the page reads back the same from its bytes
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(contents(page).size(), contents(copy).size());
+        assertEquals(page.getFreeBytes(), copy.getFreeBytes());
+        assertEquals(0, contents(page.getBeforeImage()).size());
+    }
+
+    /**
+     * A slotted HeapFile written by HeapFileEncoder can be scanned and
+     * inserted into, and takes fewer pages than the fixed-width format.
+     */
+    @Test
+    public void slottedHeapFile() throws Exception {
+        File txt = File.createTempFile("slotted", ".txt");
+        txt.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(txt));
+        int rows = 1000;
+        for (int i = 0; i < rows; i++)
+            bw.write(i + ",author" + i + "\n");
+        bw.close();
+
+        File heap = File.createTempFile("heap", ".dat");
+        heap.deleteOnExit();
+        File slotted = File.createTempFile("slotted", ".dat");
+        slotted.deleteOnExit();
+        HeapFileEncoder.convert(txt, heap, BufferPool.PAGE_SIZE, 2, TYPES, ',', HeapFile.PageFormat.HEAP);
+        HeapFileEncoder.convert(txt, slotted, BufferPool.PAGE_SIZE, 2, TYPES, ',', HeapFile.PageFormat.SLOTTED);
+
+        HeapFile hf = new HeapFile(slotted, td, false, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertTrue(hf.numPages() * 5 < new HeapFile(heap, td).numPages());
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(rows, "author" + rows));
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        boolean[] seen = new boolean[rows + 1];
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals("author" + i, ((StringField) t.getField(1)).getValue());
+            assertFalse(seen[i]);
+            seen[i] = true;
+            count++;
+        }
+        it.close();
+        assertEquals(rows + 1, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.*;
 
@@ -190,6 +191,66 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * @return the id of page pgNo of f
+     */
+    public static HeapPageId pid(HeapFile f, int pgNo) {
+        return new HeapPageId(f.getId(), pgNo);
+    }
+
+    /**
+     * Reads pages from (inclusive) to to (exclusive) of f through bp on
+     * behalf of tid, with shared locks.
+     */
+    public static void readPages(BufferPool bp, TransactionId tid, HeapFile f, int from, int to)
+            throws DbException, TransactionAbortedException {
+        for (int i = from; i < to; i++)
+            bp.getPage(tid, pid(f, i), Permissions.READ_ONLY);
+    }
+
+    /**
+     * @return the number of tuples on page, which must be a HeapPage
+     */
+    public static int countTuples(Page page) {
+        int n = 0;
+        for (Iterator<Tuple> it = ((HeapPage) page).iterator(); it.hasNext(); it.next())
+            n++;
+        return n;
+    }
+
+    /**
+     * A HeapFile that, on threads whose name starts with a given prefix,
+     * stops after reading a run of pages that covers a given page from disk
+     * until the test lets it go on.
+     */
+    public static class GatedHeapFile extends HeapFile {
+        private final String threadPrefix;
+        private final int gatePgNo;
+        public final CountDownLatch read = new CountDownLatch(1);
+        public final CountDownLatch release = new CountDownLatch(1);
+
+        public GatedHeapFile(File f, TupleDesc td, String threadPrefix, int gatePgNo) {
+            super(f, td);
+            this.threadPrefix = threadPrefix;
+            this.gatePgNo = gatePgNo;
+        }
+
+        @Override
+        public List<Page> readPages(int firstPgNo, int count) {
+            List<Page> ret = super.readPages(firstPgNo, count);
+            if (Thread.currentThread().getName().startsWith(threadPrefix)
+                    && firstPgNo <= gatePgNo && gatePgNo < firstPgNo + count) {
+                read.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return ret;
+        }
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
@@ -0,0 +1,209 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class VacuumTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+
+    /**
+     * Writes ROWS two-column rows (i, -i) and deletes all but every fourth
+     * one in a committed transaction.
+     */
+    private HeapFile churnedFile(HeapFile.PageFormat format) throws Exception {
+        File txt = File.createTempFile("vacuum", ".txt");
+        txt.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(txt));
+        for (int i = 0; i < ROWS; i++)
+            bw.write(i + "," + (-i) + "\n");
+        bw.close();
+        File f = File.createTempFile("vacuum", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(txt, f, BufferPool.PAGE_SIZE, 2, Utility.getTypes(2), ',', format);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), false, format);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        List<Tuple> toDelete = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 4 != 0)
+                toDelete.add(t);
+        }
+        it.close();
+        for (Tuple t : toDelete)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        return hf;
+    }
+
+    /**
+     * Every row that survived the deletes is still there, exactly once.
+     */
+    private static void checkContents(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(0, i % 4);
+            assertEquals(-i, ((IntField) t.getField(1)).getValue());
+            assertEquals(null, seen.put(i, i));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS / 4, seen.size());
+    }
+
+    /**
+     * The live tuples end up packed into the first pages, in several rounds
+     * when the dirty page budget is small, and the file is truncated after
+     * them.
+     */
+    @Test
+    public void compactHeapFile() throws Exception {
+        HeapFile hf = churnedFile(HeapFile.PageFormat.HEAP);
+        int pages = hf.numPages();
+        long length = hf.getFile().length();
+
+        Vacuum.Report report = new Vacuum(hf, 4).run();
+        assertEquals(pages, report.getPagesBefore());
+        assertTrue(report.getFillBefore() < 0.3);
+        assertTrue(report.getFillAfter() > 0.8);
+
+        int slots = hf.emptyPageUnits();
+        int expected = (ROWS / 4 + slots - 1) / slots;
+        assertEquals(expected, report.getPagesAfter());
+        assertEquals(expected, hf.numPages());
+        assertEquals((long) expected * BufferPool.PAGE_SIZE, hf.getFile().length());
+        assertTrue(hf.getFile().length() * 3 < length);
+        assertEquals(expected, FreeSpaceMap.sidecarFor(hf.getFile()).length());
+        checkContents(hf);
+
+        // the file is usable afterwards and grows again on insert
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < slots; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(-1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected + 1, hf.numPages());
+
+        // reopening reads the truncated file and free-space map
+        Database.reset();
+        HeapFile reopened = new HeapFile(hf.getFile(), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(expected + 1, reopened.numPages());
+    }
+
+    /**
+     * Variable-length page formats are compacted the same way.
+     */
+    @Test
+    public void compactSlottedFile() throws Exception {
+        HeapFile hf = churnedFile(HeapFile.PageFormat.SLOTTED);
+        Vacuum.Report report = Vacuum.vacuum(hf.getId());
+        assertTrue(report.getPagesAfter() < report.getPagesBefore());
+        assertTrue(report.getFillAfter() > report.getFillBefore());
+        assertTrue(report.getTuplesMoved() > 0);
+        checkContents(hf);
+    }
+
+    /**
+     * Each page a round changes is logged once, whether the commit writes
+     * the pages itself or leaves them to a BackgroundWriter.
+     */
+    @Test
+    public void logsPagesOnceWithBackgroundWriter() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapFile hf = churnedFile(HeapFile.PageFormat.HEAP);
+        int before = log.getTotalRecords();
+        new Vacuum(hf, 4).run();
+        int records = log.getTotalRecords() - before;
+
+        hf = churnedFile(HeapFile.PageFormat.HEAP);
+        Database.getBufferPool().startBackgroundWriter(60000);
+        try {
+            before = log.getTotalRecords();
+            new Vacuum(hf, 4).run();
+            assertEquals(records, log.getTotalRecords() - before);
+        } finally {
+            Database.getBufferPool().stopBackgroundWriter();
+        }
+        checkContents(hf);
+    }
+
+    /**
+     * With a pool much smaller than the file, a run reads each page about
+     * once for moving, besides the two fill factor scans, however many
+     * rounds it takes.
+     */
+    @Test
+    public void visitsPagesOnce() throws Exception {
+        HeapFile hf = churnedFile(HeapFile.PageFormat.HEAP);
+        BufferPool bp = Database.resetBufferPool(8);
+        int pages = hf.numPages();
+        long before = bp.getStats().getMisses();
+        Vacuum.Report report = new Vacuum(hf, 2).run();
+        assertTrue(report.getTuplesMoved() > 0);
+        assertTrue(bp.getStats().getMisses() - before <= 3 * pages);
+        checkContents(hf);
+    }
+
+    /**
+     * Cutting off the empty pages is logged, with the table and the old and
+     * new number of pages.
+     */
+    @Test
+    public void logsTruncation() throws Exception {
+        HeapFile hf = churnedFile(HeapFile.PageFormat.HEAP);
+        int pages = hf.numPages();
+        Vacuum.Report report = new Vacuum(hf, 4).run();
+
+        // 从日志末尾沿每条记录最后的起始位置往前找
+        LogFile log = Database.getLogFile();
+        RandomAccessFile raf = log.raf;
+        long end = raf.length();
+        boolean found = false;
+        while (end > LogFile.LONG_SIZE && !found) {
+            raf.seek(end - LogFile.LONG_SIZE);
+            long start = raf.readLong();
+            raf.seek(start);
+            if (raf.readInt() == LogFile.TRUNCATE_RECORD) {
+                raf.readLong();
+                assertEquals(hf.getId(), raf.readInt());
+                assertEquals(report.getPagesAfter(), raf.readInt());
+                assertEquals(pages, raf.readInt());
+                found = true;
+            }
+            end = start;
+        }
+        raf.seek(raf.length());
+        assertTrue(found);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VacuumTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class WriteSetTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        bp = Database.resetBufferPool(100);
+    }
+
+    private void deleteFirst(TransactionId tid, int pgNo) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, TestUtil.pid(hf, pgNo), Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    /**
+     * A transaction's write set holds the pages it locked for writing, and
+     * commit only writes the ones it dirtied.
+     */
+    @Test
+    public void commitWritesWriteSet() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        for (int i = 0; i < 10; i++)
+            bp.getPage(t1, TestUtil.pid(hf, i), Permissions.READ_ONLY);
+        deleteFirst(t1, 3);
+        deleteFirst(t1, 7);
+        bp.getPage(t1, TestUtil.pid(hf, 9), Permissions.READ_WRITE);
+        deleteFirst(t2, 15);
+        assertEquals(new HashSet<>(Arrays.asList(TestUtil.pid(hf, 3), TestUtil.pid(hf, 7), TestUtil.pid(hf, 9))), bp.writeSet(t1));
+
+        bp.transactionComplete(t1, true);
+        assertTrue(bp.writeSet(t1).isEmpty());
+        assertEquals(503, TestUtil.countTuples(hf.readPage(TestUtil.pid(hf, 3))));
+        assertEquals(503, TestUtil.countTuples(hf.readPage(TestUtil.pid(hf, 7))));
+        assertNull(bp.getPage(t2, TestUtil.pid(hf, 7), Permissions.READ_ONLY).isDirty());
+        // t2的page没有被t1的提交写回
+        assertEquals(504, TestUtil.countTuples(hf.readPage(TestUtil.pid(hf, 15))));
+        assertEquals(t2, bp.getPage(t2, TestUtil.pid(hf, 15), Permissions.READ_ONLY).isDirty());
+
+        bp.transactionComplete(t2, false);
+        assertTrue(bp.writeSet(t2).isEmpty());
+        assertEquals(504, TestUtil.countTuples(bp.getPage(new TransactionId(), TestUtil.pid(hf, 15), Permissions.READ_ONLY)));
+    }
+
+    /**
+     * Committing, rolling back and discarding pages do not take a lock on
+     * the whole pool.
+     */
+    @Test
+    public void completeWithoutPoolLock() throws Exception {
+        final TransactionId t1 = new TransactionId();
+        final TransactionId t2 = new TransactionId();
+        deleteFirst(t1, 3);
+        deleteFirst(t2, 4);
+        Thread other = new Thread(() -> {
+            try {
+                bp.transactionComplete(t1, true);
+                bp.transactionComplete(t2, false);
+                bp.discardPage(TestUtil.pid(hf, 5));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        synchronized (bp) {
+            other.start();
+            other.join(10000);
+            assertFalse(other.isAlive());
+        }
+        assertEquals(503, TestUtil.countTuples(hf.readPage(TestUtil.pid(hf, 3))));
+        assertEquals(504, TestUtil.countTuples(bp.getPage(new TransactionId(), TestUtil.pid(hf, 4), Permissions.READ_ONLY)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WriteSetTest.class);
+    }
+}